@@ -31,8 +31,8 @@ import org.junit.runner.RunWith;
 import java.io.BufferedInputStream;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Tests the ability to pull program data out of an Xmltv file and correctly insert it into the
@@ -74,7 +74,7 @@ public class EpgSyncTest extends ActivityInstrumentationTestCase2<MainActivity>
 
         // Get our channel row
         Thread.sleep(1000 * 5);
-        HashMap<String, Long> databaseRowMap = channelDatabase.getHashMap();
+        Map<String, Long> databaseRowMap = channelDatabase.getHashMap();
         assertTrue(databaseRowMap.containsKey(MEDIA_URL));
         long rowId = databaseRowMap.get(MEDIA_URL);
         assertTrue(rowId > 0);
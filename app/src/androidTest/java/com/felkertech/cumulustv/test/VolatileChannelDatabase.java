@@ -1,22 +1,15 @@
 package com.felkertech.cumulustv.test;
 
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
-import android.media.tv.TvContract;
-import android.net.Uri;
 
 import com.felkertech.cumulustv.plugins.CumulusChannel;
 import com.felkertech.cumulustv.model.ChannelDatabase;
 import com.felkertech.cumulustv.model.JsonChannel;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 
-import junit.framework.Assert;
-
 import org.json.JSONException;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -34,7 +27,7 @@ public class VolatileChannelDatabase extends ChannelDatabase {
         if (mMockChannelDatabase == null) {
             mMockChannelDatabase = new VolatileChannelDatabase(context);
         }
-        mMockChannelDatabase.initializeHashMap(context);
+        mMockChannelDatabase.startRowIndex();
         return mMockChannelDatabase;
     }
 
@@ -70,35 +63,4 @@ public class VolatileChannelDatabase extends ChannelDatabase {
     @Override
     public void save() {
     }
-
-    @Override
-    protected void initializeHashMap(final Context context) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                ContentResolver contentResolver = context.getContentResolver();
-                Uri channelsUri = TvContract.buildChannelsUriForInput(
-                        "com.felkertech.cumulustv.tv.CumulusTvTifService");
-                Cursor cursor = contentResolver.query(channelsUri, null, null, null, null);
-                mDatabaseHashMap = new HashMap<>();
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        String mediaUrl = cursor.getString(cursor.getColumnIndex(
-                                TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA));
-                        long rowId = cursor.getLong(cursor.getColumnIndex(TvContract.Channels._ID));
-                        try {
-                            for (CumulusChannel jsonChannel : mJsonChannels) {
-                                if (jsonChannel.getMediaUrl().equals(mediaUrl)) {
-                                    mDatabaseHashMap.put(jsonChannel.getMediaUrl(), rowId);
-                                }
-                            }
-                        } catch (Exception e) {
-                            Assert.fail(e.getMessage());
-                        }
-                    }
-                    cursor.close();
-                }
-            }
-        }).start();
-    }
 }
@@ -1,6 +1,7 @@
 package com.felkertech.cumulustv.fileio;
 
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
 /**
  * This abstract class standardizes file I/O class features across different file sources
@@ -15,4 +16,17 @@ public abstract class AbstractFileParser {
          */
         void onFileLoaded(InputStream inputStream);
     }
+
+    /**
+     * A {@link FileLoader} which can also read a local file straight from memory. Files which
+     * are compressed or can not be mapped are still passed to {@link #onFileLoaded(InputStream)}.
+     */
+    public interface MappedFileLoader extends FileLoader {
+        /**
+         * When a local file has been mapped into memory, this callback is run instead of
+         * {@link #onFileLoaded(InputStream)}
+         * @param buffer The contents of the file, which can only be read
+         */
+        void onFileMapped(ByteBuffer buffer);
+    }
 }
\ No newline at end of file
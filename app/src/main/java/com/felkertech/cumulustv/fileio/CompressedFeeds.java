@@ -0,0 +1,177 @@
+package com.felkertech.cumulustv.fileio;
+
+import org.tukaani.xz.XZInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * <p>Lets playlists and guides be read whether or not they are compressed. Providers often serve
+ * files like <code>playlist.m3u.gz</code> or <code>guide.xml.xz</code>, or a zip file holding
+ * the feed.</p>
+ *
+ * <p>The format is recognized from the first bytes of the stream rather than from the file name
+ * or headers, which are often wrong, and the data is decompressed while it is being read.</p>
+ */
+public class CompressedFeeds {
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+    private static final int BUFFER_SIZE = 16 * 1024;
+    // A compressed file may itself be served with a compressed content encoding
+    private static final int MAX_LAYERS = 2;
+
+    private static final byte[] MAGIC_GZIP = {(byte) 0x1f, (byte) 0x8b};
+    private static final byte[] MAGIC_XZ = {(byte) 0xfd, '7', 'z', 'X', 'Z', 0};
+    private static final byte[] MAGIC_ZIP = {'P', 'K', 3, 4};
+    private static final int MAGIC_LENGTH = 6;
+
+    private static final String[] EXTENSIONS = {".gz", ".xz", ".zip"};
+
+    private CompressedFeeds() {
+    }
+
+    /**
+     * Asks the server to send the feed compressed. Streams read from the connection must then be
+     * passed through {@link #decompress(InputStream)}.
+     */
+    public static void acceptCompression(URLConnection connection) {
+        connection.setRequestProperty(HEADER_ACCEPT_ENCODING, "gzip");
+    }
+
+    /**
+     * Wraps a stream which may be compressed with gzip or xz, or may be a zip file. Nothing is
+     * read until the returned stream is first read from. A stream which is not compressed is
+     * returned as it is, apart from being buffered.
+     *
+     * For a zip file, the first file in the archive is read.
+     *
+     * @param inputStream The stream as it was downloaded or opened.
+     * @return A stream of the uncompressed data. Closing it closes the original stream.
+     */
+    public static InputStream decompress(InputStream inputStream) {
+        return new DecompressingInputStream(inputStream);
+    }
+
+    /**
+     * @return The name of a file without an extension of a compressed format, so
+     * <code>playlist.m3u.gz</code> becomes <code>playlist.m3u</code>.
+     */
+    public static String getUncompressedName(String name) {
+        for (String extension : EXTENSIONS) {
+            if (name.regionMatches(true, name.length() - extension.length(), extension, 0,
+                    extension.length())) {
+                return name.substring(0, name.length() - extension.length());
+            }
+        }
+        return name;
+    }
+
+    /**
+     * @param buffer The start of a file, from the position of the buffer. The position is not
+     *     changed.
+     * @return True if the file is compressed in a format {@link #decompress(InputStream)} reads.
+     */
+    public static boolean isCompressed(ByteBuffer buffer) {
+        byte[] magic = new byte[MAGIC_LENGTH];
+        int length = Math.min(MAGIC_LENGTH, buffer.remaining());
+        for (int i = 0; i < length; i++) {
+            magic[i] = buffer.get(buffer.position() + i);
+        }
+        return startsWith(magic, length, MAGIC_GZIP) || startsWith(magic, length, MAGIC_XZ) ||
+                startsWith(magic, length, MAGIC_ZIP);
+    }
+
+    private static InputStream open(InputStream inputStream, int layer) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(inputStream, BUFFER_SIZE);
+        if (layer >= MAX_LAYERS) {
+            return in;
+        }
+        byte[] magic = new byte[MAGIC_LENGTH];
+        in.mark(MAGIC_LENGTH);
+        int length = 0;
+        int read;
+        while (length < MAGIC_LENGTH &&
+                (read = in.read(magic, length, MAGIC_LENGTH - length)) > 0) {
+            length += read;
+        }
+        in.reset();
+        if (startsWith(magic, length, MAGIC_GZIP)) {
+            return open(new GZIPInputStream(in, BUFFER_SIZE), layer + 1);
+        } else if (startsWith(magic, length, MAGIC_XZ)) {
+            return open(new XZInputStream(in), layer + 1);
+        } else if (startsWith(magic, length, MAGIC_ZIP)) {
+            ZipInputStream zip = new ZipInputStream(in);
+            ZipEntry entry = zip.getNextEntry();
+            while (entry != null && entry.isDirectory()) {
+                entry = zip.getNextEntry();
+            }
+            if (entry == null) {
+                throw new IOException("The zip file is empty");
+            }
+            return open(zip, layer + 1);
+        }
+        return in;
+    }
+
+    private static boolean startsWith(byte[] bytes, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recognizes the format on the first read, so opening a stream never blocks or throws.
+     */
+    private static class DecompressingInputStream extends InputStream {
+        private InputStream mIn;
+        private boolean mOpened;
+
+        private DecompressingInputStream(InputStream in) {
+            mIn = in;
+        }
+
+        private InputStream getStream() throws IOException {
+            if (!mOpened) {
+                mOpened = true;
+                mIn = open(mIn, 0);
+            }
+            return mIn;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return getStream().read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            return getStream().read(buffer, offset, length);
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            return getStream().skip(count);
+        }
+
+        @Override
+        public int available() throws IOException {
+            return mOpened ? mIn.available() : 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            mIn.close();
+        }
+    }
+}
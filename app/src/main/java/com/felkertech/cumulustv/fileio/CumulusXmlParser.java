@@ -3,6 +3,7 @@ package com.felkertech.cumulustv.fileio;
 import android.graphics.Color;
 import android.media.tv.TvContentRating;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 import android.util.Xml;
@@ -19,12 +20,16 @@ import org.xmlpull.v1.XmlPullParserException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * XMLTV document parser which conforms to http://wiki.xmltv.org/index.php/Main_Page
@@ -117,8 +122,6 @@ public class CumulusXmlParser {
 
     private static final String ANDROID_TV_RATING = "com.android.tv";
 
-    private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMMddHHmmss Z",
-            Locale.US);
     private static final String TAG = "XmlTvParser";
 
     private CumulusXmlParser() {
@@ -152,10 +155,49 @@ public class CumulusXmlParser {
      * Reads an InputStream and parses the data to identify channels and programs
      *
      * @param inputStream The InputStream of your data
-     * @param parser The XmlPullParser the developer selects to parse this data
+     * @param parser The XmlPullParser the developer selects to parse this data, such as a
+     *     KXmlParser when running outside of Android
      * @return A TvListing containing your channels and programs
      */
-    private static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser)
+    public static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser)
+            throws XmlTvParseException {
+        return parse(inputStream, parser, Long.MIN_VALUE, Long.MAX_VALUE, null);
+    }
+
+    /**
+     * Reads only the channels and programs which will be shown from an InputStream. Programs
+     * outside of the time window, and programs of channels which are not wanted, are skipped
+     * without being built, so a large guide can be read for a few channels and hours.
+     *
+     * <p>Programs which are looped rather than shown at their own time are still read in full.
+     * These are the programs of channels with repeat-programs, and of channels whose programs
+     * all end before the window.</p>
+     *
+     * <p>A channel is wanted if its XMLTV id is in the set, or its display number, or its display
+     * name in lower case. Channels are small, so each one is read to compare its number and name,
+     * and the unwanted ones are dropped. A guide with a single channel is shown on every channel
+     * of a lineup, so its channel is always read.</p>
+     *
+     * @param inputStream The InputStream of your data
+     * @param startMs Programs which end at or before this time are skipped.
+     * @param endMs Programs which start at or after this time are skipped.
+     * @param wantedChannelIds The channels to read, or null to read every channel.
+     * @return A TvListing containing the wanted channels and the programs which will be shown
+     */
+    public static TvListing parse(@NonNull InputStream inputStream, long startMs, long endMs,
+            @Nullable Set<String> wantedChannelIds) throws XmlTvParseException {
+        return parse(inputStream, Xml.newPullParser(), startMs, endMs, wantedChannelIds);
+    }
+
+    /**
+     * Reads only the channels and programs which will be shown from an InputStream; see
+     * {@link #parse(InputStream, long, long, Set)}.
+     *
+     * @param parser The XmlPullParser the developer selects to parse this data, such as a
+     *     KXmlParser when running outside of Android
+     */
+    public static TvListing parse(@NonNull InputStream inputStream, @NonNull XmlPullParser parser,
+            long startMs, long endMs, @Nullable Set<String> wantedChannelIds)
             throws XmlTvParseException {
         try {
             parser.setInput(inputStream, null);
@@ -164,28 +206,192 @@ public class CumulusXmlParser {
                 throw new XmlTvParseException(
                         "Input stream does not contain an XMLTV description");
             }
-            return parseTvListings(parser);
+            return parseTvListings(parser, startMs, endMs, wantedChannelIds);
         } catch (XmlPullParserException | IOException | ParseException e) {
             Log.w(TAG, e.getMessage());
         }
         return null;
     }
 
-    private static TvListing parseTvListings(XmlPullParser parser)
+    private static TvListing parseTvListings(XmlPullParser parser, long startMs, long endMs,
+            @Nullable Set<String> wantedChannelIds)
             throws IOException, XmlPullParserException, ParseException {
+        boolean filtered = startMs != Long.MIN_VALUE || endMs != Long.MAX_VALUE
+                || wantedChannelIds != null;
+        ChannelFilter channelFilter = new ChannelFilter(wantedChannelIds);
         List<Channel> channels = new ArrayList<>();
         List<Program> programs = new ArrayList<>();
+        // The XMLTV ids of the channels and programs, as the companion library only keeps a hash
+        List<String> channelIds = new ArrayList<>();
+        List<String> programChannelIds = new ArrayList<>();
+        // Channels whose programs are looped, and channels with a program from the window on
+        Set<String> repeatingChannelIds = new HashSet<>();
+        Set<String> currentChannelIds = new HashSet<>();
+        // Where the programs before the window are in the list, until their channel turns out
+        // to have later programs
+        Map<String, List<Integer>> pastPrograms = new HashMap<>();
+        // Where the unwanted first channel and its programs are in the lists, until a second
+        // channel turns up
+        List<Integer> singleChannels = new ArrayList<>();
+        List<Integer> singleChannelPrograms = new ArrayList<>();
         while (parser.next() != XmlPullParser.END_DOCUMENT) {
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_CHANNEL.equalsIgnoreCase(parser.getName())) {
-                channels.add(parseChannel(parser));
+                String channelId = getAttribute(parser, ATTR_ID);
+                if (channelFilter.add(channelId)) {
+                    clear(channels, singleChannels);
+                    clear(programs, singleChannelPrograms);
+                }
+                boolean repeating =
+                        "TRUE".equalsIgnoreCase(getAttribute(parser, ATTR_REPEAT_PROGRAMS));
+                Channel channel = parseChannel(parser);
+                if (channelFilter.isWanted(channelId, channel)) {
+                    channels.add(channel);
+                    channelIds.add(channelId);
+                } else if (channelFilter.isSingleChannel(channelId)) {
+                    singleChannels.add(channels.size());
+                    channels.add(channel);
+                    channelIds.add(channelId);
+                } else {
+                    continue;
+                }
+                if (repeating) {
+                    repeatingChannelIds.add(channelId);
+                }
             }
             if (parser.getEventType() == XmlPullParser.START_TAG
                     && TAG_PROGRAM.equalsIgnoreCase(parser.getName())) {
+                String channelId = getAttribute(parser, ATTR_CHANNEL);
+                if (channelFilter.add(channelId)) {
+                    clear(channels, singleChannels);
+                    clear(programs, singleChannelPrograms);
+                }
+                boolean wanted = channelFilter.isWanted(channelId);
+                if (!wanted && !channelFilter.isSingleChannel(channelId)) {
+                    skipTag(parser);
+                    continue;
+                }
+                int index = programs.size();
+                if (!filtered || repeatingChannelIds.contains(channelId)) {
+                    programs.add(parseProgram(parser));
+                } else {
+                    parseProgramInWindow(parser, channelId, startMs, endMs, programs,
+                            currentChannelIds, pastPrograms);
+                }
+                if (programs.size() > index) {
+                    programChannelIds.add(channelId);
+                    if (!wanted) {
+                        singleChannelPrograms.add(index);
+                    }
+                }
+            }
+        }
+        if (channels.contains(null)) {
+            List<Channel> wantedChannels = new ArrayList<>(channels.size());
+            List<String> wantedChannelIdList = new ArrayList<>(channels.size());
+            for (int i = 0; i < channels.size(); i++) {
+                if (channels.get(i) != null) {
+                    wantedChannels.add(channels.get(i));
+                    wantedChannelIdList.add(channelIds.get(i));
+                }
+            }
+            channels = wantedChannels;
+            channelIds = wantedChannelIdList;
+        }
+        if (filtered && programs.contains(null)) {
+            List<Program> shownPrograms = new ArrayList<>(programs.size());
+            List<String> shownProgramChannelIds = new ArrayList<>(programs.size());
+            for (int i = 0; i < programs.size(); i++) {
+                if (programs.get(i) != null) {
+                    shownPrograms.add(programs.get(i));
+                    shownProgramChannelIds.add(programChannelIds.get(i));
+                }
+            }
+            programs = shownPrograms;
+            programChannelIds = shownProgramChannelIds;
+        }
+        return new TvListing(channels, channelIds, programs, programChannelIds,
+                channelFilter.isSingleChannel());
+    }
+
+    /**
+     * Reads a program of a channel which is shown at its own times, if it is in the window or
+     * may be looped, or skips it.
+     */
+    private static void parseProgramInWindow(XmlPullParser parser, String channelId,
+            long startMs, long endMs, List<Program> programs, Set<String> currentChannelIds,
+            Map<String, List<Integer>> pastPrograms)
+            throws IOException, XmlPullParserException, ParseException {
+        String start = getAttribute(parser, ATTR_START);
+        String stop = getAttribute(parser, ATTR_STOP);
+        if (start == null || stop == null) {
+            // Let parseProgram report the missing time
+            programs.add(parseProgram(parser));
+        } else if (XmlTvTime.parse(stop) <= startMs) {
+            if (currentChannelIds.contains(channelId)) {
+                skipTag(parser);
+            } else {
+                List<Integer> indexes = pastPrograms.get(channelId);
+                if (indexes == null) {
+                    indexes = new ArrayList<>();
+                    pastPrograms.put(channelId, indexes);
+                }
+                indexes.add(programs.size());
                 programs.add(parseProgram(parser));
             }
+        } else {
+            if (currentChannelIds.add(channelId)) {
+                List<Integer> indexes = pastPrograms.remove(channelId);
+                if (indexes != null) {
+                    clear(programs, indexes);
+                }
+            }
+            if (XmlTvTime.parse(start) < endMs) {
+                programs.add(parseProgram(parser));
+            } else {
+                skipTag(parser);
+            }
+        }
+    }
+
+    /**
+     * Drops the items at the given indexes, leaving null in their place so later indexes still
+     * hold.
+     */
+    private static <T> void clear(List<T> items, List<Integer> indexes) {
+        for (int index : indexes) {
+            items.set(index, null);
+        }
+        indexes.clear();
+    }
+
+    private static String getAttribute(XmlPullParser parser, String name) {
+        for (int i = 0; i < parser.getAttributeCount(); ++i) {
+            if (name.equalsIgnoreCase(parser.getAttributeName(i))) {
+                return parser.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the parser from a start tag to its end tag, skipping everything inside it.
+     */
+    private static void skipTag(XmlPullParser parser)
+            throws IOException, XmlPullParserException {
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    return;
+            }
         }
-        return new TvListing(channels, programs);
     }
 
     private static Channel parseChannel(XmlPullParser parser)
@@ -272,9 +478,9 @@ public class CumulusXmlParser {
             if (ATTR_CHANNEL.equalsIgnoreCase(attr)) {
                 channelId = value;
             } else if (ATTR_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvTime.parse(value);
             } else if (ATTR_STOP.equalsIgnoreCase(attr)) {
-                endTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                endTimeUtcMillis = XmlTvTime.parse(value);
             } else if (ATTR_VIDEO_SRC.equalsIgnoreCase(attr)) {
                 videoSrc = value;
             } else if (ATTR_VIDEO_TYPE.equalsIgnoreCase(attr)) {
@@ -433,9 +639,9 @@ public class CumulusXmlParser {
             String attr = parser.getAttributeName(i);
             String value = parser.getAttributeValue(i);
             if (ATTR_AD_START.equalsIgnoreCase(attr)) {
-                startTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                startTimeUtcMillis = XmlTvTime.parse(value);
             } else if (ATTR_AD_STOP.equalsIgnoreCase(attr)) {
-                stopTimeUtcMillis = DATE_FORMAT.parse(value).getTime();
+                stopTimeUtcMillis = XmlTvTime.parse(value);
             } else if (ATTR_AD_TYPE.equalsIgnoreCase(attr)) {
                 if (VALUE_ADVERTISEMENT_TYPE_VAST.equalsIgnoreCase(attr)) {
                     type = Advertisement.TYPE_VAST;
@@ -465,30 +671,140 @@ public class CumulusXmlParser {
         return builder.setType(type).setRequestUrl(requestUrl).build();
     }
 
+    /**
+     * Decides which channels of a guide are read. Until a second channel turns up, the guide may
+     * have a single channel, which is shown on every channel of a lineup, so the first channel
+     * is read for now even if it is not wanted.
+     */
+    private static class ChannelFilter {
+        private final Set<String> mWantedChannelIds;
+        // Channels which are wanted by their display number or name
+        private final Set<String> mMatchedChannelIds = new HashSet<>();
+        private String mFirstChannelId;
+        private boolean mSingleChannel = true;
+
+        ChannelFilter(@Nullable Set<String> wantedChannelIds) {
+            mWantedChannelIds = wantedChannelIds;
+        }
+
+        /**
+         * Notes a channel id found in the guide.
+         *
+         * @return True if this is the second channel of the guide, so the first channel is no
+         *     longer read unless it is wanted.
+         */
+        boolean add(@Nullable String channelId) {
+            if (!mSingleChannel || channelId == null) {
+                return false;
+            } else if (mFirstChannelId == null) {
+                mFirstChannelId = channelId;
+                return false;
+            } else if (!mFirstChannelId.equals(channelId)) {
+                mSingleChannel = false;
+                return true;
+            }
+            return false;
+        }
+
+        boolean isWanted(@Nullable String channelId) {
+            return mWantedChannelIds == null || mWantedChannelIds.contains(channelId)
+                    || mMatchedChannelIds.contains(channelId);
+        }
+
+        boolean isWanted(@Nullable String channelId, Channel channel) {
+            if (isWanted(channelId)) {
+                return true;
+            }
+            if ((channel.getDisplayNumber() != null
+                    && mWantedChannelIds.contains(channel.getDisplayNumber()))
+                    || mWantedChannelIds.contains(
+                            channel.getDisplayName().toLowerCase(Locale.US))) {
+                mMatchedChannelIds.add(channelId);
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * @return True if the guide has a single channel so far, and this is it.
+         */
+        boolean isSingleChannel(@Nullable String channelId) {
+            return mSingleChannel && channelId != null && channelId.equals(mFirstChannelId);
+        }
+
+        /**
+         * @return True if the guide has at most one channel.
+         */
+        boolean isSingleChannel() {
+            return mSingleChannel;
+        }
+    }
+
     /**
      * Contains a list of channels and corresponding programs that have been generated from parsing
      * an XML TV file.
      */
     public static class TvListing {
+        private static final Comparator<Program> START_TIME_ORDER = new Comparator<Program>() {
+            @Override
+            public int compare(Program lhs, Program rhs) {
+                long lhsStart = lhs.getStartTimeUtcMillis();
+                long rhsStart = rhs.getStartTimeUtcMillis();
+                return lhsStart < rhsStart ? -1 : (lhsStart == rhsStart ? 0 : 1);
+            }
+        };
+
         private List<Channel> mChannels;
+        private List<String> mChannelIds;
+        private boolean mSingleChannel;
         private List<Program> mPrograms;
+        private Map<String, List<Program>> mProgramsByChannel;
         private HashMap<Integer, List<Program>> mProgramMap;
 
-        private TvListing(List<Channel> channels, List<Program> programs) {
+        /**
+         * @param channelIds The XMLTV id of each channel.
+         * @param programChannelIds The XMLTV channel id of each program.
+         * @param singleChannel True if the guide has at most one channel.
+         */
+        private TvListing(List<Channel> channels, List<String> channelIds,
+                List<Program> programs, List<String> programChannelIds, boolean singleChannel) {
             this.mChannels = channels;
-            this.mPrograms = new ArrayList<>(programs);
+            this.mChannelIds = channelIds;
+            this.mSingleChannel = singleChannel;
+            this.mPrograms = programs;
+            // Group the programs by channel in one pass, as a week long guide has hundreds of
+            // thousands of them
+            Map<String, List<Program>> programsByChannel =
+                    new LinkedHashMap<>(channels.size() * 2);
+            for (int i = 0; i < programs.size(); i++) {
+                List<Program> programsForChannel = programsByChannel.get(programChannelIds.get(i));
+                if (programsForChannel == null) {
+                    programsForChannel = new ArrayList<>();
+                    programsByChannel.put(programChannelIds.get(i), programsForChannel);
+                }
+                programsForChannel.add(programs.get(i));
+            }
+            for (List<Program> programsForChannel : programsByChannel.values()) {
+                // Guides are usually in order already, which the sort checks in one pass
+                Collections.sort(programsForChannel, START_TIME_ORDER);
+            }
+            mProgramsByChannel = Collections.unmodifiableMap(programsByChannel);
             // Place programs into the epg map
-            mProgramMap = new HashMap<>();
-            for (Channel channel: channels) {
-                List<Program> programsForChannel = new ArrayList<>();
-                Iterator<Program> programIterator = programs.iterator();
-                while (programIterator.hasNext()) {
-                    Program program = programIterator.next();
-                    if (program.getChannelId() == channel.getOriginalNetworkId()) {
+            mProgramMap = new HashMap<>(channels.size() * 2);
+            for (int i = 0; i < channels.size(); i++) {
+                Channel channel = channels.get(i);
+                if (mProgramMap.containsKey(channel.getOriginalNetworkId())) {
+                    // The programs belong to the first channel with this id
+                    continue;
+                }
+                List<Program> programsForId = programsByChannel.get(channelIds.get(i));
+                List<Program> programsForChannel = new ArrayList<>(
+                        programsForId == null ? 0 : programsForId.size());
+                if (programsForId != null) {
+                    for (Program program : programsForId) {
                         programsForChannel.add(new Program.Builder(program)
                                 .setChannelId(channel.getId())
                                 .build());
-                        programIterator.remove();
                     }
                 }
                 mProgramMap.put(channel.getOriginalNetworkId(), programsForChannel);
@@ -509,10 +825,34 @@ public class CumulusXmlParser {
             return mPrograms;
         }
 
+        /**
+         * @return The XMLTV id of each channel, in the order of {@link #getChannels()}.
+         */
+        public List<String> getChannelIds() {
+            return mChannelIds;
+        }
+
+        /**
+         * @return True if the whole guide has at most one channel, including the channels which
+         * were not read.
+         */
+        public boolean hasSingleChannel() {
+            return mSingleChannel;
+        }
+
+        /**
+         * @return Every program grouped by its XMLTV channel id, in the order of the guide.
+         * Channels which are not listed in the guide are included. Each channel's programs are
+         * ordered by start time.
+         */
+        public Map<String, List<Program>> getProgramsByChannelId() {
+            return mProgramsByChannel;
+        }
+
         /**
          * Returns a list of programs found by the XmlTvParser for a given channel.
          * @param channel The channel to obtain programs for.
-         * @return A list of programs that belong to that channel.
+         * @return A list of programs that belong to that channel, ordered by start time.
          */
         public List<Program> getPrograms(Channel channel) {
             return mProgramMap.get(channel.getOriginalNetworkId());
@@ -69,8 +69,9 @@ public class HttpFileParser extends AbstractFileParser {
         conn.setConnectTimeout(30000 /* milliseconds */);
         conn.setRequestMethod("GET");
         conn.setDoInput(true);
+        CompressedFeeds.acceptCompression(conn);
         // Starts the query
         conn.connect();
-        return conn.getInputStream();
+        return CompressedFeeds.decompress(conn.getInputStream());
     }
 }
\ No newline at end of file
@@ -6,15 +6,22 @@ import android.util.Log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 
 /**
  * This file parser can be used to read from the device's local filesystem
  * Created by Nick on 5/1/2016.
  */
 public class LocalFileParser extends AbstractFileParser {
+    private static final String TAG = LocalFileParser.class.getSimpleName();
+
     /**
      * @param fileUri The URI of the local file
-     * @param fileLoader Callback which runs when the InputStream is gotten
+     * @param fileLoader Callback which runs when the InputStream is gotten. If it is a
+     *                   {@link MappedFileLoader}, an uncompressed file is mapped into memory
+     *                   instead.
      * @throws FileNotFoundException
      */
     public LocalFileParser(String fileUri, FileLoader fileLoader) throws FileNotFoundException {
@@ -27,7 +34,41 @@ public class LocalFileParser extends AbstractFileParser {
             localFile = new File(Environment.getExternalStorageDirectory(), fileUri.substring(27));
         }
         Log.d(LocalFileParser.class.getSimpleName(), localFile.exists() + "");
+        if (fileLoader instanceof MappedFileLoader) {
+            ByteBuffer buffer = map(localFile);
+            if (buffer != null) {
+                ((MappedFileLoader) fileLoader).onFileMapped(buffer);
+                return;
+            }
+        }
         FileInputStream f = new FileInputStream(localFile);
-        fileLoader.onFileLoaded(f);
+        fileLoader.onFileLoaded(CompressedFeeds.decompress(f));
+    }
+
+    /**
+     * Maps a file into memory, so it can be read without copying it through a stream. The
+     * mapping stays valid after the file is closed.
+     *
+     * @return The contents of the file, or null if it is compressed or can not be mapped.
+     */
+    private static ByteBuffer map(File file) throws FileNotFoundException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return CompressedFeeds.isCompressed(buffer) ? null : buffer;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to map " + file + ": " + e.getMessage());
+            return null;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignored) {
+            }
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,351 @@
+package com.felkertech.cumulustv.fileio;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_AUDIO_ONLY;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_EPG_URL;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_GENRES;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_GENRES_ALT1;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_LOGO;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_NUMBER;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_PLUGIN;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_SPLASH;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_SPLASH_ALT1;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.KEY_COUNTRY;
+
+/**
+ * <p>Reads a UTF-8 playlist straight from its bytes for
+ * {@link M3uParser#parse(ByteBuffer, M3uParser.ChannelVisitor)}. Lines and attributes are found
+ * by scanning the bytes, and only the text which {@link M3uParser.M3uTvChannel#toJsonChannel()}
+ * uses is decoded into Strings. The rest of the playlist is never decoded.</p>
+ *
+ * <p>A buffer backed by an array is scanned in place. Other buffers, like mapped files, are
+ * scanned through a small window which is refilled with bulk copies, as reading them one byte
+ * at a time is several times slower.</p>
+ *
+ * <p>The channels are the same as those read by
+ * {@link M3uParser#parse(java.io.InputStream, M3uParser.ChannelVisitor)}.</p>
+ */
+class M3uBufferReader {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int WINDOW_SIZE = 64 * 1024;
+
+    private static final byte[] TAG_CHANNEL = toBytes("#EXTINF:");
+    private static final byte[] TAG_GROUP = toBytes("##");
+    private static final byte[] TAG_HEADER = toBytes("#EXTM3U");
+    private static final byte[] SCHEME_HTTP = toBytes("http");
+    private static final byte[] SCHEME_RTMP = toBytes("rtmp");
+
+    // Every attribute which a channel reads, so the values of others are never decoded
+    private static final String[] KEPT_ATTRIBUTES = {CH_AUDIO_ONLY, CH_EPG_URL, CH_GENRES,
+            CH_GENRES_ALT1, CH_LOGO, CH_NUMBER, CH_PLUGIN, CH_SPLASH, CH_SPLASH_ALT1};
+    private static final byte[][] KEPT_ATTRIBUTE_BYTES = new byte[KEPT_ATTRIBUTES.length][];
+
+    static {
+        for (int i = 0; i < KEPT_ATTRIBUTES.length; i++) {
+            KEPT_ATTRIBUTE_BYTES[i] = toBytes(KEPT_ATTRIBUTES[i]);
+        }
+    }
+
+    // The part of the buffer which has not been copied into the window yet, or null if the
+    // buffer is scanned in place
+    private final ByteBuffer mRemaining;
+    private byte[] mData;
+    private int mDataEnd;
+    // The start of the next line in mData
+    private int mPosition;
+    private int mLineStart;
+    private int mLineEnd;
+    // Holds display names and groups while their tags are removed
+    private byte[] mText = new byte[256];
+
+    M3uBufferReader(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            mRemaining = null;
+            mData = buffer.array();
+            mPosition = buffer.arrayOffset() + buffer.position();
+            mDataEnd = buffer.arrayOffset() + buffer.limit();
+        } else {
+            mRemaining = buffer.duplicate();
+            mData = new byte[Math.min(WINDOW_SIZE, buffer.remaining())];
+        }
+    }
+
+    /**
+     * @return True if the buffer holds a M3U playlist.
+     */
+    boolean read(M3uParser.ChannelVisitor visitor) {
+        boolean isM3u = false;
+        int count = 0;
+        String country = null;
+        while (nextLine()) {
+            if (lineStartsWith(TAG_CHANNEL)) {
+                isM3u = true;
+                M3uParser.M3uTvChannel channel = readChannelInfo(mLineStart, mLineEnd);
+
+                boolean hasUrl = nextLine();
+                if (hasUrl && (lineStartsWith(SCHEME_HTTP) || lineStartsWith(SCHEME_RTMP))) {
+                    channel.url = decode(mLineStart, mLineEnd);
+                }
+
+                if (country != null) {
+                    channel.put(KEY_COUNTRY, country);
+                }
+                channel.put("count", String.valueOf(count++));
+                if (channel.url != null && !visitor.onChannel(channel)) {
+                    return true;
+                }
+                if (!hasUrl) {
+                    break;
+                }
+            } else if (lineStartsWith(TAG_GROUP)) {
+                // Interpret as a country-group
+                country = readCountry(mLineStart, mLineEnd);
+            } else if (lineStartsWith(TAG_HEADER)) {
+                isM3u = true;
+            }
+        }
+        return isM3u;
+    }
+
+    /**
+     * Finds the next line, which ends with '\n', '\r' or "\r\n" like
+     * {@link java.io.BufferedReader#readLine()}. The previous line may be moved or overwritten.
+     *
+     * @return False at the end of the buffer.
+     */
+    private boolean nextLine() {
+        int end = mPosition;
+        while (true) {
+            while (end < mDataEnd && mData[end] != '\n' && mData[end] != '\r') {
+                end++;
+            }
+            // A line break needs one byte after it to tell "\r" from "\r\n"
+            if (end + 1 < mDataEnd || !hasMoreData()) {
+                break;
+            }
+            end -= fill();
+        }
+        if (mPosition >= mDataEnd) {
+            return false;
+        }
+        mLineStart = mPosition;
+        mLineEnd = end;
+        if (end + 1 < mDataEnd && mData[end] == '\r' && mData[end + 1] == '\n') {
+            mPosition = end + 2;
+        } else {
+            mPosition = end + 1;
+        }
+        return true;
+    }
+
+    private boolean hasMoreData() {
+        return mRemaining != null && mRemaining.hasRemaining();
+    }
+
+    /**
+     * Moves the current line to the start of the window and copies more of the buffer after it.
+     *
+     * @return How far the line moved back.
+     */
+    private int fill() {
+        int shift = mPosition;
+        int length = mDataEnd - mPosition;
+        if (length == mData.length) {
+            // The line is longer than the window
+            byte[] data = new byte[mData.length * 2];
+            System.arraycopy(mData, mPosition, data, 0, length);
+            mData = data;
+        } else {
+            System.arraycopy(mData, mPosition, mData, 0, length);
+        }
+        int count = Math.min(mData.length - length, mRemaining.remaining());
+        mRemaining.get(mData, length, count);
+        mPosition = 0;
+        mDataEnd = length + count;
+        return shift;
+    }
+
+    private boolean lineStartsWith(byte[] prefix) {
+        return regionMatches(mLineStart, mLineEnd, prefix);
+    }
+
+    private boolean regionMatches(int start, int end, byte[] bytes) {
+        if (end - start < bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (mData[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads a #EXTINF line the same way as M3uParser, but only keeps the attributes a channel
+     * uses.
+     */
+    private M3uParser.M3uTvChannel readChannelInfo(int start, int end) {
+        M3uParser.M3uTvChannel channel = new M3uParser.M3uTvChannel();
+        byte[] data = mData;
+        int position = start;
+        while (position < end) {
+            byte b = data[position];
+            if (b == ',') {
+                position++;
+                break;
+            } else if (b == ' ' || b == '\t') {
+                position++;
+                continue;
+            }
+            // Read the attribute up to its ':' or '=' divider
+            int attributeStart = position;
+            while (position < end) {
+                b = data[position];
+                if (b == ':' || b == '=' || b == ' ' || b == '\t' || b == ',') {
+                    break;
+                }
+                position++;
+            }
+            String attribute = getKeptAttribute(attributeStart, position);
+            if (position == end || (b != ':' && b != '=')) {
+                // An attribute without a value
+                if (attribute != null) {
+                    channel.put(attribute, "");
+                }
+                continue;
+            }
+            position++;
+            int valueStart;
+            int valueEnd;
+            if (position < end && data[position] == '"') {
+                valueStart = position + 1;
+                valueEnd = indexOf('"', valueStart, end);
+                if (valueEnd == -1) {
+                    // The quote is never closed, so the line has no display name
+                    valueEnd = end;
+                    position = end;
+                } else {
+                    position = valueEnd + 1;
+                }
+            } else {
+                valueStart = position;
+                while (position < end) {
+                    b = data[position];
+                    if (b == ' ' || b == '\t' || b == ',') {
+                        break;
+                    }
+                    position++;
+                }
+                valueEnd = position;
+            }
+            if (attribute != null) {
+                channel.put(attribute, decode(valueStart, valueEnd));
+            }
+        }
+        channel.displayName = position < end ? readDisplayName(position, end) : "";
+        return channel;
+    }
+
+    /**
+     * @return The name of the attribute between the given indices if a channel uses it,
+     * otherwise null.
+     */
+    private String getKeptAttribute(int start, int end) {
+        for (int i = 0; i < KEPT_ATTRIBUTE_BYTES.length; i++) {
+            if (KEPT_ATTRIBUTE_BYTES[i].length == end - start &&
+                    regionMatches(start, end, KEPT_ATTRIBUTE_BYTES[i])) {
+                return KEPT_ATTRIBUTES[i];
+            }
+        }
+        return null;
+    }
+
+    private int indexOf(char c, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (mData[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return The trimmed name without any tags in square brackets, like M3uParser.removeTags.
+     */
+    private String readDisplayName(int start, int end) {
+        while (start < end && (mData[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (mData[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        int tagStart = indexOf('[', start, end);
+        if (tagStart == -1) {
+            return decode(start, end);
+        }
+        int length = 0;
+        int position = start;
+        while (tagStart != -1) {
+            int tagEnd = indexOf(']', tagStart + 1, end);
+            if (tagEnd == -1) {
+                break;
+            }
+            length = appendText(position, tagStart, length);
+            position = tagEnd + 1;
+            tagStart = indexOf('[', position, end);
+        }
+        length = appendText(position, end, length);
+        return new String(mText, 0, length, UTF_8);
+    }
+
+    /**
+     * @return The line without any '#', trimmed, like M3uParser.getCountry.
+     */
+    private String readCountry(int start, int end) {
+        ensureTextCapacity(end - start);
+        int length = 0;
+        for (int i = start; i < end; i++) {
+            if (mData[i] != '#') {
+                mText[length++] = mData[i];
+            }
+        }
+        int textStart = 0;
+        while (textStart < length && (mText[textStart] & 0xff) <= ' ') {
+            textStart++;
+        }
+        while (length > textStart && (mText[length - 1] & 0xff) <= ' ') {
+            length--;
+        }
+        return new String(mText, textStart, length - textStart, UTF_8);
+    }
+
+    private String decode(int start, int end) {
+        return new String(mData, start, end - start, UTF_8);
+    }
+
+    /**
+     * Appends bytes of the current line to {@link #mText}.
+     *
+     * @return The new length of the text.
+     */
+    private int appendText(int start, int end, int length) {
+        ensureTextCapacity(length + end - start);
+        System.arraycopy(mData, start, mText, length, end - start);
+        return length + end - start;
+    }
+
+    private void ensureTextCapacity(int capacity) {
+        if (capacity > mText.length) {
+            byte[] text = new byte[Math.max(capacity, mText.length * 2)];
+            System.arraycopy(mText, 0, text, 0, mText.length);
+            mText = text;
+        }
+    }
+
+    private static byte[] toBytes(String ascii) {
+        return ascii.getBytes(UTF_8);
+    }
+}
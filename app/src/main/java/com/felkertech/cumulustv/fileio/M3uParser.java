@@ -8,12 +8,16 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_AUDIO_ONLY;
 import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_EPG_URL;
@@ -32,23 +36,23 @@ import static com.felkertech.cumulustv.fileio.M3uParser.Constants.KEY_COUNTRY;
 public class
 M3uParser {
     private static final String TAG = M3uParser.class.getSimpleName();
+    private static final boolean DEBUG = false;
 
-    private static int indexOf(String haystack, String... needles) {
-        int index = haystack.length();
-        for (String n : needles) {
-            int needleIndex = haystack.indexOf(n);
-            index = (index > needleIndex && needleIndex > -1) ? needleIndex : index;
-        }
-        return index;
-    }
+    /** The number of channels in each chunk which {@link #parseParallel} parses. */
+    public static final int CHUNK_SIZE = 1000;
 
-    private static int indexOf(String haystack, int startAt, String... needles) {
-        int index = haystack.length();
-        for (String n : needles) {
-            int needleIndex = haystack.indexOf(n, startAt);
-            index = (index > needleIndex && needleIndex > -1) ? needleIndex : index;
-        }
-        return index;
+    private static ForkJoinPool sParsePool;
+
+    /**
+     * Receives the channels of a playlist from {@link #parse(InputStream, ChannelVisitor)} as
+     * soon as each one has been read.
+     */
+    public interface ChannelVisitor {
+        /**
+         * @param channel The next channel which has a url. Channels without one are skipped.
+         * @return True to keep reading, or false to stop.
+         */
+        boolean onChannel(M3uTvChannel channel);
     }
 
     private static String getKey(HashMap<String, String> map, String... keys) {
@@ -60,109 +64,349 @@ M3uParser {
         return null;
     }
 
-    private static int getLastComma(String haystack) {
-        int comma = -1;
-        for (int i = 0; i < haystack.length(); i++) {
-//            Log.d(TAG, "gLC " + i + " " + comma);
-            int c2 = haystack.indexOf(",", comma + 1);
-            /*Log.d(TAG, c2 + " " + haystack.substring(c2 - 1) + Pattern.matches("[\\\" (-1)],(?!\\\")", haystack.substring(c2 - 1)));
-            Log.d(TAG, Pattern.compile("[\\\" (-1)],(?!\\\")").toString());
-            Log.d(TAG, ""  + Pattern.matches("[,]", "\","));*/
-            String commaAfter = "";
-            try {
-                commaAfter = haystack.substring(c2 - 1);
-            } catch (StringIndexOutOfBoundsException e) {
-                throw new StringIndexOutOfBoundsException(e.getMessage() +
-                        "; Error occured for '" + haystack + "', " + c2 + " was best guess");
-            }
-            Log.d(TAG, "cA " + commaAfter);
-            if ((commaAfter.substring(0,1).equals("\"") || commaAfter.substring(0,1).equals(" ") || commaAfter.substring(0,1).equals("1") ) &&
-                    commaAfter.substring(1,2).equals(",") && commaAfter.indexOf("\"", 2) == -1) {
-                Log.d(TAG, "Update comma to " + c2 + " from " + comma);
-                comma = (c2 > comma) ? c2 : comma;
-                return comma;
-            } else {
-                comma = (c2 > comma) ? c2 : comma;
+    /**
+     * Reads a whole playlist into memory. Use {@link #parse(InputStream, ChannelVisitor)} for
+     * playlists which may be large.
+     *
+     * @return The channels which have a url, or null if the stream is not a M3U playlist.
+     */
+    public static TvListing parse(InputStream inputStream) throws IOException {
+        if (inputStream == null) {
+            return null;
+        }
+        final List<M3uTvChannel> channels = new ArrayList<>();
+        boolean isM3u = parse(inputStream, new ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uTvChannel channel) {
+                channels.add(channel);
+                return true;
             }
+        });
+        if (DEBUG) {
+            Log.d(TAG, "Done parsing " + channels.size() + " channels");
         }
-        return comma;
+        if (!isM3u) {
+            return null;
+        }
+        return new TvListing(channels);
     }
 
-    public static TvListing parse(InputStream inputStream) throws IOException {
+    /**
+     * Reads a playlist one channel at a time. Only the current channel and the current country
+     * group are held in memory, so playlists of any size can be read.
+     *
+     * @param inputStream The playlist.
+     * @param visitor Receives each channel which has a url, in playlist order.
+     * @return True if the stream is a M3U playlist.
+     */
+    public static boolean parse(InputStream inputStream, ChannelVisitor visitor)
+            throws IOException {
         if (inputStream == null) {
-            return null;
+            return false;
         }
-        BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
-        String line;
-        List<M3uTvChannel> channels = new ArrayList<>();
-        Map<String, String> globalAttributes = new HashMap<>(); // Unused for now
-        boolean isM3u = false;
+        ParseState state = new ParseState();
+        readChannels(new BufferedReader(new InputStreamReader(inputStream)), state, visitor);
+        return state.isM3u;
+    }
 
-        while ((line = in.readLine()) != null) {
-            Log.d(TAG, "Next line: " + line);
-            if (line.startsWith("#EXTINF:")) { // This is a channel
-                isM3u = true;
-                M3uTvChannel channel = new M3uTvChannel();
-                String channelAttributes = line.substring(0, getLastComma(line));
-                String channelName = line.substring(getLastComma(line) + 1).trim()
-                        .replaceAll("\\[\\/?(COLOR |)[^\\]]*\\]", "");
-                while (channelAttributes.length() > 0) { // Chip away at data until complete
-                    Log.d(TAG, channelAttributes);
-                    int valueDivider = indexOf(channelAttributes, ":", "=");
-                    String attribute = channelAttributes.substring(0, valueDivider);
-                    int valueIndex = valueDivider + 1;
-                    int valueEnd = indexOf(channelAttributes, valueIndex, " ");
-                    int variableEnd = valueEnd + 1;
-                    if (valueEnd == -1) {
-                        valueEnd = channelAttributes.length(); // We're at the end
-                    }
-                    try {
-                        if (channelAttributes.charAt(valueDivider + 1) == '"') {
-                            valueIndex++;
-                            valueEnd = channelAttributes.indexOf("\"", valueIndex);
-                            variableEnd = valueEnd + 2; // '" '
+    /**
+     * Reads a playlist one channel at a time straight from its UTF-8 bytes, such as a file which
+     * was mapped into memory with {@link java.nio.channels.FileChannel#map}. Lines and attributes
+     * are found without decoding the playlist, and only the text which
+     * {@link M3uTvChannel#toJsonChannel()} uses is decoded. The position of the buffer is not
+     * changed.
+     *
+     * @param playlist The playlist, from its position to its limit.
+     * @param visitor Receives each channel which has a url, in playlist order.
+     * @return True if the buffer holds a M3U playlist.
+     */
+    public static boolean parse(ByteBuffer playlist, ChannelVisitor visitor) {
+        return new M3uBufferReader(playlist).read(visitor);
+    }
+
+    /**
+     * Reads a playlist like {@link #parse(InputStream, ChannelVisitor)}, but parses it on several
+     * threads. This is faster for playlists with many thousands of channels, at the cost of
+     * holding a few chunks of the playlist in memory.
+     *
+     * The playlist is split into chunks of {@link #CHUNK_SIZE} channels, which are parsed on a
+     * fork/join pool while the rest of the stream is still being read. The visitor is called on
+     * the calling thread with the channels in playlist order, exactly as the sequential parse
+     * would call it.
+     *
+     * @param inputStream The playlist.
+     * @param visitor Receives each channel which has a url, in playlist order.
+     * @return True if the stream is a M3U playlist.
+     */
+    public static boolean parseParallel(InputStream inputStream, ChannelVisitor visitor)
+            throws IOException {
+        if (inputStream == null) {
+            return false;
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(inputStream));
+        ForkJoinPool pool = getParsePool();
+        int maxPendingChunks = pool.getParallelism() * 2;
+        ArrayDeque<ForkJoinTask<List<M3uTvChannel>>> chunks = new ArrayDeque<>();
+        // Follows the playlist just closely enough to know the state at the start of each chunk
+        ParseState state = new ParseState();
+        ParseState chunkState = state.copy();
+        StringBuilder chunk = new StringBuilder();
+        int chunkChannels = 0;
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("#EXTINF:")) {
+                    if (chunkChannels == CHUNK_SIZE) {
+                        chunks.add(pool.submit(new ChunkTask(chunk.toString(), chunkState)));
+                        chunk.setLength(0);
+                        chunkState = state.copy();
+                        chunkChannels = 0;
+                        if (chunks.size() > maxPendingChunks &&
+                                !visitChunk(chunks.poll(), visitor)) {
+                            return true;
                         }
-                        String value = channelAttributes.substring(valueIndex, valueEnd);
-                        channel.put(attribute, value);
-                    } catch (StringIndexOutOfBoundsException e) {
-                        throw new StringIndexOutOfBoundsException("Parsing error: '" + channelAttributes
-                            + "' does not fit into range " + valueIndex + " - " + valueEnd +
-                                " for line " + line);
                     }
-                    if (variableEnd > channelAttributes.length()) {
-                        channelAttributes = "";
-                    } else {
-                        channelAttributes = channelAttributes.substring(variableEnd).trim();
+                    state.isM3u = true;
+                    state.count++;
+                    chunkChannels++;
+                    chunk.append(line).append('\n');
+                    // The line after a channel is always its url, whatever it looks like
+                    line = in.readLine();
+                    if (line == null) {
+                        break;
                     }
+                    chunk.append(line).append('\n');
+                } else if (line.startsWith("##")) {
+                    state.country = getCountry(line);
+                    chunk.append(line).append('\n');
+                } else if (line.startsWith("#EXTM3U")) {
+                    state.isM3u = true;
                 }
+            }
+            if (chunkChannels > 0) {
+                chunks.add(pool.submit(new ChunkTask(chunk.toString(), chunkState)));
+            }
+            while (!chunks.isEmpty()) {
+                if (!visitChunk(chunks.poll(), visitor)) {
+                    break;
+                }
+            }
+            return state.isM3u;
+        } finally {
+            for (ForkJoinTask<List<M3uTvChannel>> pendingChunk : chunks) {
+                pendingChunk.cancel(false);
+            }
+        }
+    }
+
+    private static synchronized ForkJoinPool getParsePool() {
+        if (sParsePool == null) {
+            sParsePool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sParsePool;
+    }
+
+    /**
+     * @return False if the visitor stopped the parse.
+     */
+    private static boolean visitChunk(ForkJoinTask<List<M3uTvChannel>> chunk,
+            ChannelVisitor visitor) {
+        for (M3uTvChannel channel : chunk.join()) {
+            if (!visitor.onChannel(channel)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses one chunk of a playlist, starting from the count and country group which were
+     * current where the chunk begins.
+     */
+    private static class ChunkTask extends RecursiveTask<List<M3uTvChannel>> {
+        private final String mChunk;
+        private final ParseState mState;
+
+        private ChunkTask(String chunk, ParseState state) {
+            mChunk = chunk;
+            mState = state;
+        }
+
+        @Override
+        protected List<M3uTvChannel> compute() {
+            final List<M3uTvChannel> channels = new ArrayList<>(CHUNK_SIZE);
+            try {
+                readChannels(new BufferedReader(new StringReader(mChunk)), mState,
+                        new ChannelVisitor() {
+                    @Override
+                    public boolean onChannel(M3uTvChannel channel) {
+                        channels.add(channel);
+                        return true;
+                    }
+                });
+            } catch (IOException e) {
+                // A StringReader does not throw
+                throw new IllegalStateException(e);
+            }
+            return channels;
+        }
+    }
+
+    /**
+     * What the parser needs to remember between channels.
+     */
+    private static class ParseState {
+        private boolean isM3u;
+        // Numbers channels which do not have one, counting those without a url as well
+        private int count;
+        private String country;
+
+        private ParseState copy() {
+            ParseState copy = new ParseState();
+            copy.isM3u = isM3u;
+            copy.count = count;
+            copy.country = country;
+            return copy;
+        }
+    }
+
+    /**
+     * Reads channels until the end of the stream, updating the state as it goes.
+     *
+     * @return False if the visitor stopped the parse.
+     */
+    private static boolean readChannels(BufferedReader in, ParseState state,
+            ChannelVisitor visitor) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.startsWith("#EXTINF:")) { // This is a channel
+                state.isM3u = true;
+                M3uTvChannel channel = parseChannelInfo(line);
 
                 line = in.readLine();
-                Log.d(TAG, "URL: " + line);
-                if (line.startsWith("http")) {
-                    channel.url = line;
-                } else if (line.startsWith("rtmp")) {
+                if (line != null && (line.startsWith("http") || line.startsWith("rtmp"))) {
                     channel.url = line;
                 }
 
                 // Set channel properties
-                channel.displayName = channelName;
-                channel.m3uAttributes.putAll(globalAttributes);
-                channel.put("count", String.valueOf(channels.size()));
-                channels.add(channel);
+                if (state.country != null) {
+                    channel.put(KEY_COUNTRY, state.country);
+                }
+                channel.put("count", String.valueOf(state.count++));
+                if (channel.url == null) {
+                    if (DEBUG) {
+                        Log.w(TAG, channel.displayName + " has no url!");
+                    }
+                } else if (!visitor.onChannel(channel)) {
+                    return false;
+                }
+                if (line == null) {
+                    break;
+                }
             } else if (line.startsWith("##")) {
                 // Interpret as a country-group
-                globalAttributes.put(KEY_COUNTRY, line.replaceAll("#", "").trim());
+                state.country = getCountry(line);
             } else if (line.startsWith("#EXTM3U")) {
-                isM3u = true;
+                state.isM3u = true;
             }
         }
-        TvListing tvl = new TvListing(channels);
-        Log.d(TAG, "Done parsing");
-        Log.d(TAG, tvl.toString());
-        if (!isM3u) {
-            return null;
+        return true;
+    }
+
+    private static String getCountry(String line) {
+        return line.replaceAll("#", "").trim();
+    }
+
+    /**
+     * Reads the attributes and display name of a channel from its #EXTINF line in a single pass.
+     *
+     * The line is a list of attributes, like <code>#EXTINF:-1 tvg-logo="logo.png"</code>,
+     * followed by a comma and the display name. Values may be quoted, and a comma inside quotes
+     * does not end the attributes. The duration is stored under the "#EXTINF" attribute.
+     */
+    private static M3uTvChannel parseChannelInfo(String line) {
+        M3uTvChannel channel = new M3uTvChannel();
+        int length = line.length();
+        int position = 0;
+        while (position < length) {
+            char c = line.charAt(position);
+            if (c == ',') {
+                position++;
+                break;
+            } else if (c == ' ' || c == '\t') {
+                position++;
+                continue;
+            }
+            // Read the attribute up to its ':' or '=' divider
+            int attributeStart = position;
+            while (position < length) {
+                c = line.charAt(position);
+                if (c == ':' || c == '=' || c == ' ' || c == '\t' || c == ',') {
+                    break;
+                }
+                position++;
+            }
+            String attribute = line.substring(attributeStart, position);
+            if (position == length || (c != ':' && c != '=')) {
+                // An attribute without a value
+                channel.put(attribute, "");
+                continue;
+            }
+            position++;
+            if (position < length && line.charAt(position) == '"') {
+                int valueEnd = line.indexOf('"', position + 1);
+                if (valueEnd == -1) {
+                    // The quote is never closed, so the line has no display name
+                    channel.put(attribute, line.substring(position + 1));
+                    position = length;
+                } else {
+                    channel.put(attribute, line.substring(position + 1, valueEnd));
+                    position = valueEnd + 1;
+                }
+            } else {
+                int valueStart = position;
+                while (position < length) {
+                    c = line.charAt(position);
+                    if (c == ' ' || c == '\t' || c == ',') {
+                        break;
+                    }
+                    position++;
+                }
+                channel.put(attribute, line.substring(valueStart, position));
+            }
         }
-        return new TvListing(channels);
+        channel.displayName = position < length ? removeTags(line, position, length) : "";
+        return channel;
+    }
+
+    /**
+     * @return The trimmed text between the given indices, without any tags in square brackets
+     * such as <code>[COLOR red]</code> and <code>[/COLOR]</code>.
+     */
+    private static String removeTags(String line, int start, int end) {
+        while (start < end && line.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && line.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        int tagStart = line.indexOf('[', start);
+        if (tagStart == -1 || tagStart >= end) {
+            return line.substring(start, end);
+        }
+        StringBuilder name = new StringBuilder(end - start);
+        int position = start;
+        while (tagStart != -1 && tagStart < end) {
+            int tagEnd = line.indexOf(']', tagStart + 1);
+            if (tagEnd == -1 || tagEnd >= end) {
+                break;
+            }
+            name.append(line, position, tagStart);
+            position = tagEnd + 1;
+            tagStart = line.indexOf('[', position);
+        }
+        name.append(line, position, end);
+        return name.toString();
     }
 
     public static class TvListing {
@@ -175,7 +419,9 @@ M3uParser {
             while(xmlTvChannelIterator.hasNext()) {
                 M3uTvChannel tvChannel = xmlTvChannelIterator.next();
                 if(tvChannel.url == null) {
-                    Log.e(TAG, tvChannel.displayName+" has no url!");
+                    if (DEBUG) {
+                        Log.e(TAG, tvChannel.displayName + " has no url!");
+                    }
                     xmlTvChannelIterator.remove();
                 }
 
@@ -188,19 +434,19 @@ M3uParser {
 
         @Override
         public String toString() {
-            String out = "";
+            StringBuilder out = new StringBuilder();
             for(M3uTvChannel tvChannel: channels) {
-                out += tvChannel.toString();
+                out.append(tvChannel.toString());
             }
-            return out;
+            return out.toString();
         }
 
         public String getChannelList() {
-            String out = "";
+            StringBuilder out = new StringBuilder();
             for(M3uTvChannel tvChannel: channels) {
-                out += tvChannel.displayName+"\n";
+                out.append(tvChannel.displayName).append("\n");
             }
-            return out;
+            return out.toString();
         }
     }
 
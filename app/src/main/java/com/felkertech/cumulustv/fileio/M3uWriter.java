@@ -0,0 +1,132 @@
+package com.felkertech.cumulustv.fileio;
+
+import android.support.annotation.Nullable;
+
+import com.felkertech.cumulustv.model.JsonChannel;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CHANNEL_TAG;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_AUDIO_ONLY;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_EPG_URL;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_GENRES;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_LOGO;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_NUMBER;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_PLUGIN;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.CH_SPLASH;
+import static com.felkertech.cumulustv.fileio.M3uParser.Constants.HEADER_TAG;
+
+/**
+ * Writes channels as a M3U playlist which {@link M3uParser} can read back. Each channel is written
+ * straight to the output as it is reached, so the playlist is never held in memory as a whole.
+ */
+public class M3uWriter {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Chooses which channels are written.
+     */
+    public interface ChannelFilter {
+        boolean accept(JsonChannel channel);
+    }
+
+    /**
+     * @return A filter which accepts channels that have the given genre.
+     */
+    public static ChannelFilter withGenre(final String genre) {
+        return new ChannelFilter() {
+            @Override
+            public boolean accept(JsonChannel channel) {
+                for (String channelGenre : channel.getGenres()) {
+                    if (genre.equals(channelGenre)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Writes a playlist to a stream using UTF-8. The stream is flushed but not closed.
+     *
+     * @param out The stream to write to.
+     * @param channels The channels, in the order they should be written.
+     * @param filter Chooses which channels are written, or null to write all of them.
+     * @return The number of channels which were written.
+     */
+    public static int write(OutputStream out, List<JsonChannel> channels,
+            @Nullable ChannelFilter filter) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_SIZE);
+        int written = write(writer, channels, filter);
+        writer.flush();
+        return written;
+    }
+
+    /**
+     * Writes a playlist. The writer is not flushed or closed.
+     *
+     * @param writer The writer to write to, which should be buffered.
+     * @param channels The channels, in the order they should be written.
+     * @param filter Chooses which channels are written, or null to write all of them.
+     * @return The number of channels which were written.
+     */
+    public static int write(Writer writer, List<JsonChannel> channels,
+            @Nullable ChannelFilter filter) throws IOException {
+        writer.write(HEADER_TAG);
+        writer.write('\n');
+        int written = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            JsonChannel channel = channels.get(i);
+            if (filter == null || filter.accept(channel)) {
+                writeChannel(writer, channel);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    private static void writeChannel(Writer writer, JsonChannel channel) throws IOException {
+        writer.write(CHANNEL_TAG);
+        writeAttribute(writer, CH_NUMBER, channel.getNumber());
+        if (channel.hasLogo()) {
+            writeAttribute(writer, CH_LOGO, channel.getLogo());
+        }
+        if (channel.isAudioOnly()) {
+            writer.write(' ');
+            writer.write(CH_AUDIO_ONLY);
+            writer.write("=1");
+        }
+        if (channel.getEpgUrl() != null) {
+            writeAttribute(writer, CH_EPG_URL, channel.getEpgUrl());
+        }
+        writeAttribute(writer, CH_GENRES, channel.getGenresString());
+        if (channel.getPluginSource() != null) {
+            writeAttribute(writer, CH_PLUGIN, channel.getPluginSource().toString());
+        }
+        if (channel.hasSplashscreen()) {
+            writeAttribute(writer, CH_SPLASH, channel.getSplashscreen());
+        }
+        writer.write(", ");
+        writer.write(String.valueOf(channel.getName()));
+        writer.write('\n');
+        writer.write(String.valueOf(channel.getMediaUrl()));
+        writer.write('\n');
+    }
+
+    private static void writeAttribute(Writer writer, String attribute, String value)
+            throws IOException {
+        writer.write(' ');
+        writer.write(attribute);
+        writer.write("=\"");
+        writer.write(String.valueOf(value));
+        writer.write('"');
+    }
+}
@@ -0,0 +1,153 @@
+package com.felkertech.cumulustv.fileio;
+
+import java.text.ParseException;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Reads the times of XMLTV guides, like <code>20170101093000 +0100</code>. Guides have a start
+ * and stop time for every program, so this works out the time from the digits directly instead
+ * of using a {@link java.text.SimpleDateFormat}, which is slow and can not be shared between
+ * threads.</p>
+ *
+ * <p>As in the XMLTV DTD, the time may be cut short after the year, month, day, hour or minute,
+ * and UTC is used if there is no time zone. Zones are either an offset like <code>+0100</code>,
+ * <code>+01:00</code> or <code>+01</code>, or a name like <code>UTC</code> or
+ * <code>Europe/Paris</code>. Like a lenient SimpleDateFormat, fields which are out of range roll
+ * over into the next one, and text after the zone is ignored.</p>
+ */
+public final class XmlTvTime {
+    private static final long MINUTE_MS = 60 * 1000;
+    private static final long HOUR_MS = 60 * MINUTE_MS;
+    private static final long DAY_MS = 24 * HOUR_MS;
+
+    // Zones found by name, which are looked up once as TimeZone.getTimeZone is slow
+    private static final Map<String, TimeZone> ZONES = new ConcurrentHashMap<>();
+
+    private XmlTvTime() {
+    }
+
+    /**
+     * @param value A time from a XMLTV guide.
+     * @return The time in milliseconds since the epoch.
+     * @throws ParseException If the value is not a XMLTV time.
+     */
+    public static long parse(String value) throws ParseException {
+        int length = value.length();
+        int digits = 0;
+        while (digits < length && isDigit(value.charAt(digits))) {
+            digits++;
+        }
+        if (digits < 4 || digits > 14 || digits % 2 != 0) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", digits);
+        }
+        int year = readNumber(value, 0, 4);
+        int month = digits >= 6 ? readNumber(value, 4, 6) : 1;
+        int day = digits >= 8 ? readNumber(value, 6, 8) : 1;
+        int hour = digits >= 10 ? readNumber(value, 8, 10) : 0;
+        int minute = digits >= 12 ? readNumber(value, 10, 12) : 0;
+        int second = digits >= 14 ? readNumber(value, 12, 14) : 0;
+        long localMs = toEpochDay(year, month, day) * DAY_MS + hour * HOUR_MS
+                + minute * MINUTE_MS + second * 1000L;
+
+        int zoneStart = digits;
+        while (zoneStart < length && value.charAt(zoneStart) == ' ') {
+            zoneStart++;
+        }
+        if (zoneStart == length) {
+            return localMs;
+        }
+        char sign = value.charAt(zoneStart);
+        if (sign == '+' || sign == '-') {
+            return localMs - readOffset(value, zoneStart);
+        }
+        int zoneEnd = value.indexOf(' ', zoneStart);
+        TimeZone zone = getZone(value.substring(zoneStart, zoneEnd == -1 ? length : zoneEnd));
+        if (zone == null) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", zoneStart);
+        }
+        // The offset at the local time, which is close enough to find the offset at the time
+        return localMs - zone.getOffset(localMs - zone.getOffset(localMs));
+    }
+
+    /**
+     * Reads an offset like +0100, +01:00 or +01.
+     *
+     * @return The offset from UTC in milliseconds.
+     */
+    private static long readOffset(String value, int start) throws ParseException {
+        int position = start + 1;
+        int digits = 0;
+        int hours = 0;
+        int minutes = 0;
+        while (position < value.length() && digits < 4) {
+            char c = value.charAt(position);
+            if (c == ':' && digits == 2) {
+                position++;
+                continue;
+            } else if (!isDigit(c)) {
+                break;
+            }
+            if (digits < 2) {
+                hours = hours * 10 + (c - '0');
+            } else {
+                minutes = minutes * 10 + (c - '0');
+            }
+            digits++;
+            position++;
+        }
+        if (digits != 2 && digits != 4) {
+            throw new ParseException("Unparseable date: \"" + value + "\"", start);
+        }
+        long offset = hours * HOUR_MS + minutes * MINUTE_MS;
+        return value.charAt(start) == '-' ? -offset : offset;
+    }
+
+    private static TimeZone getZone(String id) {
+        TimeZone zone = ZONES.get(id);
+        if (zone == null) {
+            zone = TimeZone.getTimeZone(id);
+            // Unknown ids give GMT rather than an error
+            if (zone.getID().equals("GMT") && !id.equals("GMT") && !id.equals("UTC")
+                    && !id.equals("Z")) {
+                return null;
+            }
+            ZONES.put(id, zone);
+        }
+        return zone;
+    }
+
+    /**
+     * @return The number of days from 1970-01-01 to the date, where months and days out of range
+     * roll over.
+     */
+    private static long toEpochDay(long year, int month, int day) {
+        // Bring the month into range first, as a lenient calendar would
+        int monthIndex = month - 1;
+        year += monthIndex >= 0 ? monthIndex / 12 : (monthIndex - 11) / 12;
+        monthIndex = ((monthIndex % 12) + 12) % 12;
+        // Count years from March, so the leap day is at the end of the year
+        if (monthIndex < 2) {
+            year--;
+        }
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long shiftedMonth = monthIndex < 2 ? monthIndex + 10 : monthIndex - 2;
+        long dayOfYear = (153 * shiftedMonth + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    private static int readNumber(String value, int start, int end) {
+        int number = 0;
+        for (int i = start; i < end; i++) {
+            number = number * 10 + (value.charAt(i) - '0');
+        }
+        return number;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+}
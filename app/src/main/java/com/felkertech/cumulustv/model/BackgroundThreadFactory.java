@@ -0,0 +1,52 @@
+package com.felkertech.cumulustv.model;
+
+import android.os.Process;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates threads which run at background priority, so network work does not compete with the
+ * UI thread. Threads are named after their owner.
+ */
+final class BackgroundThreadFactory implements ThreadFactory {
+    /** How long an idle thread is kept before it exits. */
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String mName;
+    private final AtomicInteger mCount = new AtomicInteger();
+
+    BackgroundThreadFactory(String name) {
+        mName = name;
+    }
+
+    /**
+     * Creates a pool of at most the given number of background threads. The threads exit once
+     * they have been idle for a while, so the pool does not hold on to them between refreshes.
+     *
+     * @param name The name of the owner, used to name the threads.
+     * @param threads The most tasks which run at the same time.
+     */
+    static ExecutorService newThreadPool(String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new BackgroundThreadFactory(name));
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        return new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }
+        }, mName + "-" + mCount.incrementAndGet());
+    }
+}
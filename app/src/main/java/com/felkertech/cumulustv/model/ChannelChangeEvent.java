@@ -0,0 +1,111 @@
+package com.felkertech.cumulustv.model;
+
+import android.support.annotation.Nullable;
+
+/**
+ * <p>Describes a single change to the channels of the {@link ChannelDatabase}.</p>
+ *
+ * <p>Every event which is published gets a sequence number one higher than the previous one, so
+ * a consumer which remembers the last sequence it applied can later catch up with everything it
+ * missed. See {@link ChannelDatabase#subscribe(ChannelChangeLog.Listener, long)}.</p>
+ */
+public final class ChannelChangeEvent {
+    /** A channel was added. {@link #getNewChannel()} is the channel. */
+    public static final int TYPE_ADDED = 1;
+    /** A channel was removed. {@link #getOldChannel()} is the channel. */
+    public static final int TYPE_REMOVED = 2;
+    /** A channel was edited. Both the old and the new version of the channel are set. */
+    public static final int TYPE_UPDATED = 3;
+    /** The channels of a {@link JsonListing} changed. {@link #getListingUrl()} is the listing. */
+    public static final int TYPE_LISTING_REFRESHED = 4;
+    /**
+     * Any channel may have changed, such as after an import or when the changes a consumer asked
+     * for are no longer known. The whole lineup should be read again.
+     */
+    public static final int TYPE_RESET = 5;
+
+    private final long mSequence;
+    private final int mType;
+    private final JsonChannel mOldChannel;
+    private final JsonChannel mNewChannel;
+    private final String mListingUrl;
+
+    private ChannelChangeEvent(long sequence, int type, JsonChannel oldChannel,
+            JsonChannel newChannel, String listingUrl) {
+        mSequence = sequence;
+        mType = type;
+        mOldChannel = oldChannel;
+        mNewChannel = newChannel;
+        mListingUrl = listingUrl;
+    }
+
+    static ChannelChangeEvent added(JsonChannel channel) {
+        return new ChannelChangeEvent(0, TYPE_ADDED, null, channel, null);
+    }
+
+    static ChannelChangeEvent removed(JsonChannel channel) {
+        return new ChannelChangeEvent(0, TYPE_REMOVED, channel, null, null);
+    }
+
+    static ChannelChangeEvent updated(JsonChannel oldChannel, JsonChannel newChannel) {
+        return new ChannelChangeEvent(0, TYPE_UPDATED, oldChannel, newChannel, null);
+    }
+
+    static ChannelChangeEvent listingRefreshed(String listingUrl) {
+        return new ChannelChangeEvent(0, TYPE_LISTING_REFRESHED, null, null, listingUrl);
+    }
+
+    static ChannelChangeEvent reset() {
+        return new ChannelChangeEvent(0, TYPE_RESET, null, null, null);
+    }
+
+    /**
+     * @return A copy of this event with the sequence number it was published with.
+     */
+    ChannelChangeEvent withSequence(long sequence) {
+        return new ChannelChangeEvent(sequence, mType, mOldChannel, mNewChannel, mListingUrl);
+    }
+
+    public long getSequence() {
+        return mSequence;
+    }
+
+    /**
+     * @return One of the TYPE constants of this class.
+     */
+    public int getType() {
+        return mType;
+    }
+
+    /**
+     * @return The channel before the change, for removed and updated channels.
+     */
+    @Nullable
+    public JsonChannel getOldChannel() {
+        return mOldChannel;
+    }
+
+    /**
+     * @return The channel after the change, for added and updated channels.
+     */
+    @Nullable
+    public JsonChannel getNewChannel() {
+        return mNewChannel;
+    }
+
+    /**
+     * @return The url of the listing whose channels changed, for refreshed listings.
+     */
+    @Nullable
+    public String getListingUrl() {
+        return mListingUrl;
+    }
+
+    @Override
+    public String toString() {
+        return "ChannelChangeEvent{sequence=" + mSequence + ", type=" + mType + ", old=" +
+                (mOldChannel == null ? null : mOldChannel.getMediaUrl()) + ", new=" +
+                (mNewChannel == null ? null : mNewChannel.getMediaUrl()) + ", listing=" +
+                mListingUrl + "}";
+    }
+}
@@ -0,0 +1,152 @@
+package com.felkertech.cumulustv.model;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.MainThread;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * <p>Numbers the {@link ChannelChangeEvent}s of the {@link ChannelDatabase} and delivers them to
+ * subscribers on the main thread, in order.</p>
+ *
+ * <p>The most recent events are kept, so a subscriber can start from the last sequence it has
+ * seen and receive everything published since. If some of those events have already been
+ * dropped, it receives a single {@link ChannelChangeEvent#TYPE_RESET} instead.</p>
+ */
+public class ChannelChangeLog {
+    /** The number of events which are kept for subscribers who are catching up. */
+    public static final int MAX_HISTORY = 512;
+
+    private final ArrayDeque<ChannelChangeEvent> mHistory = new ArrayDeque<>();
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private long mSequence;
+
+    private final Runnable mDeliverRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliver();
+        }
+    };
+
+    /**
+     * Receives the changes to the channels.
+     */
+    public interface Listener {
+        @MainThread
+        void onChannelChanged(ChannelChangeEvent event);
+    }
+
+    private static class Subscription {
+        private final Listener mListener;
+        // Only read and written on the main thread
+        private long mLastSequence;
+
+        private Subscription(Listener listener, long lastSequence) {
+            mListener = listener;
+            mLastSequence = lastSequence;
+        }
+    }
+
+    /**
+     * Numbers the given events and delivers them to every subscriber.
+     *
+     * @param events Events which have not been published yet, in the order they happened.
+     */
+    public void publish(List<ChannelChangeEvent> events) {
+        if (events.isEmpty()) {
+            return;
+        }
+        synchronized (mHistory) {
+            for (ChannelChangeEvent event : events) {
+                mHistory.addLast(event.withSequence(++mSequence));
+            }
+            while (mHistory.size() > MAX_HISTORY) {
+                mHistory.removeFirst();
+            }
+        }
+        requestDelivery();
+    }
+
+    /**
+     * @return The sequence of the most recent event, or 0 if nothing has been published.
+     */
+    public long getLatestSequence() {
+        synchronized (mHistory) {
+            return mSequence;
+        }
+    }
+
+    /**
+     * Starts delivering events to a listener. Events published after the given sequence are
+     * delivered first, followed by any new events.
+     *
+     * @param listener The listener, which is called on the main thread.
+     * @param fromSequence The last sequence the listener has already seen. Pass
+     *     {@link #getLatestSequence()} to only receive new events.
+     */
+    public void subscribe(Listener listener, long fromSequence) {
+        unsubscribe(listener);
+        mSubscriptions.add(new Subscription(listener, fromSequence));
+        requestDelivery();
+    }
+
+    /**
+     * Stops delivering events to a listener.
+     */
+    public void unsubscribe(Listener listener) {
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mListener == listener) {
+                mSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void requestDelivery() {
+        mMainHandler.removeCallbacks(mDeliverRunnable);
+        mMainHandler.post(mDeliverRunnable);
+    }
+
+    /**
+     * Gives every subscriber the events it has not seen yet. Each subscriber remembers how far it
+     * got, so an event is never delivered twice no matter how deliveries and subscriptions
+     * interleave.
+     */
+    @MainThread
+    private void deliver() {
+        List<ChannelChangeEvent> history;
+        long latestSequence;
+        synchronized (mHistory) {
+            history = new ArrayList<>(mHistory);
+            latestSequence = mSequence;
+        }
+        long oldestSequence = history.isEmpty() ? latestSequence + 1 : history.get(0).getSequence();
+        for (Subscription subscription : mSubscriptions) {
+            if (subscription.mLastSequence == latestSequence) {
+                continue;
+            }
+            if (subscription.mLastSequence < oldestSequence - 1 ||
+                    subscription.mLastSequence > latestSequence) {
+                // Some of the events it asked for are gone, or are from before a restart
+                subscription.mLastSequence = latestSequence;
+                subscription.mListener.onChannelChanged(
+                        ChannelChangeEvent.reset().withSequence(latestSequence));
+                continue;
+            }
+            int start = (int) (subscription.mLastSequence - oldestSequence + 1);
+            for (int i = start; i < history.size(); i++) {
+                if (!mSubscriptions.contains(subscription)) {
+                    // Unsubscribed by one of the events
+                    break;
+                }
+                ChannelChangeEvent event = history.get(i);
+                subscription.mLastSequence = event.getSequence();
+                subscription.mListener.onChannelChanged(event);
+            }
+        }
+    }
+}
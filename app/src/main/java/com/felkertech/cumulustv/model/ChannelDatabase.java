@@ -1,19 +1,20 @@
 package com.felkertech.cumulustv.model;
 
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
-import android.database.Cursor;
+import android.content.res.Configuration;
 import android.media.tv.TvContract;
-import android.net.Uri;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.util.Log;
 
-import com.felkertech.cumulustv.fileio.AbstractFileParser;
 import com.felkertech.cumulustv.fileio.FileParserFactory;
-import com.felkertech.cumulustv.fileio.HttpFileParser;
-import com.felkertech.cumulustv.fileio.M3uParser;
+import com.felkertech.cumulustv.fileio.M3uWriter;
 import com.felkertech.cumulustv.plugins.CumulusChannel;
 import com.felkertech.cumulustv.plugins.JsonContainer;
 import com.felkertech.cumulustv.receivers.GoogleDriveBroadcastReceiver;
@@ -28,12 +29,18 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -45,21 +52,77 @@ public class ChannelDatabase {
     private static final boolean DEBUG = true;
 
     public static final String KEY = "JSONDATA";
+    /** How long to wait for more changes before writing them to disk. */
+    public static final long DEFAULT_WRITE_DELAY_MS = 500;
+    /** How long the channels of a {@link JsonListing} are used before it is downloaded again. */
+    public static final long DEFAULT_LISTING_TTL_MS = 1000 * 60 * 60 * 6; // 6 hours
+    /** How long the result of checking a channel's stream is used before it is checked again. */
+    public static final long DEFAULT_PROBE_TTL_MS = 1000 * 60 * 60 * 12; // 12 hours
     private static final String KEY_CHANNELS = "channels";
     private static final String KEY_MODIFIED = "modified";
+    private static final String KEY_POSSIBLE_GENRES = "possibleGenres";
+    private static final String SNAPSHOT_FILE = "lineup.bin";
 
-    private JSONObject mJsonObject;
+    // Every saved entry keyed by ChannelStore.getKey(), in the order they were added. Loaded
+    // from the store the first time it is needed; see getEntries().
+    private LinkedHashMap<String, SavedEntry> mEntries;
+    private volatile long mLastModified;
+    private File mSnapshotFile;
+    // Used for the first lineup until the JSON entries have to be loaded.
+    private LineupSnapshot mStartupSnapshot;
     private JSONArray mTemporaryObjects;
+    // Canonical media urls of mTemporaryObjects.
+    private final Set<String> mTemporaryUrls = new HashSet<>();
+    // The channels of each JsonListing as of its last download, keyed by the listing url.
+    private Map<String, JSONArray> mListingChannels = new LinkedHashMap<>();
+    private final Map<String, ParsedListing> mParsedListings = new HashMap<>();
+    // The hashes of channels imported from each playlist, loaded from the store when needed
+    private final Map<String, Map<String, Long>> mImportHashes = new HashMap<>();
+    // Set once the stored hashes have been cleared, even if that has not been written yet
+    private boolean mImportHashesCleared;
+    // Parsed from mListingChannels and mTemporaryObjects, and kept until either changes.
+    private List<JsonChannel> mTemporaryChannels;
+    private ChannelNumberIndex mTemporaryIndex;
+    // The saved channels ordered by number, kept up to date as channels change. It is null until
+    // the entries are loaded, and after all of them are replaced.
+    private ChannelNumberIndex mSavedIndex;
+    private ListingRefresher mListingRefresher;
+    private long mListingTtlMs = DEFAULT_LISTING_TTL_MS;
+    private StreamProber mStreamProber;
     private SettingsManager mSettingsManager;
-    protected HashMap<String, Long> mDatabaseHashMap;
-    protected List<JsonChannel> mJsonChannelsList;
+    private ChannelStore mChannelStore;
+    private final List<ChannelStore.Write> mPendingWrites = new ArrayList<>();
+    private final Object mStoreLock = new Object();
+    private HandlerThread mWriterThread;
+    private Handler mWriterHandler;
+    private boolean mWriteScheduled;
+    private long mWriteDelayMs = DEFAULT_WRITE_DELAY_MS;
+    private final Runnable mWriteRunnable = new Runnable() {
+        @Override
+        public void run() {
+            persistPendingWrites();
+        }
+    };
+    // Guards mEntries, the temporary channels and the indexes. Readers use mLineup instead of
+    // taking this lock.
+    private final Object mDataLock = new Object();
+    private volatile ChannelLineup mLineup;
+    private volatile boolean mLineupStale = true;
+    private long mLineupVersion;
+    private ChannelRowIndex mRowIndex;
+    // The batch open on each thread, so a batch only defers the saves made on its own thread
+    private final ThreadLocal<Batch> mBatch = new ThreadLocal<>();
+    private final ChannelChangeLog mChangeLog = new ChannelChangeLog();
+    // Changes made since the last save, published once they are saved. Guarded by mDataLock.
+    private final List<ChannelChangeEvent> mPendingEvents = new ArrayList<>();
 
     private static ChannelDatabase mChannelDatabase;
 
-    public static ChannelDatabase getInstance(Context context) {
+    public static synchronized ChannelDatabase getInstance(Context context) {
         if (mChannelDatabase == null) {
             mChannelDatabase = new ChannelDatabase(context);
-            mChannelDatabase.initializeHashMap(context);
+            mChannelDatabase.registerFlushCallbacks(context.getApplicationContext());
+            mChannelDatabase.startRowIndex();
             try {
                 mChannelDatabase.readJsonListings();
             } catch (JSONException e) {
@@ -71,69 +134,475 @@ public class ChannelDatabase {
 
     protected ChannelDatabase(final Context context) {
         mSettingsManager = new SettingsManager(context);
+        mChannelStore = new ChannelStore(context);
+        mRowIndex = new ChannelRowIndex(context, mChannelStore,
+                ActivityUtils.TV_INPUT_SERVICE.flattenToString());
+        mSnapshotFile = new File(context.getFilesDir(), SNAPSHOT_FILE);
         try {
-            DriveSettingsManager sp = new DriveSettingsManager(context);
-            String spData = sp.getString(KEY, getDefaultJsonString());
-            if (spData.isEmpty()) {
-                spData = getDefaultJsonString();
+            if (!mChannelStore.isMigrated()) {
+                migrateLegacyData(context);
             }
-            mJsonObject = new JSONObject(spData);
-            if (!mJsonObject.has(KEY_MODIFIED)) {
-                mJsonObject.put(KEY_MODIFIED, 0L);
-                save();
+            mLastModified = mChannelStore.getLastModified();
+            mListingRefresher = new ListingRefresher(mChannelStore);
+            mStreamProber = new StreamProber(mChannelStore);
+            mListingChannels = getListingChannels(getListingUrls());
+            LineupSnapshot snapshot = LineupSnapshot.open(mSnapshotFile);
+            if (snapshot != null && snapshot.getGeneration() == mChannelStore.getGeneration()) {
+                // The lineup can be shown without parsing any JSON.
+                mStartupSnapshot = snapshot;
+            } else {
+                getEntries();
+                getWriterHandler().post(new Runnable() {
+                    @Override
+                    public void run() {
+                        refreshSnapshot();
+                    }
+                });
             }
-            resetPossibleGenres(); // This will try to use the newest API data
         } catch (final JSONException e) {
             throw new MalformedChannelDataException(e.getMessage());
         }
     }
 
-    public JSONArray getJSONArray() throws JSONException {
-        return mJsonObject.getJSONArray(KEY_CHANNELS);
+    /**
+     * A saved entry along with the channel it holds, so each entry is only parsed once.
+     */
+    private static class SavedEntry {
+        private final JSONObject mJson;
+        // Null for listings and for entries which are not valid channels
+        private final JsonChannel mChannel;
+
+        private SavedEntry(JSONObject json) {
+            mJson = json;
+            mChannel = toJsonChannel(json);
+        }
     }
 
-    public List<JsonChannel> getJsonChannels() throws JSONException {
-        if (mJsonChannelsList == null) {
-            JSONArray channels = getJSONArray();
-            final List<JsonChannel> channelList = new ArrayList<>();
-            // Add all the normal channels
-            for (int i = 0; i < channels.length(); i++) {
-                ChannelDatabaseFactory.parseType(channels.getJSONObject(i), new ChannelDatabaseFactory.ChannelParser() {
-                    @Override
-                    public void ifJsonChannel(JsonChannel entry) {
-                        channelList.add(entry);
+    /**
+     * A batch of changes opened on one thread by {@link #beginBatch()}.
+     */
+    private static class Batch {
+        private int mDepth;
+        private boolean mDirty;
+    }
+
+    /**
+     * The parsed channels of a {@link JsonListing} playlist. The hash of each entry is kept, so
+     * when the playlist is downloaded again only the channels which changed are parsed.
+     */
+    private static class ParsedListing {
+        private final JSONArray mArray;
+        private final List<JsonChannel> mChannels;
+        // The hash and channel of the first entry with each media url
+        private final Map<String, Long> mHashes;
+        private final Map<String, JsonChannel> mChannelsByUrl;
+
+        private ParsedListing(JSONArray array, @Nullable ParsedListing previous)
+                throws JSONException {
+            mArray = array;
+            mChannels = new ArrayList<>(array.length());
+            mHashes = new HashMap<>(array.length() * 2);
+            mChannelsByUrl = new HashMap<>(array.length() * 2);
+            int reused = 0;
+            for (int i = 0; i < array.length(); i++) {
+                JSONObject entry = array.getJSONObject(i);
+                String mediaUrl = entry.optString(ChannelStore.KEY_URL, null);
+                long hash = PlaylistDiff.hash(entry);
+                JsonChannel channel = null;
+                if (previous != null && mediaUrl != null) {
+                    Long previousHash = previous.mHashes.get(mediaUrl);
+                    if (previousHash != null && previousHash == hash) {
+                        channel = previous.mChannelsByUrl.get(mediaUrl);
+                    }
+                }
+                if (channel != null) {
+                    reused++;
+                } else {
+                    channel = toJsonChannel(entry);
+                    if (channel == null) {
+                        continue;
                     }
+                }
+                mChannels.add(channel);
+                if (mediaUrl != null && !mHashes.containsKey(mediaUrl)) {
+                    mHashes.put(mediaUrl, hash);
+                    mChannelsByUrl.put(mediaUrl, channel);
+                }
+            }
+            if (DEBUG) {
+                Log.d(TAG, "Parsed " + (mChannels.size() - reused) + " of " + mChannels.size() +
+                        " listing channels");
+            }
+        }
+    }
 
-                    @Override
-                    public void ifJsonListing(JsonListing entry) {
+    /**
+     * Returns every saved entry, reading them from the {@link ChannelStore} the first time they
+     * are needed. Callers must hold {@link #mDataLock} while using the returned map.
+     */
+    private LinkedHashMap<String, SavedEntry> getEntries() throws JSONException {
+        synchronized (mDataLock) {
+            if (mEntries == null) {
+                mEntries = toEntries(mChannelStore.readEntries());
+            }
+            return mEntries;
+        }
+    }
+
+    /**
+     * Keys entries by their type and url. Like updates and deletes in the {@link ChannelStore},
+     * entries with the same key are treated as one entry, of which the first is kept.
+     */
+    private static LinkedHashMap<String, SavedEntry> toEntries(JSONArray array)
+            throws JSONException {
+        LinkedHashMap<String, SavedEntry> entries = new LinkedHashMap<>(array.length() * 2);
+        for (int i = 0; i < array.length(); i++) {
+            JSONObject json = array.getJSONObject(i);
+            String key = ChannelStore.getKey(json);
+            if (!entries.containsKey(key)) {
+                entries.put(key, new SavedEntry(json));
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Channels used to be stored as a single JSON string in the app's preferences. This copies
+     * that string into the {@link ChannelStore} once and then clears it.
+     */
+    private void migrateLegacyData(Context context) throws JSONException {
+        DriveSettingsManager sp = new DriveSettingsManager(context);
+        String spData = sp.getString(KEY, getDefaultJsonString());
+        if (spData.isEmpty()) {
+            spData = getDefaultJsonString();
+        }
+        JSONObject legacyData = new JSONObject(spData);
+        long modified = legacyData.has(KEY_MODIFIED) ? legacyData.getLong(KEY_MODIFIED) : 0L;
+        mChannelStore.replaceAll(legacyData.getJSONArray(KEY_CHANNELS), modified);
+        sp.setString(KEY, "");
+        Log.d(TAG, "Migrated " + legacyData.getJSONArray(KEY_CHANNELS).length() +
+                " entries into the channel store");
+    }
+
+    /**
+     * Replaces all of the user's channels with the contents of an exported JSON document, such
+     * as the one stored in Google Drive.
+     *
+     * @param json A document in the same format as {@link #toString()}.
+     */
+    public void importJson(String json) throws JSONException {
+        JSONObject jsonObject = new JSONObject(json);
+        JSONArray channels = jsonObject.getJSONArray(KEY_CHANNELS);
+        LinkedHashMap<String, SavedEntry> entries = toEntries(channels);
+        synchronized (mDataLock) {
+            mEntries = entries;
+            mSavedIndex = null;
+            mImportHashes.clear();
+            mImportHashesCleared = true;
+            queueWrite(ChannelStore.Write.clear());
+            // Only the entries which were kept, so the store has one row per key like mEntries
+            for (SavedEntry entry : entries.values()) {
+                queueWrite(ChannelStore.Write.insert(entry.mJson));
+            }
+            mPendingEvents.add(ChannelChangeEvent.reset());
+        }
+        save();
+    }
+
+    private void queueWrite(ChannelStore.Write write) {
+        synchronized (mPendingWrites) {
+            mPendingWrites.add(write);
+        }
+    }
+
+    /**
+     * Changes the amount of time the background writer waits to collect more changes before
+     * writing them to disk. Bursts of edits within this window are written together.
+     *
+     * @param writeDelayMs The delay in milliseconds, or 0 to write as soon as possible.
+     */
+    public void setWriteDelay(long writeDelayMs) {
+        mWriteDelayMs = Math.max(0, writeDelayMs);
+    }
+
+    /**
+     * Asks the background writer to persist pending changes once the write delay has passed.
+     * If a write is already scheduled, the new changes are written along with it.
+     */
+    private void schedulePendingWrites() {
+        synchronized (mPendingWrites) {
+            if (mWriteScheduled || mPendingWrites.isEmpty()) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        getWriterHandler().postDelayed(mWriteRunnable, mWriteDelayMs);
+    }
+
+    /**
+     * Writes all pending changes right away on the background writer, without waiting for the
+     * write delay. This is used when the app leaves the foreground.
+     */
+    public void flushAsync() {
+        synchronized (mPendingWrites) {
+            if (mPendingWrites.isEmpty()) {
+                return;
+            }
+            mWriteScheduled = true;
+        }
+        Handler handler = getWriterHandler();
+        handler.removeCallbacks(mWriteRunnable);
+        handler.post(mWriteRunnable);
+    }
+
+    /**
+     * Writes all pending changes on the calling thread. This should not be called from the UI
+     * thread.
+     */
+    public void flush() {
+        if (mWriterHandler != null) {
+            mWriterHandler.removeCallbacks(mWriteRunnable);
+        }
+        persistPendingWrites();
+    }
+
+    private synchronized Handler getWriterHandler() {
+        if (mWriterHandler == null) {
+            mWriterThread = new HandlerThread(TAG + "Writer", Process.THREAD_PRIORITY_BACKGROUND);
+            mWriterThread.start();
+            mWriterHandler = new Handler(mWriterThread.getLooper());
+        }
+        return mWriterHandler;
+    }
+
+    /**
+     * Writes all of the changes made since the last save to the {@link ChannelStore}. Writes
+     * are serialized so changes reach the disk in the order they were made.
+     */
+    private void persistPendingWrites() {
+        synchronized (mStoreLock) {
+            List<ChannelStore.Write> writes;
+            JSONArray entries;
+            // Entries are changed and their writes queued under the data lock, so this copy
+            // holds exactly the changes which are about to be written.
+            synchronized (mDataLock) {
+                synchronized (mPendingWrites) {
+                    mWriteScheduled = false;
+                    if (mPendingWrites.isEmpty()) {
+                        return;
                     }
-                });
+                    writes = new ArrayList<>(mPendingWrites);
+                    mPendingWrites.clear();
+                }
+                try {
+                    entries = getJSONArray();
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    entries = null;
+                }
             }
-            Log.d(TAG, "There are " + channelList.size() + " items");
-            // Add temporary channels to list
-            if (mTemporaryObjects != null) {
-                for (int i = 0; i < mTemporaryObjects.length(); i++) {
-                    ChannelDatabaseFactory.parseType(mTemporaryObjects.getJSONObject(i), new ChannelDatabaseFactory.ChannelParser() {
-                        @Override
-                        public void ifJsonChannel(JsonChannel entry) {
-                            if (!channelList.contains(entry)) {
-                                channelList.add(entry);
-                            }
-                        }
+            long generation = mChannelStore.write(writes, mLastModified);
+            if (DEBUG) {
+                Log.d(TAG, "Wrote " + writes.size() + " changes to the channel store");
+            }
+            if (generation >= 0 && entries != null) {
+                writeSnapshot(entries, generation);
+            }
+        }
+    }
 
-                        @Override
-                        public void ifJsonListing(JsonListing entry) {
-                        }
-                    });
+    /**
+     * Writes a {@link LineupSnapshot} of the stored entries if there are no changes waiting to be
+     * written, such as after the snapshot was found to be missing or out of date.
+     */
+    private void refreshSnapshot() {
+        synchronized (mStoreLock) {
+            JSONArray entries;
+            synchronized (mDataLock) {
+                synchronized (mPendingWrites) {
+                    if (!mPendingWrites.isEmpty()) {
+                        // The snapshot will be written along with these changes
+                        return;
+                    }
+                }
+                try {
+                    entries = getJSONArray();
+                } catch (JSONException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
+            writeSnapshot(entries, mChannelStore.getGeneration());
+        }
+    }
+
+    /**
+     * Writes the {@link LineupSnapshot} which lets the next cold start skip parsing the entries.
+     * If this fails, the snapshot's generation will not match the store and it is ignored.
+     */
+    private void writeSnapshot(JSONArray entries, long generation) {
+        try {
+            List<JsonChannel> channels = parseChannels(entries);
+            boolean sortByNumber = mSettingsManager.getBoolean("SORT_BY_NUMBER");
+            if (sortByNumber) {
+                Collections.sort(channels);
+            }
+            LineupSnapshot.write(mSnapshotFile, generation, sortByNumber, channels);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Unable to write lineup snapshot: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Makes sure pending changes reach the disk when the app is sent to the background or the
+     * system is about to reclaim its process.
+     */
+    private void registerFlushCallbacks(Context applicationContext) {
+        applicationContext.registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+                    flushAsync();
                 }
-                Log.d(TAG, "Plus more " + channelList.size() + " channels");
             }
-            if (mSettingsManager.getBoolean("SORT_BY_NUMBER")) {
-                Collections.sort(channelList); // Optionally reorder
+
+            @Override
+            public void onConfigurationChanged(Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                flushAsync();
+            }
+        });
+    }
+
+    /**
+     * @return A copy of every saved entry, including {@link JsonListing}s. Changing the returned
+     * array does not change the database.
+     */
+    public JSONArray getJSONArray() throws JSONException {
+        synchronized (mDataLock) {
+            JSONArray copy = new JSONArray();
+            for (SavedEntry entry : getEntries().values()) {
+                copy.put(entry.mJson);
+            }
+            return copy;
+        }
+    }
+
+    /**
+     * @return Every valid saved channel, in the order they were added. Callers must hold
+     * {@link #mDataLock}.
+     */
+    private List<JsonChannel> getSavedChannels() throws JSONException {
+        Collection<SavedEntry> entries = getEntries().values();
+        List<JsonChannel> channels = new ArrayList<>(entries.size());
+        for (SavedEntry entry : entries) {
+            if (entry.mChannel != null) {
+                channels.add(entry.mChannel);
+            }
+        }
+        return channels;
+    }
+
+    /**
+     * Returns the current snapshot of every channel which is shown to the user. The snapshot
+     * never changes, so it can be iterated on any thread without locking while the database is
+     * being edited. Call this method again to see later changes.
+     *
+     * @return The newest {@link ChannelLineup}.
+     */
+    public ChannelLineup getLineup() throws JSONException {
+        ChannelLineup lineup = mLineup;
+        if (lineup != null && !mLineupStale) {
+            return lineup;
+        }
+        synchronized (mDataLock) {
+            if (mLineup == null || mLineupStale) {
+                // Clear the flag first so a change made while building marks the result stale.
+                mLineupStale = false;
+                mLineup = buildLineup(++mLineupVersion);
             }
-            mJsonChannelsList = channelList;
+            return mLineup;
+        }
+    }
+
+    /**
+     * Marks the current lineup as out of date. The next call to {@link #getLineup()} builds a new
+     * one, while threads still holding the old lineup are unaffected.
+     */
+    protected void invalidateLineup() {
+        mLineupStale = true;
+    }
+
+    private ChannelLineup buildLineup(long version) throws JSONException {
+        boolean sortByNumber = mSettingsManager.getBoolean("SORT_BY_NUMBER");
+        List<JsonChannel> temporaryChannels = getTemporaryChannels();
+        if (mEntries == null && mStartupSnapshot != null &&
+                mStartupSnapshot.isSorted() == sortByNumber &&
+                (!sortByNumber || temporaryChannels.isEmpty())) {
+            return new ChannelLineup(version, mStartupSnapshot, temporaryChannels);
         }
-        return mJsonChannelsList;
+        mStartupSnapshot = null;
+        if (mSavedIndex == null) {
+            mSavedIndex = new ChannelNumberIndex(getSavedChannels());
+        }
+        ChannelLineup lineup = ChannelLineup.build(version,
+                sortByNumber ? null : getSavedChannels(), mSavedIndex, temporaryChannels,
+                mTemporaryIndex);
+        Log.d(TAG, "There are " + lineup.getChannels().size() + " channels");
+        return lineup;
+    }
+
+    private static List<JsonChannel> parseChannels(JSONArray entries) throws JSONException {
+        final List<JsonChannel> channelList = new ArrayList<>();
+        for (int i = 0; i < entries.length(); i++) {
+            ChannelDatabaseFactory.parseType(entries.getJSONObject(i), new ChannelDatabaseFactory.ChannelParser() {
+                @Override
+                public void ifJsonChannel(JsonChannel entry) {
+                    channelList.add(entry);
+                }
+
+                @Override
+                public void ifJsonListing(JsonListing entry) {
+                }
+            });
+        }
+        return channelList;
+    }
+
+    /**
+     * @return The channels of every {@link JsonListing} followed by any other temporary channels.
+     * Callers must hold {@link #mDataLock} and must not change the list.
+     */
+    private List<JsonChannel> getTemporaryChannels() throws JSONException {
+        if (mTemporaryChannels == null) {
+            List<JsonChannel> temporaryChannels = new ArrayList<>();
+            for (Map.Entry<String, JSONArray> listing : mListingChannels.entrySet()) {
+                ParsedListing parsedListing = mParsedListings.get(listing.getKey());
+                if (parsedListing == null || parsedListing.mArray != listing.getValue()) {
+                    // Only listings which were downloaded again need to be parsed
+                    parsedListing = new ParsedListing(listing.getValue(), parsedListing);
+                    mParsedListings.put(listing.getKey(), parsedListing);
+                }
+                temporaryChannels.addAll(parsedListing.mChannels);
+            }
+            mParsedListings.keySet().retainAll(mListingChannels.keySet());
+            if (mTemporaryObjects != null) {
+                temporaryChannels.addAll(parseChannels(mTemporaryObjects));
+            }
+            mTemporaryIndex = new ChannelNumberIndex(temporaryChannels);
+            mTemporaryChannels = temporaryChannels;
+        }
+        return mTemporaryChannels;
+    }
+
+    /**
+     * @return An unmodifiable list of the channels in the current {@link #getLineup()}.
+     */
+    public List<JsonChannel> getJsonChannels() throws JSONException {
+        return getLineup().getChannels();
     }
 
     public List<Channel> getChannels() throws JSONException {
@@ -160,41 +629,30 @@ public class ChannelDatabase {
 
     public boolean channelNumberExists(String number) {
         try {
-            List<JsonChannel> jsonChannelList = getJsonChannels();
-            for (JsonChannel jsonChannel : jsonChannelList) {
-                if (jsonChannel.getNumber().equals(number)) {
-                    return true;
-                }
-            }
+            return getLineup().channelNumberExists(number);
         } catch (JSONException ignored) {
         }
         return false;
     }
 
     public boolean channelExists(CumulusChannel channel) {
-        try {
-            List<JsonChannel> jsonChannelList = getJsonChannels();
-            for (JsonChannel jsonChannel : jsonChannelList) {
-                if (jsonChannel.equals(channel) ||
-                        jsonChannel.getMediaUrl().equals(channel.getMediaUrl())) {
-                    return true;
-                }
-            }
-        } catch (JSONException ignored) {
-        }
-        return false;
+        return findChannelByMediaUrl(channel.getMediaUrl()) != null;
+    }
+
+    /**
+     * @see ChannelLineup#getChannelsInRange(String, String)
+     */
+    public List<JsonChannel> getChannelsInRange(String fromNumber, String toNumber)
+            throws JSONException {
+        return getLineup().getChannelsInRange(fromNumber, toNumber);
     }
 
     public JsonChannel findChannelByMediaUrl(String mediaUrl) {
+        if (mediaUrl == null) {
+            return null;
+        }
         try {
-            List<JsonChannel> jsonChannelList = getJsonChannels();
-            for (JsonChannel jsonChannel : jsonChannelList) {
-                if (jsonChannel.getMediaUrl() != null) {
-                    if (jsonChannel.getMediaUrl().equals(mediaUrl)) {
-                        return jsonChannel;
-                    }
-                }
-            }
+            return getLineup().findChannelByMediaUrl(mediaUrl);
         } catch (JSONException ignored) {
         }
         return null;
@@ -212,110 +670,249 @@ public class ChannelDatabase {
         return strings.toArray(new String[strings.size()]);
     }
 
+    /**
+     * Saves a channel. If a channel with the same media url is already saved, it is replaced
+     * instead; see {@link #upsert(CumulusChannel)}.
+     */
     public void add(CumulusChannel channel) throws JSONException {
-        if (mJsonObject != null) {
-            mJsonObject.getJSONArray(KEY_CHANNELS).put(channel.toJson());
-            save();
-        }
+        upsert(channel);
     }
 
     public void add(JsonListing listing) throws JSONException {
-        if (mJsonObject != null) {
-            JSONArray channels = mJsonObject.getJSONArray(KEY_CHANNELS);
-            mJsonObject.getJSONArray(KEY_CHANNELS).put(listing.toJson());
-            Log.d(TAG, channels.toString());
-            save();
+        JSONObject entry = listing.toJson();
+        synchronized (mDataLock) {
+            putEntry(entry);
         }
+        save();
     }
 
+    /**
+     * Replaces the saved channel with the same media url, or saves the channel if there is none.
+     */
     public void update(CumulusChannel channel) throws JSONException {
         /*if (channel.getGenresString().isEmpty()) {
             channel = new CumulusChannel.Builder(channel)
                     .setGenres(TvContract.Programs.Genres.FAMILY_KIDS)
                     .build();
         }*/
-        final CumulusChannel channel1 = channel;
-        if(!channelExists(channel)) {
-            add(channel);
-        } else {
-            final JSONArray channels = getJSONArray();
-            final int[] i = new int[1];
-            for (i[0] = 0; i[0] < channels.length(); i[0]++) {
-                ChannelDatabaseFactory.parseType(channels.getJSONObject(i[0]), new ChannelDatabaseFactory.ChannelParser() {
-                    @Override
-                    public void ifJsonChannel(JsonChannel entry) {
-                        try {
-                            if (entry.getMediaUrl().equals(channel1.getMediaUrl())) {
-                                if (DEBUG) {
-                                    Log.d(TAG, "Remove " + i[0] + " and put at " + i[0] + ": " +
-                                            channel1.toString());
-                                }
-                                channels.put(i[0], channel1.toJson());
-                                mJsonObject.getJSONArray(KEY_CHANNELS).put(i[0], channel1.toJson());
-                                save();
-                                return;
-                            }
-                        } catch (JSONException ignored) {
-                        }
-                    }
+        upsert(channel);
+    }
 
-                    @Override
-                    public void ifJsonListing(JsonListing entry) {
-                    }
-                });
+    /**
+     * Replaces the saved channel with the same media url in place, keeping its position, or adds
+     * the channel after every other one if there is none. The entry is found through its key,
+     * so this does not depend on the number of saved channels, and the database is saved once.
+     *
+     * @param channel The channel to save.
+     * @return True if an existing channel was replaced.
+     */
+    public boolean upsert(CumulusChannel channel) throws JSONException {
+        JSONObject entry = channel.toJson();
+        boolean replaced;
+        synchronized (mDataLock) {
+            replaced = putEntry(entry);
+        }
+        save();
+        return replaced;
+    }
+
+    /**
+     * Removes the saved channel or listing with the same key as the container.
+     *
+     * @param container A {@link JsonChannel} or a {@link JsonListing}.
+     * @return True if an entry was removed.
+     */
+    public boolean delete(JsonContainer container) throws JSONException {
+        JSONObject entry = container.toJson();
+        boolean removed;
+        synchronized (mDataLock) {
+            removed = removeEntry(entry);
+        }
+        if (removed) {
+            save();
+        }
+        return removed;
+    }
+
+    /**
+     * Imports the channels of a playlist, applying only what changed since the last import from
+     * the same source. New and changed channels are saved and channels which are no longer in
+     * the playlist are removed, while unchanged channels are not touched at all. This also means
+     * an imported channel which the user deleted is only added again once the playlist changes
+     * it. The first import from a source saves every channel.
+     *
+     * @param source Identifies the playlist, such as its uri.
+     * @param channels Every channel of the playlist, in order.
+     * @return The changes which were applied.
+     */
+    public PlaylistDiff importChannels(String source, List<JsonChannel> channels)
+            throws JSONException {
+        PlaylistDiff diff;
+        synchronized (mDataLock) {
+            Map<String, Long> hashes = getImportHashes(source);
+            diff = new PlaylistDiff(hashes, channels);
+            List<JsonChannel> savedChannels = new ArrayList<>(diff.getAdded());
+            savedChannels.addAll(diff.getChanged());
+            for (JsonChannel channel : savedChannels) {
+                putEntry(channel.toJson());
+                long hash = diff.getHashes().get(channel.getMediaUrl());
+                hashes.put(channel.getMediaUrl(), hash);
+                queueWrite(ChannelStore.Write.putImportHash(source, channel.getMediaUrl(), hash));
             }
+            for (String mediaUrl : diff.getRemoved()) {
+                removeEntry(new JSONObject().put(ChannelStore.KEY_URL, mediaUrl));
+                hashes.remove(mediaUrl);
+                queueWrite(ChannelStore.Write.deleteImportHash(source, mediaUrl));
+            }
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Import " + source + ": " + diff);
+        }
+        if (!diff.isEmpty()) {
+            save();
         }
+        return diff;
     }
 
-    public void delete(final JsonContainer container) throws JSONException {
-        final JSONArray channels = getJSONArray();
-        final int[] i = new int[1];
-        for (i[0] = 0; i[0] < channels.length(); i[0]++) {
-            ChannelDatabaseFactory.parseType(channels.getJSONObject(i[0]), new ChannelDatabaseFactory.ChannelParser() {
-                @Override
-                public void ifJsonChannel(JsonChannel entry) {
-                    try {
-                        if (entry.equals(container)) {
-                            if (DEBUG) {
-                                Log.d(TAG, "Remove " + i[0] + " and put at " + i[0] + ": " +
-                                        entry.toString());
-                            }
-//                            channels.put(i[0], entry.toJson());
-                            mJsonObject.getJSONArray(KEY_CHANNELS).remove(i[0]);
-                            save();
-                            return;
-                        }
-                    } catch (JSONException ignored) {
-                    }
-                }
+    /**
+     * @return The hashes of the channels last imported from a source, which the caller may
+     * change. Callers must hold {@link #mDataLock}.
+     */
+    private Map<String, Long> getImportHashes(String source) {
+        Map<String, Long> hashes = mImportHashes.get(source);
+        if (hashes == null) {
+            hashes = mImportHashesCleared ? new HashMap<String, Long>() :
+                    mChannelStore.readImportHashes(source);
+            mImportHashes.put(source, hashes);
+        }
+        return hashes;
+    }
 
-                @Override
-                public void ifJsonListing(JsonListing entry) {
-                    if (entry.equals(container)) {
-                        if (DEBUG) {
-                            Log.d(TAG, "Remove " + i[0] + " and put at " + i[0] + ": " +
-                                    entry.toString());
-                        }
-                        try {
-//                            channels.put(i[0], entry.toJson());
-                            mJsonObject.getJSONArray(KEY_CHANNELS).remove(i[0]);
-                            save();
-                            return;
-                        } catch (JSONException e) {
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            });
+    /**
+     * Adds an entry or replaces the entry with the same key, along with its write, index and
+     * event. Callers must hold {@link #mDataLock}.
+     *
+     * @return True if an existing entry was replaced.
+     */
+    private boolean putEntry(JSONObject json) throws JSONException {
+        SavedEntry entry = new SavedEntry(json);
+        // Replacing the value of an existing key keeps its position
+        SavedEntry oldEntry = getEntries().put(ChannelStore.getKey(json), entry);
+        JsonChannel oldChannel = oldEntry == null ? null : oldEntry.mChannel;
+        queueWrite(oldEntry == null ? ChannelStore.Write.insert(json) :
+                ChannelStore.Write.update(json));
+        if (mSavedIndex != null) {
+            if (oldChannel != null) {
+                mSavedIndex.remove(oldChannel);
+            }
+            if (entry.mChannel != null) {
+                mSavedIndex.add(entry.mChannel);
+            }
+        }
+        if (oldChannel != null && entry.mChannel != null) {
+            mPendingEvents.add(ChannelChangeEvent.updated(oldChannel, entry.mChannel));
+        } else if (entry.mChannel != null) {
+            mPendingEvents.add(ChannelChangeEvent.added(entry.mChannel));
+        } else if (oldChannel != null) {
+            mPendingEvents.add(ChannelChangeEvent.removed(oldChannel));
         }
+        return oldEntry != null;
+    }
+
+    /**
+     * Removes the entry with the same key, along with its write, index and event. Callers must
+     * hold {@link #mDataLock}.
+     *
+     * @return True if an entry was removed.
+     */
+    private boolean removeEntry(JSONObject json) throws JSONException {
+        SavedEntry oldEntry = getEntries().remove(ChannelStore.getKey(json));
+        if (oldEntry == null) {
+            return false;
+        }
+        queueWrite(ChannelStore.Write.delete(oldEntry.mJson));
+        if (oldEntry.mChannel != null) {
+            if (mSavedIndex != null) {
+                mSavedIndex.remove(oldEntry.mChannel);
+            }
+            mPendingEvents.add(ChannelChangeEvent.removed(oldEntry.mChannel));
+        }
+        return true;
+    }
+
+    /**
+     * Starts a batch of changes. Until the matching {@link #commit()} call, mutations are only
+     * applied in memory and {@link #save()} is deferred, so persisting the data, re-indexing the
+     * TIF rows and notifying listeners each happen once for the whole batch. Batches may be
+     * nested; only the outermost commit writes.
+     *
+     * A batch belongs to the thread which began it, which must also commit it. Saves made on
+     * other threads while it is open are not deferred.
+     */
+    public void beginBatch() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            batch = new Batch();
+            mBatch.set(batch);
+        }
+        batch.mDepth++;
+    }
+
+    /**
+     * Ends a batch started with {@link #beginBatch()}. If this closes the outermost batch and
+     * anything changed inside of it, the database is saved once.
+     */
+    public void commit() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            throw new IllegalStateException("commit() called without beginBatch()");
+        }
+        batch.mDepth--;
+        if (batch.mDepth > 0) {
+            return;
+        }
+        mBatch.remove();
+        if (batch.mDirty) {
+            save();
+        } else {
+            // Temporary channels added during the batch are not saved, but still announced
+            publishPendingEvents();
+        }
+    }
+
+    /**
+     * @return True if changes made on the calling thread are currently being collected by
+     * {@link #beginBatch()}.
+     */
+    public boolean isInBatch() {
+        return mBatch.get() != null;
+    }
+
+    /**
+     * Defers a save while a batch is open on the calling thread.
+     *
+     * @return True if the save was deferred and the caller should not persist anything yet.
+     */
+    private boolean deferSave() {
+        Batch batch = mBatch.get();
+        if (batch == null) {
+            return false;
+        }
+        batch.mDirty = true;
+        // Reads inside of the batch should still see the pending changes.
+        invalidateLineup();
+        return true;
     }
 
     public void save() {
+        if (deferSave()) {
+            return;
+        }
         try {
             setLastModified();
-            mSettingsManager.setString(KEY, toString());
-            initializeHashMap(mSettingsManager.getContext());
-            mJsonChannelsList = null;
+            schedulePendingWrites();
+            invalidateLineup();
+            publishPendingEvents();
             readJsonListings();
 
             // Tell the system that there's been changes.
@@ -325,80 +922,143 @@ public class ChannelDatabase {
         }
     }
 
+    /**
+     * Publishes the changes made since the last save to subscribers, once the lineup includes
+     * them.
+     */
+    protected void publishPendingEvents() {
+        List<ChannelChangeEvent> events;
+        synchronized (mDataLock) {
+            events = new ArrayList<>(mPendingEvents);
+            mPendingEvents.clear();
+        }
+        mChangeLog.publish(events);
+    }
+
+    /**
+     * Starts delivering {@link ChannelChangeEvent}s to a listener on the main thread, so it can
+     * apply each change instead of reading the whole lineup again. Changes made inside of a
+     * batch are delivered once the batch is committed.
+     *
+     * @param listener The listener to call.
+     * @param fromSequence The sequence of the last event the listener has applied. Every event
+     *     after it is delivered first. Pass {@link #getLatestSequence()} to only receive new
+     *     events.
+     */
+    public void subscribe(ChannelChangeLog.Listener listener, long fromSequence) {
+        mChangeLog.subscribe(listener, fromSequence);
+    }
+
+    public void unsubscribe(ChannelChangeLog.Listener listener) {
+        mChangeLog.unsubscribe(listener);
+    }
+
+    /**
+     * @return The sequence of the most recently published {@link ChannelChangeEvent}, which
+     * matches the current {@link #getLineup()}.
+     */
+    public long getLatestSequence() {
+        return mChangeLog.getLatestSequence();
+    }
+
+    /**
+     * @return The channel stored in an entry, or null if the entry is not a valid channel.
+     */
+    private static JsonChannel toJsonChannel(JSONObject entry) {
+        if (entry.has(ChannelDatabaseFactory.KEY_TYPE)) {
+            return null;
+        }
+        try {
+            return new JsonChannel.Builder(entry).build();
+        } catch (JSONException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
     @Override
     public String toString() {
-        return mJsonObject.toString();
+        synchronized (mDataLock) {
+            try {
+                JSONObject jsonObject = new JSONObject();
+                jsonObject.put(KEY_CHANNELS, getJSONArray());
+                jsonObject.put(KEY_MODIFIED, mLastModified);
+                jsonObject.put(KEY_POSSIBLE_GENRES, getPossibleGenres());
+                return jsonObject.toString();
+            } catch (JSONException e) {
+                throw new MalformedChannelDataException(e.getMessage());
+            }
+        }
     }
 
     public String toM3u() {
-        StringBuilder builder = new StringBuilder();
-        builder.append(M3uParser.Constants.HEADER_TAG + "\n");
+        StringWriter writer = new StringWriter();
         try {
-            List<JsonChannel> jsonChannelList = getJsonChannels();
-            for (int i = 0; i< jsonChannelList.size(); i++) {
-                JsonChannel jsonChannel = jsonChannelList.get(i);
-                builder.append(M3uParser.Constants.CHANNEL_TAG);
-                builder.append(" " + M3uParser.Constants.CH_NUMBER + "=\"")
-                        .append(jsonChannel.getNumber()).append("\"");
-                if (jsonChannel.hasLogo()) {
-                    builder.append(" " + M3uParser.Constants.CH_LOGO + "=\"")
-                            .append(jsonChannel.getLogo()).append("\"");
-                }
-                if (jsonChannel.isAudioOnly()) {
-                    builder.append(" " + M3uParser.Constants.CH_AUDIO_ONLY + "=1");
-                }
-                if (jsonChannel.getEpgUrl() != null) {
-                    builder.append(" " + M3uParser.Constants.CH_EPG_URL + "=\"")
-                            .append(jsonChannel.getEpgUrl()).append("\"");
-                }
-                builder.append(" " + M3uParser.Constants.CH_GENRES + "=\"")
-                        .append(jsonChannel.getGenresString()).append("\"");
-                if (jsonChannel.getPluginSource() != null) {
-                    builder.append(" " + M3uParser.Constants.CH_PLUGIN + "=\"")
-                            .append(jsonChannel.getPluginSource()).append("\"");
-                }
-                if (jsonChannel.hasSplashscreen()) {
-                    builder.append(" " + M3uParser.Constants.CH_SPLASH + "=\"")
-                            .append(jsonChannel.getSplashscreen()).append("\"");
-                }
-                builder.append(", ").append(jsonChannel.getName()).append("\n");
-                // Add URL
-                builder.append(jsonChannel.getMediaUrl()).append("\n");
-            }
-        } catch (JSONException e) {
+            M3uWriter.write(writer, getJsonChannels(), null);
+        } catch (IOException | JSONException e) {
             e.printStackTrace();
         }
-        return builder.toString();
+        return writer.toString();
+    }
+
+    /**
+     * Writes the channels of the current {@link #getLineup()} to a stream as a M3U playlist,
+     * one channel at a time. Unlike {@link #toM3u()}, the playlist is never held in memory.
+     *
+     * @param out The stream to write to, which is flushed but not closed.
+     * @param filter Chooses which channels are written, such as
+     *     {@link M3uWriter#withGenre(String)}, or null to write every channel.
+     * @return The number of channels which were written.
+     */
+    public int writeM3u(OutputStream out, @Nullable M3uWriter.ChannelFilter filter)
+            throws IOException, JSONException {
+        return M3uWriter.write(out, getLineup().getChannels(), filter);
+    }
+
+    /**
+     * Writes the channels whose number lies within a range to a stream as a M3U playlist; see
+     * {@link ChannelLineup#getChannelsInRange(String, String)}.
+     *
+     * @param out The stream to write to, which is flushed but not closed.
+     * @param fromNumber The lowest number of the range.
+     * @param toNumber The number after the range, which is not included.
+     * @return The number of channels which were written.
+     */
+    public int writeM3u(OutputStream out, String fromNumber, String toNumber)
+            throws IOException, JSONException {
+        return M3uWriter.write(out, getLineup().getChannelsInRange(fromNumber, toNumber), null);
     }
 
     public long getLastModified() throws JSONException {
-        return mJsonObject.getLong("modified");
+        return mLastModified;
     }
 
     private void setLastModified() throws JSONException {
-        if(mJsonObject != null) {
-            mJsonObject.put("modified", System.currentTimeMillis());
-        }
+        mLastModified = System.currentTimeMillis();
     }
 
-    public HashMap<String, Long> getHashMap() {
-        return mDatabaseHashMap;
+    /**
+     * @return An unmodifiable map from the media url of each channel which has been synced to
+     * the TV provider to its row id. This is never null.
+     */
+    public Map<String, Long> getHashMap() {
+        return mRowIndex.getRowIds();
     }
 
     public JsonChannel getChannelFromRowId(@NonNull Long rowId) {
-        if (mDatabaseHashMap == null || rowId < 0) {
+        if (rowId < 0) {
             return null;
         }
-        Set<String> mediaUrlSet = mDatabaseHashMap.keySet();
-        for (String mediaUrl : mediaUrlSet) {
-            if (mDatabaseHashMap.get(mediaUrl).equals(rowId)) {
-                return findChannelByMediaUrl(mediaUrl);
-            }
+        String mediaUrl = mRowIndex.getMediaUrl(rowId);
+        if (mediaUrl == null) {
+            return null;
         }
-        return null;
+        return findChannelByMediaUrl(mediaUrl);
     }
 
-    public void resetPossibleGenres() throws JSONException {
+    /**
+     * @return The genres of the newest API level this device supports.
+     */
+    private static JSONArray getPossibleGenres() {
         JSONArray genres = new JSONArray();
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
             genres.put(TvContract.Programs.Genres.ANIMAL_WILDLIFE);
@@ -431,53 +1091,32 @@ public class ChannelDatabase {
             genres.put(TvContract.Programs.Genres.SPORTS);
             genres.put(TvContract.Programs.Genres.TRAVEL);
         }
-        mJsonObject.put("possibleGenres", genres);
+        return genres;
     }
 
     /**
-     * Creates a link between the database Uris and the JSONChannels
-     * @param context The application's context for the {@link ContentResolver}.
+     * Starts keeping the link between TV provider rows and channels up to date. Until the first
+     * check finishes, the rows stored during the previous run are used. Calling this again checks
+     * every row again.
      */
-    protected void initializeHashMap(final Context context) {
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                ContentResolver contentResolver = context.getContentResolver();
-                Uri channelsUri = TvContract.buildChannelsUriForInput(
-                        ActivityUtils.TV_INPUT_SERVICE.flattenToString());
-                Cursor cursor = contentResolver.query(channelsUri, null, null, null, null);
-                mDatabaseHashMap = new HashMap<>();
-                Log.d(TAG, "Initialize CD HashMap");
-                if (cursor != null) {
-                    while (cursor.moveToNext()) {
-                        try {
-                            InternalProviderData ipd = new InternalProviderData(
-                                    cursor.getBlob(cursor.getColumnIndex(
-                                    TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA)));
-                            String mediaUrl = ipd.getVideoUrl();
-                            long rowId = cursor.getLong(cursor.getColumnIndex(TvContract.Channels._ID));
-                            Log.d(TAG, "Try to match " + mediaUrl + " " + rowId);
-                            for (JsonChannel jsonChannel : getJsonChannels()) {
-                                if (jsonChannel.getMediaUrl().equals(mediaUrl)) {
-                                    mDatabaseHashMap.put(jsonChannel.getMediaUrl(), rowId);
-                                }
-                            }
-                        } catch (InternalProviderData.ParseException e) {
-                            e.printStackTrace();
-                        } catch (JSONException ignored) {
-                        }
-                    }
-                    cursor.close();
-                }
-            }
-        }).start();
+    protected void startRowIndex() {
+        mRowIndex.start(getWriterHandler());
     }
 
     public void eraseData() {
-        mSettingsManager.setString(ChannelDatabase.KEY, getDefaultJsonString());
         Log.d(TAG, "Erasing data");
         try {
-            mJsonObject.put(KEY_CHANNELS, new JSONArray());
+            synchronized (mDataLock) {
+                mEntries = new LinkedHashMap<>();
+                mSavedIndex = null;
+                mImportHashes.clear();
+                mImportHashesCleared = true;
+                queueWrite(ChannelStore.Write.clear());
+                mPendingEvents.add(ChannelChangeEvent.reset());
+            }
+            invalidateLineup();
+            publishPendingEvents();
+            schedulePendingWrites();
             Log.d(TAG, getJSONArray().toString());
         } catch (JSONException e) {
             e.printStackTrace();
@@ -493,23 +1132,190 @@ public class ChannelDatabase {
      * @throws JSONException
      */
     public void addTemporaryChannel(JsonContainer temp) throws JSONException {
-        if (mTemporaryObjects == null) {
-            mTemporaryObjects = new JSONArray();
-        }
-        for (int i = 0; i < mTemporaryObjects.length(); i++) {
-            if (mTemporaryObjects.get(i).equals(temp)) {
+        JSONObject entry = temp.toJson();
+        synchronized (mDataLock) {
+            if (mTemporaryObjects == null) {
+                mTemporaryObjects = new JSONArray();
+            }
+            if (!mTemporaryUrls.add(ChannelLineup.canonicalMediaUrl(
+                    entry.optString(ChannelStore.KEY_URL, null)))) {
                 return;
             }
+            mTemporaryObjects.put(entry);
+            JsonChannel jsonChannel = toJsonChannel(entry);
+            if (jsonChannel != null) {
+                if (mTemporaryChannels != null) {
+                    mTemporaryChannels.add(jsonChannel);
+                    mTemporaryIndex.add(jsonChannel);
+                }
+                mPendingEvents.add(ChannelChangeEvent.added(jsonChannel));
+            }
+        }
+        invalidateLineup();
+        if (!isInBatch()) {
+            publishPendingEvents();
         }
-        mTemporaryObjects.put(temp.toJson());
     }
 
     /**
-     * Scans through user data to find all json listings and add them to a temporary object in
-     * memory.
+     * Downloads the playlists of any {@link JsonListing} which are older than the listing time to
+     * live. The channels of the previous download are shown until then, even after a restart.
      */
     protected void readJsonListings() throws JSONException {
-        JSONArray jsonArray = getJSONArray();
+        refreshListings(false, null);
+    }
+
+    /**
+     * Downloads the playlists of {@link JsonListing}s on a background pool and replaces their
+     * channels in the lineup. Playlists which the server reports as unchanged are not downloaded
+     * again.
+     *
+     * @param force True to check every playlist, even if it was downloaded within the listing
+     *     time to live.
+     * @param callback Called on a background thread once all playlists have been checked. By
+     *     then the lineup includes the new channels.
+     */
+    public void refreshListings(boolean force, @Nullable final ListingRefresher.Callback callback)
+            throws JSONException {
+        final List<String> urls = getListingUrls();
+        mListingRefresher.refresh(urls, mListingTtlMs, force, new ListingRefresher.Callback() {
+            @Override
+            public void onRefreshComplete(int changed, int failed) {
+                Map<String, JSONArray> listingChannels = getListingChannels(urls);
+                List<ChannelChangeEvent> events = new ArrayList<>();
+                synchronized (mDataLock) {
+                    // A playlist which was downloaded again is a new array. Listings which were
+                    // removed also take their channels with them.
+                    for (Map.Entry<String, JSONArray> listing : listingChannels.entrySet()) {
+                        if (mListingChannels.get(listing.getKey()) != listing.getValue()) {
+                            events.add(ChannelChangeEvent.listingRefreshed(listing.getKey()));
+                        }
+                    }
+                    for (String url : mListingChannels.keySet()) {
+                        if (!listingChannels.containsKey(url)) {
+                            events.add(ChannelChangeEvent.listingRefreshed(url));
+                        }
+                    }
+                    mListingChannels = listingChannels;
+                    if (!events.isEmpty()) {
+                        mTemporaryChannels = null;
+                    }
+                }
+                if (!events.isEmpty()) {
+                    // Make sure these get loaded
+                    invalidateLineup();
+                    mChangeLog.publish(events);
+                }
+                if (callback != null) {
+                    callback.onRefreshComplete(changed, failed);
+                }
+            }
+        });
+    }
+
+    /**
+     * Changes how long the channels of a {@link JsonListing} are used before the playlist is
+     * downloaded again.
+     *
+     * @param listingTtlMs The time to live in milliseconds.
+     */
+    public void setListingTtl(long listingTtlMs) {
+        mListingTtlMs = Math.max(0, listingTtlMs);
+    }
+
+    /**
+     * Checks on a background pool whether the stream of each channel still plays. Streams which
+     * were checked within {@link #DEFAULT_PROBE_TTL_MS} are not checked again. If dead channels
+     * are hidden and the set of dead streams changes, listeners are told to reload the lineup.
+     *
+     * @param force True to check every stream, even if it was checked recently.
+     * @param callback Called on a background thread once every stream has been checked.
+     */
+    public void probeStreams(boolean force, @Nullable final StreamProber.Callback callback)
+            throws JSONException {
+        List<String> urls = new ArrayList<>();
+        for (JsonChannel jsonChannel : getJsonChannels()) {
+            if (jsonChannel.getMediaUrl() != null) {
+                urls.add(jsonChannel.getMediaUrl());
+            }
+        }
+        final Set<String> deadUrls = mStreamProber.getDeadUrls();
+        mStreamProber.probe(urls, DEFAULT_PROBE_TTL_MS, force, new StreamProber.Callback() {
+            @Override
+            public void onProbeComplete(int checked, int dead) {
+                if (isHidingDeadStreams() && !deadUrls.equals(mStreamProber.getDeadUrls())) {
+                    mChangeLog.publish(Collections.singletonList(ChannelChangeEvent.reset()));
+                }
+                if (callback != null) {
+                    callback.onProbeComplete(checked, dead);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The result of the last check of a stream, or null if it has not been checked.
+     */
+    @Nullable
+    public ChannelStore.StreamHealth getStreamHealth(String mediaUrl) {
+        return mStreamProber.getHealth(mediaUrl);
+    }
+
+    /**
+     * @return True if the stream failed its last checks. Streams which have not been checked are
+     * treated as alive.
+     */
+    public boolean isStreamDead(String mediaUrl) {
+        return mStreamProber.isDead(mediaUrl);
+    }
+
+    /**
+     * @return True if the user chose to hide channels whose streams are dead.
+     */
+    public boolean isHidingDeadStreams() {
+        return mSettingsManager.getBoolean("HIDE_DEAD_STREAMS");
+    }
+
+    /**
+     * @return The channels which should be shown to the user. This is every channel unless dead
+     * channels are hidden.
+     */
+    public List<JsonChannel> getVisibleChannels() throws JSONException {
+        List<JsonChannel> jsonChannels = getJsonChannels();
+        if (!isHidingDeadStreams()) {
+            return jsonChannels;
+        }
+        List<JsonChannel> visibleChannels = new ArrayList<>(jsonChannels.size());
+        for (JsonChannel jsonChannel : jsonChannels) {
+            if (!isStreamDead(jsonChannel.getMediaUrl())) {
+                visibleChannels.add(jsonChannel);
+            }
+        }
+        return visibleChannels;
+    }
+
+    /**
+     * Collects the cached channels of each listing. Each listing's channels replace whatever it
+     * provided before, so channels removed from a playlist disappear on the next refresh.
+     */
+    private Map<String, JSONArray> getListingChannels(List<String> urls) {
+        Map<String, JSONArray> listingChannels = new LinkedHashMap<>();
+        for (String url : urls) {
+            JSONArray channels = mListingRefresher.getChannels(url);
+            if (channels != null) {
+                listingChannels.put(url, channels);
+            }
+        }
+        return listingChannels;
+    }
+
+    private List<String> getListingUrls() throws JSONException {
+        JSONArray jsonArray;
+        synchronized (mDataLock) {
+            // Avoid loading every entry when only the listings are needed
+            jsonArray = mEntries == null ? mChannelStore.readListings() : getJSONArray();
+        }
+        final List<String> urls = new ArrayList<>();
         for (int i = 0; i < jsonArray.length(); i++) {
             ChannelDatabaseFactory.parseType(jsonArray.getJSONObject(i), new ChannelDatabaseFactory.ChannelParser() {
                 @Override
@@ -518,34 +1324,11 @@ public class ChannelDatabase {
 
                 @Override
                 public void ifJsonListing(JsonListing entry) {
-                    Log.d(TAG, "Json listing " + entry.getUrl());
-                    new HttpFileParser(entry.getUrl(), new AbstractFileParser.FileLoader() {
-                        @Override
-                        public void onFileLoaded(InputStream inputStream) {
-                            if (inputStream == null) {
-                                return;
-                            }
-                            try {
-                                M3uParser.TvListing listing = M3uParser.parse(inputStream);
-                                if (listing == null) {
-                                    return;
-                                }
-                                List<M3uParser.M3uTvChannel> channels =
-                                        listing.channels;
-                                for (M3uParser.M3uTvChannel c : channels) {
-                                    Log.d(TAG, "Reading " + c.url + " from JSON Listing");
-                                    addTemporaryChannel(c.toJsonChannel());
-                                }
-                                // Make sure these get loaded
-                                mJsonChannelsList = null;
-                            } catch (IOException | JSONException e) {
-                                e.printStackTrace();
-                            }
-                        }
-                    });
+                    urls.add(entry.getUrl());
                 }
             });
         }
+        return urls;
     }
 
     public static String[] getAllGenres() {
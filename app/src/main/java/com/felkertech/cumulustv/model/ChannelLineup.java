@@ -0,0 +1,293 @@
+package com.felkertech.cumulustv.model;
+
+import android.support.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>An immutable snapshot of every channel the {@link ChannelDatabase} currently shows, along
+ * with lookup indexes for that exact set of channels.</p>
+ *
+ * <p>Whenever the database changes it publishes a brand new lineup with a higher version, so any
+ * thread holding a lineup can keep iterating over it without locking and without seeing a
+ * half-applied change.</p>
+ */
+public final class ChannelLineup {
+    private final long mVersion;
+    private final List<JsonChannel> mChannels;
+    private final Map<String, Integer> mMediaUrlIndex;
+    private final Map<String, Integer> mNumberIndex;
+    // The channels ordered by ChannelNumber, created the first time a range is requested if the
+    // database did not already have them in that order.
+    private volatile List<JsonChannel> mChannelsByNumber;
+
+    /**
+     * @param version The version of the new lineup.
+     * @param channels The channels, in display order.
+     * @param channelsByNumber The same channels ordered by {@link ChannelNumber}, or null if they
+     *     are not known yet.
+     */
+    ChannelLineup(long version, List<JsonChannel> channels,
+            @Nullable List<JsonChannel> channelsByNumber) {
+        mVersion = version;
+        mChannels = Collections.unmodifiableList(channels);
+        if (channelsByNumber != null) {
+            mChannelsByNumber = channelsByNumber == channels ? mChannels :
+                    Collections.unmodifiableList(channelsByNumber);
+        }
+        mMediaUrlIndex = new HashMap<>(channels.size() * 2);
+        mNumberIndex = new HashMap<>(channels.size() * 2);
+        for (int i = 0; i < channels.size(); i++) {
+            index(i, channels.get(i).getMediaUrl(), channels.get(i).getNumber());
+        }
+    }
+
+    /**
+     * Creates a lineup whose saved channels are read from a {@link LineupSnapshot}. Only the
+     * media url and number of each saved channel are read up front; the rest of a channel is
+     * read the first time it is accessed.
+     *
+     * @param version The version of the new lineup.
+     * @param snapshot The saved channels, in display order.
+     * @param extraChannels Channels which come after the saved ones, unless a saved channel has
+     *     the same media url.
+     */
+    ChannelLineup(long version, final LineupSnapshot snapshot, List<JsonChannel> extraChannels) {
+        mVersion = version;
+        int size = snapshot.size() + extraChannels.size();
+        mMediaUrlIndex = new HashMap<>(size * 2);
+        mNumberIndex = new HashMap<>(size * 2);
+        for (int i = 0; i < snapshot.size(); i++) {
+            index(i, snapshot.getMediaUrl(i), snapshot.getNumber(i));
+        }
+        // Like the saved channels, extra channels with the same media url are only shown once.
+        final List<JsonChannel> extras = new ArrayList<>();
+        for (JsonChannel jsonChannel : extraChannels) {
+            if (!mMediaUrlIndex.containsKey(canonicalMediaUrl(jsonChannel.getMediaUrl()))) {
+                index(snapshot.size() + extras.size(), jsonChannel.getMediaUrl(),
+                        jsonChannel.getNumber());
+                extras.add(jsonChannel);
+            }
+        }
+        mChannels = new AbstractList<JsonChannel>() {
+            @Override
+            public JsonChannel get(int index) {
+                if (index < snapshot.size()) {
+                    return snapshot.getChannel(index);
+                }
+                return extras.get(index - snapshot.size());
+            }
+
+            @Override
+            public int size() {
+                return snapshot.size() + extras.size();
+            }
+        };
+        if (snapshot.isSorted() && extras.isEmpty()) {
+            mChannelsByNumber = mChannels;
+        }
+    }
+
+    /**
+     * Creates a lineup of the saved channels followed by the temporary ones. A temporary channel
+     * which plays the same stream as a channel before it is not shown.
+     *
+     * @param version The version of the new lineup.
+     * @param savedChannels The saved channels in display order, or null to show every channel in
+     *     the order of its number.
+     * @param savedIndex The saved channels ordered by number.
+     * @param temporaryChannels The channels of playlists and other unsaved channels.
+     * @param temporaryIndex The temporary channels ordered by number.
+     */
+    static ChannelLineup build(long version, @Nullable List<JsonChannel> savedChannels,
+            ChannelNumberIndex savedIndex, List<JsonChannel> temporaryChannels,
+            ChannelNumberIndex temporaryIndex) {
+        List<JsonChannel> savedByNumber = savedIndex.toList();
+        List<JsonChannel> shownTemporaryChannels = new ArrayList<>();
+        List<JsonChannel> temporaryByNumber = new ArrayList<>();
+        if (!temporaryChannels.isEmpty()) {
+            Set<String> mediaUrls = new HashSet<>(savedByNumber.size() * 2);
+            for (JsonChannel jsonChannel : savedByNumber) {
+                mediaUrls.add(canonicalMediaUrl(jsonChannel.getMediaUrl()));
+            }
+            Set<JsonChannel> hiddenChannels =
+                    Collections.newSetFromMap(new IdentityHashMap<JsonChannel, Boolean>());
+            for (JsonChannel temporaryChannel : temporaryChannels) {
+                if (mediaUrls.add(canonicalMediaUrl(temporaryChannel.getMediaUrl()))) {
+                    shownTemporaryChannels.add(temporaryChannel);
+                } else {
+                    hiddenChannels.add(temporaryChannel);
+                }
+            }
+            for (JsonChannel temporaryChannel : temporaryIndex.toList()) {
+                if (!hiddenChannels.contains(temporaryChannel)) {
+                    temporaryByNumber.add(temporaryChannel);
+                }
+            }
+        }
+        // Both lists are already in order, so they only need to be merged rather than sorted
+        List<JsonChannel> channelsByNumber =
+                ChannelNumberIndex.merge(savedByNumber, temporaryByNumber);
+        if (savedChannels == null) {
+            return new ChannelLineup(version, channelsByNumber, channelsByNumber);
+        }
+        List<JsonChannel> channelList =
+                new ArrayList<>(savedChannels.size() + shownTemporaryChannels.size());
+        channelList.addAll(savedChannels);
+        channelList.addAll(shownTemporaryChannels);
+        return new ChannelLineup(version, channelList, channelsByNumber);
+    }
+
+    private void index(int position, String mediaUrl, String number) {
+        String mediaUrlKey = canonicalMediaUrl(mediaUrl);
+        if (mediaUrlKey != null && !mMediaUrlIndex.containsKey(mediaUrlKey)) {
+            mMediaUrlIndex.put(mediaUrlKey, position);
+        }
+        if (number != null && !mNumberIndex.containsKey(number)) {
+            mNumberIndex.put(number, position);
+        }
+    }
+
+    /**
+     * @return A number which increases every time the database publishes a new lineup.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return An unmodifiable list of channels, in display order.
+     */
+    public List<JsonChannel> getChannels() {
+        return mChannels;
+    }
+
+    public int size() {
+        return mChannels.size();
+    }
+
+    /**
+     * @param mediaUrl The media url of a channel.
+     * @return The first channel with this media url, or null if there is none. Urls are compared
+     * by their {@link #canonicalMediaUrl(String)}.
+     */
+    public JsonChannel findChannelByMediaUrl(String mediaUrl) {
+        if (mediaUrl == null) {
+            return null;
+        }
+        Integer position = mMediaUrlIndex.get(canonicalMediaUrl(mediaUrl));
+        return position == null ? null : mChannels.get(position);
+    }
+
+    /**
+     * @param number A display number.
+     * @return True if any channel uses this number.
+     */
+    public boolean channelNumberExists(String number) {
+        return mNumberIndex.containsKey(number);
+    }
+
+    /**
+     * @return An unmodifiable list of channels, ordered by {@link ChannelNumber}.
+     */
+    public List<JsonChannel> getChannelsByNumber() {
+        List<JsonChannel> channelsByNumber = mChannelsByNumber;
+        if (channelsByNumber == null) {
+            List<JsonChannel> sorted = new ArrayList<>(mChannels);
+            Collections.sort(sorted);
+            channelsByNumber = Collections.unmodifiableList(sorted);
+            mChannelsByNumber = channelsByNumber;
+        }
+        return channelsByNumber;
+    }
+
+    /**
+     * Finds the channels whose number lies within a range, such as every channel from 500 up to
+     * but not including 600 for a page of the guide. Only the major and minor parts of numbers
+     * are compared, so "599.5" is part of that range.
+     *
+     * @param fromNumber The lowest number of the range.
+     * @param toNumber The number after the range, which is not included.
+     * @return An unmodifiable list of the channels in the range, ordered by number.
+     */
+    public List<JsonChannel> getChannelsInRange(String fromNumber, String toNumber) {
+        List<JsonChannel> channelsByNumber = getChannelsByNumber();
+        int start = lowerBound(channelsByNumber, ChannelNumber.parse(fromNumber));
+        int end = lowerBound(channelsByNumber, ChannelNumber.parse(toNumber));
+        if (end <= start) {
+            return Collections.emptyList();
+        }
+        return channelsByNumber.subList(start, end);
+    }
+
+    /**
+     * @return The position of the first channel whose number is not below the given one.
+     */
+    private static int lowerBound(List<JsonChannel> channelsByNumber, ChannelNumber number) {
+        int low = 0;
+        int high = channelsByNumber.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (ChannelNumber.parse(channelsByNumber.get(middle).getNumber())
+                    .compareValueTo(number) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the form of a media url which is used to tell whether two channels play the same
+     * stream. Surrounding whitespace and the case of the scheme and host are ignored.
+     *
+     * @param mediaUrl A media url, which may be null.
+     * @return The canonical media url, or null if the media url is null.
+     */
+    public static String canonicalMediaUrl(String mediaUrl) {
+        if (mediaUrl == null) {
+            return null;
+        }
+        String url = mediaUrl.trim();
+        int schemeEnd = url.indexOf("://");
+        if (schemeEnd < 0) {
+            return url;
+        }
+        int hostEnd = schemeEnd + 3;
+        while (hostEnd < url.length()) {
+            char c = url.charAt(hostEnd);
+            if (c == '/' || c == '?' || c == '#') {
+                break;
+            }
+            hostEnd++;
+        }
+        // User info is case-sensitive, so only the host after it is lowercased.
+        int hostStart = Math.max(schemeEnd + 3, url.lastIndexOf('@', hostEnd - 1) + 1);
+        if (!hasUpperCase(url, 0, schemeEnd) && !hasUpperCase(url, hostStart, hostEnd)) {
+            return url;
+        }
+        return url.substring(0, schemeEnd).toLowerCase(Locale.US) +
+                url.substring(schemeEnd, hostStart) +
+                url.substring(hostStart, hostEnd).toLowerCase(Locale.US) +
+                url.substring(hostEnd);
+    }
+
+    private static boolean hasUpperCase(String string, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (Character.isUpperCase(string.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
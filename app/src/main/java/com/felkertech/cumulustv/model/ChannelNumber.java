@@ -0,0 +1,127 @@
+package com.felkertech.cumulustv.model;
+
+/**
+ * <p>A display number parsed into its major and minor parts, so channels can be ordered the way
+ * a tuner lists them: "9" comes before "10", and "5.2" before "5.10".</p>
+ *
+ * <p>A number is numeric if it starts with digits, optionally followed by a separator
+ * ('.', '-', '_' or a space) and more digits, as in "5", "5.1" or "2-1". Numeric channels are
+ * ordered by major and then minor number, a number without a minor part coming first. Anything
+ * else, such as "A1", comes after every numeric channel and is ordered as text.</p>
+ */
+public final class ChannelNumber implements Comparable<ChannelNumber> {
+    private static final int MAX_DIGITS = 18;
+
+    private final String mNumber;
+    private final boolean mNumeric;
+    private final long mMajor;
+    private final long mMinor;
+
+    private ChannelNumber(String number, boolean numeric, long major, long minor) {
+        mNumber = number;
+        mNumeric = numeric;
+        mMajor = major;
+        mMinor = minor;
+    }
+
+    /**
+     * @param number A display number, which may be null.
+     * @return The parsed number.
+     */
+    public static ChannelNumber parse(String number) {
+        String trimmed = number == null ? "" : number.trim();
+        int majorEnd = skipDigits(trimmed, 0);
+        if (majorEnd == 0 || majorEnd > MAX_DIGITS) {
+            return new ChannelNumber(trimmed, false, 0, 0);
+        }
+        long major = Long.parseLong(trimmed.substring(0, majorEnd));
+        if (majorEnd == trimmed.length()) {
+            return new ChannelNumber(trimmed, true, major, -1);
+        }
+        if (!isSeparator(trimmed.charAt(majorEnd))) {
+            return new ChannelNumber(trimmed, false, 0, 0);
+        }
+        int minorEnd = skipDigits(trimmed, majorEnd + 1);
+        if (minorEnd == majorEnd + 1 || minorEnd - majorEnd - 1 > MAX_DIGITS) {
+            return new ChannelNumber(trimmed, false, 0, 0);
+        }
+        // Anything after the minor number only breaks ties, through the text comparison
+        return new ChannelNumber(trimmed, true, major,
+                Long.parseLong(trimmed.substring(majorEnd + 1, minorEnd)));
+    }
+
+    private static int skipDigits(String string, int start) {
+        int end = start;
+        while (end < string.length() && string.charAt(end) >= '0' && string.charAt(end) <= '9') {
+            end++;
+        }
+        return end;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == '-' || c == '_' || c == ' ';
+    }
+
+    /**
+     * @return True if the number starts with a major number.
+     */
+    public boolean isNumeric() {
+        return mNumeric;
+    }
+
+    /**
+     * @return The major number, or 0 if the number is not numeric.
+     */
+    public long getMajor() {
+        return mMajor;
+    }
+
+    /**
+     * @return The minor number, or -1 if there is none.
+     */
+    public long getMinor() {
+        return mNumeric ? mMinor : -1;
+    }
+
+    @Override
+    public int compareTo(ChannelNumber other) {
+        int result = compareValueTo(other);
+        // Keeps the order total, so "05" and "5" are still told apart
+        return result != 0 ? result : mNumber.compareTo(other.mNumber);
+    }
+
+    /**
+     * Compares only the major and minor numbers of numeric channels, so "05" and "5" are equal.
+     * This is the order used for ranges of channels.
+     */
+    int compareValueTo(ChannelNumber other) {
+        if (mNumeric != other.mNumeric) {
+            return mNumeric ? -1 : 1;
+        }
+        if (!mNumeric) {
+            return mNumber.compareTo(other.mNumber);
+        }
+        if (mMajor != other.mMajor) {
+            return mMajor < other.mMajor ? -1 : 1;
+        }
+        if (mMinor != other.mMinor) {
+            return mMinor < other.mMinor ? -1 : 1;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof ChannelNumber && mNumber.equals(((ChannelNumber) o).mNumber);
+    }
+
+    @Override
+    public int hashCode() {
+        return mNumber.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mNumber;
+    }
+}
@@ -0,0 +1,98 @@
+package com.felkertech.cumulustv.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * <p>Keeps channels ordered by their {@link ChannelNumber}. Adding or removing a channel costs
+ * O(log n), so the order can be kept up to date as channels change instead of sorting every
+ * channel again.</p>
+ *
+ * <p>Channels with the same number keep the order they were added in. This class is not thread
+ * safe; the {@link ChannelDatabase} only uses it while holding its data lock.</p>
+ */
+class ChannelNumberIndex {
+    private final TreeMap<ChannelNumber, List<JsonChannel>> mChannels = new TreeMap<>();
+    private int mSize;
+
+    ChannelNumberIndex() {
+    }
+
+    ChannelNumberIndex(List<JsonChannel> channels) {
+        for (JsonChannel channel : channels) {
+            add(channel);
+        }
+    }
+
+    void add(JsonChannel channel) {
+        ChannelNumber number = ChannelNumber.parse(channel.getNumber());
+        List<JsonChannel> channels = mChannels.get(number);
+        if (channels == null) {
+            channels = new ArrayList<>(1);
+            mChannels.put(number, channels);
+        }
+        channels.add(channel);
+        mSize++;
+    }
+
+    /**
+     * Removes one channel with the same number and media url.
+     *
+     * @return True if a channel was removed.
+     */
+    boolean remove(JsonChannel channel) {
+        ChannelNumber number = ChannelNumber.parse(channel.getNumber());
+        List<JsonChannel> channels = mChannels.get(number);
+        if (channels == null || !channels.remove(channel)) {
+            return false;
+        }
+        if (channels.isEmpty()) {
+            mChannels.remove(number);
+        }
+        mSize--;
+        return true;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * @return Every channel, ordered by number.
+     */
+    List<JsonChannel> toList() {
+        List<JsonChannel> list = new ArrayList<>(mSize);
+        for (List<JsonChannel> channels : mChannels.values()) {
+            list.addAll(channels);
+        }
+        return list;
+    }
+
+    /**
+     * Merges two lists which are each ordered by number into one ordered list. When numbers are
+     * equal, channels from the first list come first.
+     */
+    static List<JsonChannel> merge(List<JsonChannel> first, List<JsonChannel> second) {
+        List<JsonChannel> merged = new ArrayList<>(first.size() + second.size());
+        int i = 0;
+        int j = 0;
+        ChannelNumber firstNumber = i < first.size() ?
+                ChannelNumber.parse(first.get(i).getNumber()) : null;
+        ChannelNumber secondNumber = j < second.size() ?
+                ChannelNumber.parse(second.get(j).getNumber()) : null;
+        while (firstNumber != null || secondNumber != null) {
+            if (secondNumber == null ||
+                    (firstNumber != null && firstNumber.compareTo(secondNumber) <= 0)) {
+                merged.add(first.get(i++));
+                firstNumber = i < first.size() ? ChannelNumber.parse(first.get(i).getNumber())
+                        : null;
+            } else {
+                merged.add(second.get(j++));
+                secondNumber = j < second.size() ?
+                        ChannelNumber.parse(second.get(j).getNumber()) : null;
+            }
+        }
+        return merged;
+    }
+}
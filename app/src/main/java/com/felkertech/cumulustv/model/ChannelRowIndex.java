@@ -0,0 +1,290 @@
+package com.felkertech.cumulustv.model;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.media.tv.TvContract;
+import android.net.Uri;
+import android.os.Handler;
+import android.support.annotation.WorkerThread;
+import android.support.v4.content.LocalBroadcastManager;
+import android.util.Log;
+
+import com.google.android.media.tv.companionlibrary.EpgSyncJobService;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Keeps track of which row of the system's TV provider belongs to which channel, keyed by the
+ * channel's media url.</p>
+ *
+ * <p>The last known rows are stored in the {@link ChannelStore}, so they can be read as soon as
+ * the app starts. Afterwards the index is kept up to date by observing this input's channels in
+ * the TV provider, and is checked again whenever an EPG sync finishes. A change to a single
+ * channel only re-reads that one row.</p>
+ */
+public class ChannelRowIndex {
+    private static final String TAG = ChannelRowIndex.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final String[] PROJECTION = new String[] {
+            TvContract.Channels._ID,
+            TvContract.Channels.COLUMN_INPUT_ID,
+            TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA
+    };
+    private static final String PATH_CHANNEL = "channel";
+
+    private final Context mContext;
+    private final ChannelStore mChannelStore;
+    private final String mInputId;
+    private final Uri mChannelsUri;
+    // Both maps are replaced rather than modified, so readers never need to lock.
+    private volatile Map<Long, String> mMediaUrls;
+    private volatile Map<String, Long> mRowIds;
+    private Handler mHandler;
+
+    private final Runnable mRescanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            rescan();
+        }
+    };
+
+    /**
+     * Creates an index with the rows which were stored the last time the app ran.
+     *
+     * @param context The app's context.
+     * @param channelStore The store in which rows are persisted.
+     * @param inputId The id of the TV input whose channels should be indexed.
+     */
+    public ChannelRowIndex(Context context, ChannelStore channelStore, String inputId) {
+        mContext = context.getApplicationContext();
+        mChannelStore = channelStore;
+        mInputId = inputId;
+        mChannelsUri = TvContract.buildChannelsUriForInput(inputId);
+        publish(mChannelStore.readRowIds());
+    }
+
+    /**
+     * Starts listening for changes to this input's channels. Changes are read on the thread of
+     * the given handler. A full check is run once right away to catch up with changes made while
+     * the app was not running. Calling this again only runs another full check.
+     *
+     * @param handler A handler for a background thread.
+     */
+    public void start(Handler handler) {
+        if (mHandler != null) {
+            requestRescan();
+            return;
+        }
+        mHandler = handler;
+        mContext.getContentResolver().registerContentObserver(mChannelsUri, true,
+                new ContentObserver(handler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                onChange(selfChange, null);
+            }
+
+            @Override
+            public void onChange(boolean selfChange, Uri uri) {
+                onChannelChanged(uri);
+            }
+        });
+        LocalBroadcastManager.getInstance(mContext).registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (EpgSyncJobService.SYNC_FINISHED.equals(
+                        intent.getStringExtra(EpgSyncJobService.SYNC_STATUS))) {
+                    requestRescan();
+                }
+            }
+        }, new IntentFilter(EpgSyncJobService.ACTION_SYNC_STATUS_CHANGED));
+        requestRescan();
+    }
+
+    /**
+     * @param mediaUrl The media url of a channel.
+     * @return The TV provider row of this channel, or null if it has not been synced.
+     */
+    public Long getRowId(String mediaUrl) {
+        return mRowIds.get(mediaUrl);
+    }
+
+    /**
+     * @param rowId A row id in the TV provider.
+     * @return The media url of the channel in that row, or null if it is not one of ours.
+     */
+    public String getMediaUrl(long rowId) {
+        return mMediaUrls.get(rowId);
+    }
+
+    /**
+     * @return An unmodifiable map from each synced channel's media url to its row id.
+     */
+    public Map<String, Long> getRowIds() {
+        return mRowIds;
+    }
+
+    private void requestRescan() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mRescanRunnable);
+            mHandler.post(mRescanRunnable);
+        }
+    }
+
+    private void onChannelChanged(Uri uri) {
+        long rowId = getRowIdFromUri(uri);
+        if (rowId < 0) {
+            // Several channels may have changed at once
+            requestRescan();
+        } else {
+            refreshRow(rowId);
+        }
+    }
+
+    /**
+     * @return The row id of a uri pointing at a single channel, or -1 for any other uri.
+     */
+    private static long getRowIdFromUri(Uri uri) {
+        if (uri == null) {
+            return -1;
+        }
+        List<String> segments = uri.getPathSegments();
+        if (segments == null || segments.size() != 2 || !PATH_CHANNEL.equals(segments.get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads all of this input's channels from the TV provider and stores whatever changed.
+     */
+    @WorkerThread
+    public void rescan() {
+        Cursor cursor = mContext.getContentResolver().query(mChannelsUri, PROJECTION, null, null,
+                null);
+        if (cursor == null) {
+            return;
+        }
+        Map<Long, String> mediaUrls = new HashMap<>();
+        try {
+            int idColumn = cursor.getColumnIndexOrThrow(TvContract.Channels._ID);
+            int dataColumn = cursor.getColumnIndexOrThrow(
+                    TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA);
+            while (cursor.moveToNext()) {
+                String mediaUrl = getMediaUrl(cursor, dataColumn);
+                if (mediaUrl != null) {
+                    mediaUrls.put(cursor.getLong(idColumn), mediaUrl);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        applyChanges(mediaUrls, true);
+    }
+
+    /**
+     * Reads one channel from the TV provider and stores it if it changed.
+     *
+     * @param rowId The row id of the channel.
+     */
+    @WorkerThread
+    public void refreshRow(long rowId) {
+        Cursor cursor = mContext.getContentResolver().query(TvContract.buildChannelUri(rowId),
+                PROJECTION, null, null, null);
+        String mediaUrl = null;
+        if (cursor != null) {
+            try {
+                if (cursor.moveToNext() && mInputId.equals(cursor.getString(
+                        cursor.getColumnIndexOrThrow(TvContract.Channels.COLUMN_INPUT_ID)))) {
+                    mediaUrl = getMediaUrl(cursor, cursor.getColumnIndexOrThrow(
+                            TvContract.Channels.COLUMN_INTERNAL_PROVIDER_DATA));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        Map<Long, String> row = new HashMap<>();
+        if (mediaUrl != null) {
+            row.put(rowId, mediaUrl);
+        } else if (mMediaUrls.containsKey(rowId)) {
+            row.put(rowId, null);
+        }
+        applyChanges(row, false);
+    }
+
+    private static String getMediaUrl(Cursor cursor, int dataColumn) {
+        byte[] data = cursor.getBlob(dataColumn);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return new InternalProviderData(data).getVideoUrl();
+        } catch (InternalProviderData.ParseException e) {
+            Log.w(TAG, "Unable to read internal provider data: " + e.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * Compares rows read from the TV provider with the current index, and stores and publishes
+     * only the differences.
+     *
+     * @param rows Row ids mapped to their media url, or to null if the row was removed.
+     * @param complete True if the rows are every channel of this input, so any row which is
+     *     missing from them has been removed.
+     */
+    private synchronized void applyChanges(Map<Long, String> rows, boolean complete) {
+        Map<Long, String> current = mMediaUrls;
+        Map<Long, String> changed = new HashMap<>();
+        List<Long> removed = new ArrayList<>();
+        for (Map.Entry<Long, String> row : rows.entrySet()) {
+            if (row.getValue() == null) {
+                removed.add(row.getKey());
+            } else if (!row.getValue().equals(current.get(row.getKey()))) {
+                changed.put(row.getKey(), row.getValue());
+            }
+        }
+        if (complete) {
+            for (Long rowId : current.keySet()) {
+                if (!rows.containsKey(rowId)) {
+                    removed.add(rowId);
+                }
+            }
+        }
+        if (changed.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, changed.size() + " rows changed and " + removed.size() + " were removed");
+        }
+        mChannelStore.writeRowIds(changed, removed);
+        Map<Long, String> mediaUrls = new HashMap<>(current);
+        for (Long rowId : removed) {
+            mediaUrls.remove(rowId);
+        }
+        mediaUrls.putAll(changed);
+        publish(mediaUrls);
+    }
+
+    private void publish(Map<Long, String> mediaUrls) {
+        Map<String, Long> rowIds = new HashMap<>(mediaUrls.size() * 2);
+        for (Map.Entry<Long, String> row : mediaUrls.entrySet()) {
+            rowIds.put(row.getValue(), row.getKey());
+        }
+        mRowIds = Collections.unmodifiableMap(rowIds);
+        mMediaUrls = Collections.unmodifiableMap(mediaUrls);
+    }
+}
@@ -0,0 +1,768 @@
+package com.felkertech.cumulustv.model;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.felkertech.cumulustv.model.ChannelDatabaseFactory.KEY_TYPE;
+import static com.felkertech.cumulustv.model.ChannelDatabaseFactory.TYPE_JSON_LISTING;
+
+/**
+ * <p>Persists every entry of the {@link ChannelDatabase} as its own row, so editing or removing a
+ * single channel only touches that row instead of rewriting the whole lineup.</p>
+ *
+ * <p>Entries are identified by their url, which is the media url of a {@link JsonChannel} and the
+ * playlist url of a {@link JsonListing}. Urls are compared in the form of
+ * {@link ChannelLineup#canonicalMediaUrl(String)}, so an entry is the same one the lineup shows.
+ * Rows are returned in the order they were inserted. The
+ * JSON document built by {@link ChannelDatabase#toString()} is still what gets exported and
+ * synced with Google Drive.</p>
+ */
+public class ChannelStore extends SQLiteOpenHelper {
+    private static final String TAG = ChannelStore.class.getSimpleName();
+
+    private static final String DATABASE_NAME = "channels.db";
+    private static final int DATABASE_VERSION = 7;
+
+    private static final String TABLE_ENTRIES = "entries";
+    private static final String TABLE_META = "meta";
+    private static final String TABLE_ROW_IDS = "row_ids";
+    private static final String TABLE_LISTINGS = "listings";
+    private static final String TABLE_IMPORT_HASHES = "import_hashes";
+    private static final String TABLE_STREAM_HEALTH = "stream_health";
+
+    private static final String COLUMN_ID = "_id";
+    private static final String COLUMN_TYPE = "type";
+    private static final String COLUMN_URL = "url";
+    private static final String COLUMN_DATA = "data";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+    private static final String COLUMN_ROW_ID = "row_id";
+    private static final String COLUMN_ETAG = "etag";
+    private static final String COLUMN_LAST_MODIFIED = "last_modified";
+    private static final String COLUMN_FETCHED = "fetched";
+    private static final String COLUMN_SOURCE = "source";
+    private static final String COLUMN_HASH = "hash";
+    private static final String COLUMN_FAILURES = "failures";
+    private static final String COLUMN_LATENCY = "latency";
+    private static final String COLUMN_CHECKED = "checked";
+
+    private static final String META_MODIFIED = "modified";
+    private static final String META_MIGRATED = "migrated";
+    private static final String META_GENERATION = "generation";
+
+    private static final String TYPE_CHANNEL = "channel";
+    // Both CumulusChannel and JsonListing serialize their url under this key.
+    static final String KEY_URL = "url";
+
+    private static final String WHERE_ENTRY = COLUMN_TYPE + " = ? AND " + COLUMN_URL + " = ?";
+
+    public ChannelStore(Context context) {
+        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ENTRIES + " (" +
+                COLUMN_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                COLUMN_TYPE + " TEXT NOT NULL, " +
+                COLUMN_URL + " TEXT NOT NULL, " +
+                COLUMN_DATA + " TEXT NOT NULL)");
+        db.execSQL("CREATE INDEX " + TABLE_ENTRIES + "_" + COLUMN_URL + " ON " + TABLE_ENTRIES +
+                " (" + COLUMN_URL + ")");
+        db.execSQL("CREATE TABLE " + TABLE_META + " (" +
+                COLUMN_KEY + " TEXT PRIMARY KEY, " +
+                COLUMN_VALUE + " TEXT)");
+        createRowIdTable(db);
+        createListingTable(db);
+        createImportHashTable(db);
+        createStreamHealthTable(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            createRowIdTable(db);
+        }
+        if (oldVersion < 3) {
+            createListingTable(db);
+        }
+        if (oldVersion < 4) {
+            createImportHashTable(db);
+        }
+        if (oldVersion < 5) {
+            createStreamHealthTable(db);
+        }
+        if (oldVersion < 6) {
+            canonicalizeEntryUrls(db);
+        }
+        if (oldVersion < 7) {
+            deleteNonCanonicalStreamHealth(db);
+        }
+    }
+
+    private static void createRowIdTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_ROW_IDS + " (" +
+                COLUMN_ROW_ID + " INTEGER PRIMARY KEY, " +
+                COLUMN_URL + " TEXT NOT NULL)");
+    }
+
+    private static void createListingTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_LISTINGS + " (" +
+                COLUMN_URL + " TEXT PRIMARY KEY, " +
+                COLUMN_ETAG + " TEXT, " +
+                COLUMN_LAST_MODIFIED + " TEXT, " +
+                COLUMN_FETCHED + " INTEGER NOT NULL, " +
+                COLUMN_DATA + " TEXT NOT NULL)");
+    }
+
+    private static void createImportHashTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_IMPORT_HASHES + " (" +
+                COLUMN_SOURCE + " TEXT NOT NULL, " +
+                COLUMN_URL + " TEXT NOT NULL, " +
+                COLUMN_HASH + " INTEGER NOT NULL, " +
+                "PRIMARY KEY (" + COLUMN_SOURCE + ", " + COLUMN_URL + "))");
+    }
+
+    /**
+     * Stores the url of every entry in its canonical form. Entries which now have the same key
+     * are one entry, of which the first is kept.
+     */
+    private static void canonicalizeEntryUrls(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE_ENTRIES, new String[] {COLUMN_ID, COLUMN_TYPE, COLUMN_URL},
+                null, null, null, null, COLUMN_ID);
+        if (cursor == null) {
+            return;
+        }
+        Set<String> keys = new HashSet<>();
+        boolean changed = false;
+        try {
+            while (cursor.moveToNext()) {
+                String[] id = new String[] {String.valueOf(cursor.getLong(0))};
+                String url = cursor.getString(2);
+                String canonicalUrl = ChannelLineup.canonicalMediaUrl(url);
+                if (!keys.add(cursor.getString(1) + " " + canonicalUrl)) {
+                    db.delete(TABLE_ENTRIES, COLUMN_ID + " = ?", id);
+                    changed = true;
+                } else if (!canonicalUrl.equals(url)) {
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_URL, canonicalUrl);
+                    db.update(TABLE_ENTRIES, values, COLUMN_ID + " = ?", id);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        if (changed) {
+            // The lineup snapshot still has the removed entries, so it must not be used
+            String generation = getMeta(db, META_GENERATION);
+            putMeta(db, META_GENERATION,
+                    String.valueOf(generation == null ? 1 : Long.parseLong(generation) + 1));
+        }
+    }
+
+    private static void createStreamHealthTable(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_STREAM_HEALTH + " (" +
+                COLUMN_URL + " TEXT PRIMARY KEY, " +
+                COLUMN_FAILURES + " INTEGER NOT NULL, " +
+                COLUMN_LATENCY + " INTEGER NOT NULL, " +
+                COLUMN_CHECKED + " INTEGER NOT NULL)");
+    }
+
+    /**
+     * Forgets the health of streams stored under a url which is not canonical. Those streams
+     * are checked again the next time.
+     */
+    private static void deleteNonCanonicalStreamHealth(SQLiteDatabase db) {
+        Cursor cursor = db.query(TABLE_STREAM_HEALTH, new String[] {COLUMN_URL}, null, null,
+                null, null, null);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                String url = cursor.getString(0);
+                if (!url.equals(ChannelLineup.canonicalMediaUrl(url))) {
+                    db.delete(TABLE_STREAM_HEALTH, COLUMN_URL + " = ?", new String[] {url});
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @return True once the legacy JSON string has been copied into this store.
+     */
+    public boolean isMigrated() {
+        return getMeta(META_MIGRATED) != null;
+    }
+
+    /**
+     * @return The time the entries were last written, in milliseconds.
+     */
+    public long getLastModified() {
+        String modified = getMeta(META_MODIFIED);
+        if (modified == null) {
+            return 0;
+        }
+        return Long.parseLong(modified);
+    }
+
+    /**
+     * @return A number which increases every time the entries are written. This can be used to
+     * check whether a copy of the entries is still current.
+     */
+    public long getGeneration() {
+        String generation = getMeta(META_GENERATION);
+        if (generation == null) {
+            return 0;
+        }
+        return Long.parseLong(generation);
+    }
+
+    /**
+     * Reads every entry in insertion order.
+     *
+     * @return An array of the JSON form of each {@link JsonChannel} and {@link JsonListing}.
+     */
+    public JSONArray readEntries() throws JSONException {
+        return readEntries(null, null);
+    }
+
+    /**
+     * Reads every {@link JsonListing} in insertion order, without reading any channels.
+     *
+     * @return An array of the JSON form of each {@link JsonListing}.
+     */
+    public JSONArray readListings() throws JSONException {
+        return readEntries(COLUMN_TYPE + " = ?", new String[] {TYPE_JSON_LISTING});
+    }
+
+    private JSONArray readEntries(String selection, String[] selectionArgs)
+            throws JSONException {
+        JSONArray entries = new JSONArray();
+        Cursor cursor = getReadableDatabase().query(TABLE_ENTRIES, new String[] {COLUMN_DATA},
+                selection, selectionArgs, null, null, COLUMN_ID);
+        if (cursor == null) {
+            return entries;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                entries.put(new JSONObject(cursor.getString(0)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return entries;
+    }
+
+    /**
+     * Replaces every entry in the store and marks the store as migrated. This is used both for
+     * the one-time migration of the legacy JSON string and for importing a Google Drive file.
+     *
+     * @param entries The JSON form of every entry, in order.
+     * @param modified The modification time to store alongside the entries.
+     * @return The new {@link #getGeneration()}.
+     */
+    public long replaceAll(JSONArray entries, long modified) throws JSONException {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_ENTRIES, null, null);
+            db.delete(TABLE_IMPORT_HASHES, null, null);
+            // Entries with the same key are one entry, of which the first is kept
+            Set<String> keys = new HashSet<>(entries.length() * 2);
+            for (int i = 0; i < entries.length(); i++) {
+                JSONObject entry = entries.getJSONObject(i);
+                if (keys.add(getKey(entry))) {
+                    insertEntry(db, entry);
+                }
+            }
+            putMeta(db, META_MODIFIED, String.valueOf(modified));
+            putMeta(db, META_MIGRATED, String.valueOf(System.currentTimeMillis()));
+            long generation = nextGeneration(db);
+            db.setTransactionSuccessful();
+            return generation;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Applies a list of row changes in a single transaction.
+     *
+     * @param writes The changes, in the order they were made.
+     * @param modified The modification time to store alongside the entries.
+     * @return The new {@link #getGeneration()}, or -1 if the changes could not be written.
+     */
+    public long write(List<Write> writes, long modified) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Write write : writes) {
+                write.apply(db);
+            }
+            putMeta(db, META_MODIFIED, String.valueOf(modified));
+            long generation = nextGeneration(db);
+            db.setTransactionSuccessful();
+            return generation;
+        } catch (JSONException e) {
+            Log.e(TAG, "Unable to write channel entries: " + e.getMessage());
+        } finally {
+            db.endTransaction();
+        }
+        return -1;
+    }
+
+    private long nextGeneration(SQLiteDatabase db) {
+        long generation = getGeneration() + 1;
+        putMeta(db, META_GENERATION, String.valueOf(generation));
+        return generation;
+    }
+
+    /**
+     * Reads the rows the TV provider has assigned to this input's channels, as last seen by the
+     * {@link ChannelRowIndex}.
+     *
+     * @return A map from each TV provider row id to the media url of its channel.
+     */
+    public Map<Long, String> readRowIds() {
+        Map<Long, String> rowIds = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_ROW_IDS,
+                new String[] {COLUMN_ROW_ID, COLUMN_URL}, null, null, null, null, null);
+        if (cursor == null) {
+            return rowIds;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                rowIds.put(cursor.getLong(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return rowIds;
+    }
+
+    /**
+     * Applies changes to the stored TV provider rows in a single transaction.
+     *
+     * @param changed Rows which were added or now point to a different media url.
+     * @param removed Rows which no longer exist.
+     */
+    public void writeRowIds(Map<Long, String> changed, Collection<Long> removed) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (Long rowId : removed) {
+                db.delete(TABLE_ROW_IDS, COLUMN_ROW_ID + " = ?",
+                        new String[] {String.valueOf(rowId)});
+            }
+            for (Map.Entry<Long, String> row : changed.entrySet()) {
+                ContentValues values = new ContentValues();
+                values.put(COLUMN_ROW_ID, row.getKey());
+                values.put(COLUMN_URL, row.getValue());
+                db.insertWithOnConflict(TABLE_ROW_IDS, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Reads the hashes of the channels which were imported from a playlist, as last written by
+     * {@link Write#putImportHash(String, String, long)}.
+     *
+     * @param source The playlist the channels were imported from.
+     * @return A map from each media url to the {@link PlaylistDiff#hash(JSONObject)} of its
+     * channel.
+     */
+    public Map<String, Long> readImportHashes(String source) {
+        Map<String, Long> hashes = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_IMPORT_HASHES,
+                new String[] {COLUMN_URL, COLUMN_HASH}, COLUMN_SOURCE + " = ?",
+                new String[] {source}, null, null, null);
+        if (cursor == null) {
+            return hashes;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                hashes.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return hashes;
+    }
+
+    /**
+     * Reads the last downloaded copy of every {@link JsonListing} playlist.
+     *
+     * @return A map from each playlist url to its cached channels.
+     */
+    public Map<String, CachedListing> readCachedListings() throws JSONException {
+        Map<String, CachedListing> listings = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_LISTINGS, new String[] {COLUMN_URL,
+                COLUMN_ETAG, COLUMN_LAST_MODIFIED, COLUMN_FETCHED, COLUMN_DATA}, null, null, null,
+                null, null);
+        if (cursor == null) {
+            return listings;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                CachedListing listing = new CachedListing(cursor.getString(0), cursor.getString(1),
+                        cursor.getString(2), cursor.getLong(3), new JSONArray(cursor.getString(4)));
+                listings.put(listing.getUrl(), listing);
+            }
+        } finally {
+            cursor.close();
+        }
+        return listings;
+    }
+
+    /**
+     * Stores a downloaded playlist, replacing any previous copy.
+     */
+    public void putCachedListing(CachedListing listing) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_URL, listing.getUrl());
+        values.put(COLUMN_ETAG, listing.getEtag());
+        values.put(COLUMN_LAST_MODIFIED, listing.getLastModified());
+        values.put(COLUMN_FETCHED, listing.getFetched());
+        values.put(COLUMN_DATA, listing.getChannels().toString());
+        getWritableDatabase().insertWithOnConflict(TABLE_LISTINGS, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Removes the cached copy of a playlist.
+     */
+    public void deleteCachedListing(String url) {
+        getWritableDatabase().delete(TABLE_LISTINGS, COLUMN_URL + " = ?", new String[] {url});
+    }
+
+    /**
+     * Reads the result of the last check of every stream.
+     *
+     * @return A map from each media url to its health.
+     */
+    public Map<String, StreamHealth> readStreamHealth() {
+        Map<String, StreamHealth> health = new HashMap<>();
+        Cursor cursor = getReadableDatabase().query(TABLE_STREAM_HEALTH, new String[] {COLUMN_URL,
+                COLUMN_FAILURES, COLUMN_LATENCY, COLUMN_CHECKED}, null, null, null, null, null);
+        if (cursor == null) {
+            return health;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                StreamHealth streamHealth = new StreamHealth(cursor.getString(0),
+                        cursor.getInt(1), cursor.getLong(2), cursor.getLong(3));
+                health.put(streamHealth.getUrl(), streamHealth);
+            }
+        } finally {
+            cursor.close();
+        }
+        return health;
+    }
+
+    /**
+     * Stores the result of checking a stream, replacing any previous result.
+     */
+    public void putStreamHealth(StreamHealth health) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_URL, health.getUrl());
+        values.put(COLUMN_FAILURES, health.getFailures());
+        values.put(COLUMN_LATENCY, health.getLatencyMs());
+        values.put(COLUMN_CHECKED, health.getChecked());
+        getWritableDatabase().insertWithOnConflict(TABLE_STREAM_HEALTH, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    /**
+     * Forgets the health of a stream which is no longer in the lineup.
+     */
+    public void deleteStreamHealth(String url) {
+        getWritableDatabase().delete(TABLE_STREAM_HEALTH, COLUMN_URL + " = ?",
+                new String[] {url});
+    }
+
+    private static void insertEntry(SQLiteDatabase db, JSONObject entry) throws JSONException {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_TYPE, getType(entry));
+        values.put(COLUMN_URL, getUrl(entry));
+        values.put(COLUMN_DATA, entry.toString());
+        db.insert(TABLE_ENTRIES, null, values);
+    }
+
+    private String getMeta(String key) {
+        return getMeta(getReadableDatabase(), key);
+    }
+
+    private static String getMeta(SQLiteDatabase db, String key) {
+        Cursor cursor = db.query(TABLE_META, new String[] {COLUMN_VALUE},
+                COLUMN_KEY + " = ?", new String[] {key}, null, null, null);
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            if (cursor.moveToNext()) {
+                return cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+        return null;
+    }
+
+    private static void putMeta(SQLiteDatabase db, String key, String value) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_KEY, key);
+        values.put(COLUMN_VALUE, value);
+        db.insertWithOnConflict(TABLE_META, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    private static String getType(JSONObject entry) throws JSONException {
+        if (entry.has(KEY_TYPE) && TYPE_JSON_LISTING.equals(entry.getString(KEY_TYPE))) {
+            return TYPE_JSON_LISTING;
+        }
+        return TYPE_CHANNEL;
+    }
+
+    private static String getUrl(JSONObject entry) throws JSONException {
+        return ChannelLineup.canonicalMediaUrl(entry.getString(KEY_URL));
+    }
+
+    /**
+     * @return The key which identifies an entry in the store: its type and its canonical url.
+     */
+    static String getKey(JSONObject entry) throws JSONException {
+        return getType(entry) + " " + getUrl(entry);
+    }
+
+    /**
+     * A single pending change to one entry of the store.
+     */
+    public static class Write {
+        private static final int ACTION_INSERT = 0;
+        private static final int ACTION_UPDATE = 1;
+        private static final int ACTION_DELETE = 2;
+        private static final int ACTION_CLEAR = 3;
+        private static final int ACTION_PUT_IMPORT_HASH = 4;
+        private static final int ACTION_DELETE_IMPORT_HASH = 5;
+
+        private final int mAction;
+        private final JSONObject mEntry;
+        private final String mSource;
+        private final String mUrl;
+        private final long mHash;
+
+        private Write(int action, JSONObject entry) {
+            this(action, entry, null, null, 0);
+        }
+
+        private Write(int action, JSONObject entry, String source, String url, long hash) {
+            mAction = action;
+            mEntry = entry;
+            mSource = source;
+            mUrl = url;
+            mHash = hash;
+        }
+
+        /**
+         * Appends an entry after every existing row.
+         */
+        public static Write insert(JSONObject entry) {
+            return new Write(ACTION_INSERT, entry);
+        }
+
+        /**
+         * Replaces the data of every row with the same type and url as the entry.
+         */
+        public static Write update(JSONObject entry) {
+            return new Write(ACTION_UPDATE, entry);
+        }
+
+        /**
+         * Removes every row with the same type and url as the entry.
+         */
+        public static Write delete(JSONObject entry) {
+            return new Write(ACTION_DELETE, entry);
+        }
+
+        /**
+         * Removes every row, along with every import hash.
+         */
+        public static Write clear() {
+            return new Write(ACTION_CLEAR, null);
+        }
+
+        /**
+         * Remembers the hash of a channel which was imported from a playlist.
+         */
+        public static Write putImportHash(String source, String url, long hash) {
+            return new Write(ACTION_PUT_IMPORT_HASH, null, source, url, hash);
+        }
+
+        /**
+         * Forgets a channel which is no longer in the playlist it was imported from.
+         */
+        public static Write deleteImportHash(String source, String url) {
+            return new Write(ACTION_DELETE_IMPORT_HASH, null, source, url, 0);
+        }
+
+        private void apply(SQLiteDatabase db) throws JSONException {
+            switch (mAction) {
+                case ACTION_INSERT:
+                    insertEntry(db, mEntry);
+                    break;
+                case ACTION_UPDATE:
+                    ContentValues values = new ContentValues();
+                    values.put(COLUMN_DATA, mEntry.toString());
+                    db.update(TABLE_ENTRIES, values, WHERE_ENTRY,
+                            new String[] {getType(mEntry), getUrl(mEntry)});
+                    break;
+                case ACTION_DELETE:
+                    db.delete(TABLE_ENTRIES, WHERE_ENTRY,
+                            new String[] {getType(mEntry), getUrl(mEntry)});
+                    break;
+                case ACTION_CLEAR:
+                    db.delete(TABLE_ENTRIES, null, null);
+                    // The channels the hashes describe are gone as well
+                    db.delete(TABLE_IMPORT_HASHES, null, null);
+                    break;
+                case ACTION_PUT_IMPORT_HASH:
+                    ContentValues hashValues = new ContentValues();
+                    hashValues.put(COLUMN_SOURCE, mSource);
+                    hashValues.put(COLUMN_URL, mUrl);
+                    hashValues.put(COLUMN_HASH, mHash);
+                    db.insertWithOnConflict(TABLE_IMPORT_HASHES, null, hashValues,
+                            SQLiteDatabase.CONFLICT_REPLACE);
+                    break;
+                case ACTION_DELETE_IMPORT_HASH:
+                    db.delete(TABLE_IMPORT_HASHES, COLUMN_SOURCE + " = ? AND " + COLUMN_URL +
+                            " = ?", new String[] {mSource, mUrl});
+                    break;
+            }
+        }
+    }
+
+    /**
+     * The channels of a {@link JsonListing} playlist as of its last download, along with the
+     * values needed to ask the server whether the playlist has changed since.
+     */
+    public static class CachedListing {
+        private final String mUrl;
+        private final String mEtag;
+        private final String mLastModified;
+        private final long mFetched;
+        private final JSONArray mChannels;
+
+        /**
+         * @param url The playlist url.
+         * @param etag The ETag header of the download, or null.
+         * @param lastModified The Last-Modified header of the download, or null.
+         * @param fetched When the playlist was last downloaded or confirmed to be unchanged.
+         * @param channels The JSON form of each {@link JsonChannel} in the playlist.
+         */
+        public CachedListing(String url, String etag, String lastModified, long fetched,
+                JSONArray channels) {
+            mUrl = url;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mFetched = fetched;
+            mChannels = channels;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public String getEtag() {
+            return mEtag;
+        }
+
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public long getFetched() {
+            return mFetched;
+        }
+
+        public JSONArray getChannels() {
+            return mChannels;
+        }
+    }
+
+    /**
+     * The result of the last check of a channel's stream by the {@link StreamProber}.
+     */
+    public static class StreamHealth {
+        /** How many checks in a row have to fail before a stream is treated as dead. */
+        public static final int FAILURES_UNTIL_DEAD = 2;
+
+        private final String mUrl;
+        private final int mFailures;
+        private final long mLatencyMs;
+        private final long mChecked;
+
+        /**
+         * @param url The media url of the stream.
+         * @param failures How many checks in a row have failed, or 0 if the last one succeeded.
+         * @param latencyMs How long the last successful check took to receive the first data.
+         * @param checked When the stream was last checked.
+         */
+        public StreamHealth(String url, int failures, long latencyMs, long checked) {
+            mUrl = url;
+            mFailures = failures;
+            mLatencyMs = latencyMs;
+            mChecked = checked;
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        public int getFailures() {
+            return mFailures;
+        }
+
+        public long getLatencyMs() {
+            return mLatencyMs;
+        }
+
+        public long getChecked() {
+            return mChecked;
+        }
+
+        /**
+         * @return True if the stream failed enough checks in a row that it is likely gone, rather
+         * than having had a single network error.
+         */
+        public boolean isDead() {
+            return mFailures >= FAILURES_UNTIL_DEAD;
+        }
+
+        @Override
+        public String toString() {
+            return "StreamHealth{url=" + mUrl + ", failures=" + mFailures + ", latencyMs=" +
+                    mLatencyMs + ", checked=" + mChecked + "}";
+        }
+    }
+}
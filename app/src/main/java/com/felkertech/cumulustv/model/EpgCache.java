@@ -0,0 +1,777 @@
+package com.felkertech.cumulustv.model;
+
+import android.content.Context;
+import android.media.tv.TvContentRating;
+import android.media.tv.TvContract;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.felkertech.cumulustv.fileio.CompressedFeeds;
+import com.felkertech.cumulustv.fileio.CumulusXmlParser;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Keeps the programs of each XMLTV guide on disk, so the guide does not have to be
+ * downloaded and parsed again on every sync or after the app restarts. Programs can be read from
+ * the cache at any time, including while a guide is being refreshed.</p>
+ *
+ * <p>Programs are kept for twice the sync window, apart from programs which are looped, and the
+ * time up to which the guide has every program is stored with it. A guide is downloaded again
+ * once it no longer covers the next window. Until then the server is asked with the guide's ETag
+ * and Last-Modified whether it changed.</p>
+ *
+ * <p>Programs are kept grouped by the XMLTV channel they belong to, so each channel of a lineup
+ * can find its own programs with {@link Guide#findChannel(String, String)}. Only the channels of
+ * the lineup are kept, and the guide is downloaded again when the lineup gains a channel.</p>
+ *
+ * <p>Each guide is a file in the cache directory, named after a hash of its url:</p>
+ *
+ * <pre>
+ * header:   int magic, int format, string url, string etag, string lastModified,
+ *           long fetched, long horizon, boolean singleChannel, int strings, int wanted,
+ *           int channels
+ * strings:  for each string, int length followed by that many bytes of UTF-8
+ * wanted:   for each wanted channel id, int id; wanted is -1 if every channel was kept
+ * channels: for each channel, int id, int displayNumber, int displayName,
+ *           boolean repeating, int programs, programs
+ * programs: for each program, long start, long end, int title, int description,
+ *           int posterArt, int thumbnail, int genres, int providerData, int ratings,
+ *           int[ratings]
+ * </pre>
+ *
+ * <p>Apart from the counts, every int is a string index, -1 for null. The id of a channel is its
+ * XMLTV id.</p>
+ */
+public class EpgCache {
+    private static final String TAG = EpgCache.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    private static final int MAGIC = 0x43544531; // CTE1
+    private static final int FORMAT = 4;
+    private static final String DIRECTORY = "epg";
+    private static final String CHARSET = "UTF-8";
+
+    // How many sync windows of programs are kept, so a guide can be reused for a while
+    private static final int KEPT_WINDOWS = 2;
+    /** How long a guide is used without asking the server whether it changed. */
+    private static final long MIN_REFRESH_INTERVAL_MS = 1000 * 60 * 60; // 1 hour
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private static EpgCache sEpgCache;
+
+    private final File mDirectory;
+    // Guides which have been read from disk or refreshed, keyed by url
+    private final Map<String, Guide> mGuides = new ConcurrentHashMap<>();
+
+    public static synchronized EpgCache getInstance(Context context) {
+        if (sEpgCache == null) {
+            sEpgCache = new EpgCache(new File(context.getCacheDir(), DIRECTORY));
+        }
+        return sEpgCache;
+    }
+
+    /**
+     * @param directory Where the guides are stored, which is created when the first guide is
+     *     written.
+     */
+    public EpgCache(File directory) {
+        mDirectory = directory;
+    }
+
+    /**
+     * Returns the cached programs of a guide, reading them from disk the first time.
+     *
+     * @param url The url of the XMLTV guide.
+     * @return The guide, or null if it has not been downloaded.
+     */
+    @Nullable
+    public Guide get(String url) {
+        Guide guide = mGuides.get(url);
+        if (guide == null) {
+            guide = read(url);
+            if (guide != null) {
+                mGuides.put(url, guide);
+            }
+        }
+        return guide;
+    }
+
+    /**
+     * Makes sure the cached guide covers the window from now. The guide is only downloaded if
+     * it no longer covers the window or the server reports that it changed. This blocks while
+     * downloading, so it must not be called on the main thread.
+     *
+     * @param url The url of the XMLTV guide.
+     * @param windowMs How far ahead programs are needed.
+     * @param lineupChannels The channels of the lineup which use this guide, whose programs
+     *     are kept, or null to keep every channel of the guide.
+     * @return The guide, which may be the cached one.
+     * @throws IOException If the guide could not be downloaded or read. The cached guide is
+     *     kept.
+     */
+    public Guide refresh(String url, long windowMs,
+            @Nullable Collection<JsonChannel> lineupChannels)
+            throws IOException, CumulusXmlParser.XmlTvParseException {
+        long now = System.currentTimeMillis();
+        Set<String> wantedChannelIds = getWantedChannelIds(lineupChannels);
+        Guide cached = get(url);
+        // A guide which ends before the programs which were kept did not lose any programs, so
+        // it can be reused while the server reports it unchanged even if it is short
+        boolean reusable = cached != null && cached.hasChannels(wantedChannelIds)
+                && (cached.covers(now + windowMs)
+                        || cached.getHorizon() < cached.getFetched() + KEPT_WINDOWS * windowMs);
+        if (reusable && now - cached.getFetched() < MIN_REFRESH_INTERVAL_MS) {
+            return cached;
+        }
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        CompressedFeeds.acceptCompression(connection);
+        if (reusable && cached.getEtag() != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, cached.getEtag());
+        }
+        if (reusable && cached.getLastModified() != null) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+        }
+        try {
+            if (connection instanceof HttpURLConnection) {
+                int responseCode = ((HttpURLConnection) connection).getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && reusable) {
+                    if (DEBUG) {
+                        Log.d(TAG, url + " has not changed");
+                    }
+                    Guide guide = new Guide(url, cached.getEtag(), cached.getLastModified(), now,
+                            cached.getHorizon(), cached.getWantedChannelIds(),
+                            cached.isSingleChannel(), cached.getChannels());
+                    put(guide);
+                    return guide;
+                } else if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    throw new IOException("Server responded with " + responseCode);
+                }
+            }
+            InputStream inputStream = CompressedFeeds.decompress(connection.getInputStream());
+            CumulusXmlParser.TvListing tvListing;
+            try {
+                tvListing = CumulusXmlParser.parse(inputStream, now,
+                        now + KEPT_WINDOWS * windowMs, wantedChannelIds);
+            } finally {
+                inputStream.close();
+            }
+            if (tvListing == null) {
+                throw new IOException("Unable to read the guide at " + url);
+            }
+            // The guide may end before the window does
+            long horizon = now;
+            for (Program program : tvListing.getAllPrograms()) {
+                horizon = Math.max(horizon, program.getEndTimeUtcMillis());
+            }
+            Guide guide = new Guide(url, connection.getHeaderField(HEADER_ETAG),
+                    connection.getHeaderField(HEADER_LAST_MODIFIED), now,
+                    Math.min(horizon, now + KEPT_WINDOWS * windowMs), wantedChannelIds,
+                    tvListing.hasSingleChannel(), getChannels(tvListing));
+            put(guide);
+            return guide;
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    /**
+     * @return The keys by which {@link Guide#findChannel(String, String)} looks up each channel,
+     *     or null for every channel.
+     */
+    @Nullable
+    private static Set<String> getWantedChannelIds(
+            @Nullable Collection<JsonChannel> lineupChannels) {
+        if (lineupChannels == null) {
+            return null;
+        }
+        Set<String> wantedChannelIds = new HashSet<>(lineupChannels.size() * 4);
+        for (JsonChannel channel : lineupChannels) {
+            if (channel.getNumber() != null && !channel.getNumber().isEmpty()) {
+                wantedChannelIds.add(channel.getNumber());
+            }
+            if (channel.getName() != null && !channel.getName().isEmpty()) {
+                wantedChannelIds.add(channel.getName().toLowerCase(Locale.US));
+            }
+        }
+        return wantedChannelIds;
+    }
+
+    /**
+     * Groups the programs of a guide by channel. Channels which the guide lists come first, in its
+     * order, followed by channels which only have programs.
+     */
+    private static List<GuideChannel> getChannels(CumulusXmlParser.TvListing tvListing) {
+        Map<String, List<Program>> programsByChannel = tvListing.getProgramsByChannelId();
+        Map<String, GuideChannel> channels = new LinkedHashMap<>();
+        for (int i = 0; i < tvListing.getChannels().size(); i++) {
+            Channel channel = tvListing.getChannels().get(i);
+            String id = tvListing.getChannelIds().get(i);
+            if (channels.containsKey(id)) {
+                // The programs belong to the first channel with this id
+                continue;
+            }
+            List<Program> programs = programsByChannel.get(id);
+            channels.put(id, new GuideChannel(id, channel.getDisplayNumber(),
+                    channel.getDisplayName(), channel.getInternalProviderData() != null
+                            && channel.getInternalProviderData().isRepeatable(),
+                    programs == null ? Collections.<Program>emptyList() : programs));
+        }
+        for (Map.Entry<String, List<Program>> entry : programsByChannel.entrySet()) {
+            if (!channels.containsKey(entry.getKey())) {
+                channels.put(entry.getKey(), new GuideChannel(entry.getKey(), null, null, false,
+                        entry.getValue()));
+            }
+        }
+        return new ArrayList<>(channels.values());
+    }
+
+    /**
+     * Replaces the cached guide for its url. Readers see the new guide as soon as this returns.
+     */
+    public void put(Guide guide) throws IOException {
+        write(guide);
+        mGuides.put(guide.getUrl(), guide);
+    }
+
+    /**
+     * Deletes every guide whose url is not in the given collection.
+     */
+    public void retainAll(Collection<String> urls) {
+        Set<String> fileNames = new HashSet<>();
+        for (String url : urls) {
+            fileNames.add(getFileName(url));
+        }
+        mGuides.keySet().retainAll(urls);
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (!fileNames.contains(file.getName())) {
+                file.delete();
+            }
+        }
+    }
+
+    private File getFile(String url) {
+        return new File(mDirectory, getFileName(url));
+    }
+
+    private static String getFileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes(CHARSET));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16))
+                        .append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.append(".bin").toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void write(Guide guide) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        List<GuideChannel> channels = guide.getChannels();
+        Set<String> wantedChannelIds = guide.getWantedChannelIds();
+        int[] wantedRecords = null;
+        if (wantedChannelIds != null) {
+            wantedRecords = new int[wantedChannelIds.size()];
+            int i = 0;
+            for (String id : wantedChannelIds) {
+                wantedRecords[i++] = addString(id, strings, stringIndexes);
+            }
+        }
+        int[][] channelRecords = new int[channels.size()][];
+        int programCount = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            GuideChannel channel = channels.get(i);
+            channelRecords[i] = new int[] {
+                    addString(channel.getId(), strings, stringIndexes),
+                    addString(channel.getDisplayNumber(), strings, stringIndexes),
+                    addString(channel.getDisplayName(), strings, stringIndexes)
+            };
+            programCount += channel.getPrograms().size();
+        }
+        // The records of every channel's programs, one after another
+        int[][] records = new int[programCount][];
+        int recordIndex = 0;
+        for (GuideChannel channel : channels) {
+            for (Program program : channel.getPrograms()) {
+                records[recordIndex++] = getRecord(program, strings, stringIndexes);
+            }
+        }
+
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            throw new IOException("Unable to create " + mDirectory.getPath());
+        }
+        File file = getFile(guide.getUrl());
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            writeString(out, guide.getUrl());
+            writeString(out, guide.getEtag());
+            writeString(out, guide.getLastModified());
+            out.writeLong(guide.getFetched());
+            out.writeLong(guide.getHorizon());
+            out.writeBoolean(guide.isSingleChannel());
+            out.writeInt(strings.size());
+            out.writeInt(wantedRecords == null ? -1 : wantedRecords.length);
+            out.writeInt(channels.size());
+            for (byte[] string : strings) {
+                out.writeInt(string.length);
+                out.write(string);
+            }
+            if (wantedRecords != null) {
+                for (int record : wantedRecords) {
+                    out.writeInt(record);
+                }
+            }
+            recordIndex = 0;
+            for (int i = 0; i < channels.size(); i++) {
+                GuideChannel channel = channels.get(i);
+                out.writeInt(channelRecords[i][0]);
+                out.writeInt(channelRecords[i][1]);
+                out.writeInt(channelRecords[i][2]);
+                out.writeBoolean(channel.isRepeating());
+                out.writeInt(channel.getPrograms().size());
+                for (Program program : channel.getPrograms()) {
+                    out.writeLong(program.getStartTimeUtcMillis());
+                    out.writeLong(program.getEndTimeUtcMillis());
+                    int[] record = records[recordIndex++];
+                    for (int j = 0; j < 6; j++) {
+                        out.writeInt(record[j]);
+                    }
+                    out.writeInt(record.length - 6);
+                    for (int j = 6; j < record.length; j++) {
+                        out.writeInt(record[j]);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file.getPath());
+        }
+    }
+
+    /**
+     * @return The string indexes of a program's title, description, poster art, thumbnail,
+     *     genres and provider data, followed by those of its ratings.
+     */
+    private static int[] getRecord(Program program, List<byte[]> strings,
+            HashMap<String, Integer> stringIndexes) throws UnsupportedEncodingException {
+        TvContentRating[] ratings = program.getContentRatings();
+        int ratingCount = ratings == null ? 0 : ratings.length;
+        int[] record = new int[6 + ratingCount];
+        record[0] = addString(program.getTitle(), strings, stringIndexes);
+        record[1] = addString(program.getDescription(), strings, stringIndexes);
+        record[2] = addString(program.getPosterArtUri(), strings, stringIndexes);
+        record[3] = addString(program.getThumbnailUri(), strings, stringIndexes);
+        record[4] = addString(program.getCanonicalGenres() == null ? null :
+                TvContract.Programs.Genres.encode(program.getCanonicalGenres()),
+                strings, stringIndexes);
+        record[5] = addString(program.getInternalProviderData() == null ? null :
+                program.getInternalProviderData().toString(), strings, stringIndexes);
+        for (int j = 0; j < ratingCount; j++) {
+            record[6 + j] = addString(ratings[j].flattenToString(), strings, stringIndexes);
+        }
+        return record;
+    }
+
+    /**
+     * @return The guide stored for the url, or null if there is none or it can not be read.
+     */
+    @Nullable
+    private Guide read(String url) {
+        File file = getFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            // Every count is checked against the file before anything is allocated for it
+            long maxCount = file.length();
+            if (in.readInt() != MAGIC || in.readInt() != FORMAT) {
+                throw new IOException("Not a cached guide");
+            }
+            if (!url.equals(readString(in, maxCount))) {
+                // Another url with the same hash
+                return null;
+            }
+            String etag = readString(in, maxCount);
+            String lastModified = readString(in, maxCount);
+            long fetched = in.readLong();
+            long horizon = in.readLong();
+            boolean singleChannel = in.readBoolean();
+            String[] strings = new String[readCount(in, maxCount)];
+            int wantedCount = in.readInt();
+            if (wantedCount != -1) {
+                wantedCount = checkCount(wantedCount, maxCount);
+            }
+            int channelCount = readCount(in, maxCount);
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[readCount(in, maxCount)];
+                in.readFully(bytes);
+                strings[i] = new String(bytes, CHARSET);
+            }
+            Set<String> wantedChannelIds = null;
+            if (wantedCount != -1) {
+                wantedChannelIds = new HashSet<>(wantedCount * 2);
+                for (int i = 0; i < wantedCount; i++) {
+                    wantedChannelIds.add(getString(strings, in.readInt()));
+                }
+            }
+            List<GuideChannel> channels = new ArrayList<>(channelCount);
+            for (int i = 0; i < channelCount; i++) {
+                String id = getString(strings, in.readInt());
+                if (id == null) {
+                    throw new IOException("Channel without an id");
+                }
+                String displayNumber = getString(strings, in.readInt());
+                String displayName = getString(strings, in.readInt());
+                boolean repeating = in.readBoolean();
+                int programCount = readCount(in, maxCount);
+                List<Program> programs = new ArrayList<>(programCount);
+                for (int j = 0; j < programCount; j++) {
+                    programs.add(readProgram(in, strings, maxCount));
+                }
+                channels.add(new GuideChannel(id, displayNumber, displayName, repeating,
+                        programs));
+            }
+            return new Guide(url, etag, lastModified, fetched, horizon, wantedChannelIds,
+                    singleChannel, channels);
+        } catch (IOException | InternalProviderData.ParseException
+                | IllegalArgumentException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Unable to read cached guide: " + e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        // The guide is downloaded again rather than read again
+        file.delete();
+        return null;
+    }
+
+    /**
+     * @param maxCount The most items there can be, as each takes at least a byte of the file.
+     * @return A count of items or bytes.
+     * @throws IOException If the count is not possible, so the file is corrupt.
+     */
+    private static int readCount(DataInputStream in, long maxCount) throws IOException {
+        return checkCount(in.readInt(), maxCount);
+    }
+
+    private static int checkCount(int count, long maxCount) throws IOException {
+        if (count < 0 || count > maxCount) {
+            throw new IOException("Invalid count " + count);
+        }
+        return count;
+    }
+
+    private static Program readProgram(DataInputStream in, String[] strings, long maxCount)
+            throws IOException, InternalProviderData.ParseException {
+        Program.Builder builder = new Program.Builder()
+                .setStartTimeUtcMillis(in.readLong())
+                .setEndTimeUtcMillis(in.readLong())
+                .setTitle(getString(strings, in.readInt()))
+                .setDescription(getString(strings, in.readInt()))
+                .setPosterArtUri(getString(strings, in.readInt()))
+                .setThumbnailUri(getString(strings, in.readInt()));
+        String genres = getString(strings, in.readInt());
+        if (genres != null) {
+            builder.setCanonicalGenres(TvContract.Programs.Genres.decode(genres));
+        }
+        String providerData = getString(strings, in.readInt());
+        if (providerData != null) {
+            builder.setInternalProviderData(
+                    new InternalProviderData(providerData.getBytes(CHARSET)));
+        }
+        TvContentRating[] ratings = new TvContentRating[readCount(in, maxCount)];
+        for (int j = 0; j < ratings.length; j++) {
+            ratings[j] = TvContentRating.unflattenFromString(getString(strings, in.readInt()));
+        }
+        return builder.setContentRatings(ratings).build();
+    }
+
+    private static int addString(String string, List<byte[]> strings,
+            HashMap<String, Integer> stringIndexes) throws UnsupportedEncodingException {
+        if (string == null) {
+            return -1;
+        }
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string.getBytes(CHARSET));
+            stringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    private static String getString(String[] strings, int index) {
+        return index < 0 ? null : strings[index];
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String string)
+            throws IOException {
+        if (string == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = string.getBytes(CHARSET);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in, long maxLength) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        } else if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    /**
+     * The programs of a XMLTV guide, as of when it was last downloaded.
+     */
+    public static class Guide {
+        private final String mUrl;
+        private final String mEtag;
+        private final String mLastModified;
+        private final long mFetched;
+        private final long mHorizon;
+        private final Set<String> mWantedChannelIds;
+        private final boolean mSingleChannel;
+        private final List<GuideChannel> mChannels;
+        // The channels by XMLTV id, display number and lower case display name, as every channel
+        // of a lineup is looked up on every sync
+        private final Map<String, GuideChannel> mChannelsById;
+        private final Map<String, GuideChannel> mChannelsByNumber;
+        private final Map<String, GuideChannel> mChannelsByName;
+
+        /**
+         * @param fetched When the server was last asked for the guide.
+         * @param horizon The time up to which the guide has every program.
+         * @param wantedChannelIds The channels which were kept, as passed to
+         *     {@link CumulusXmlParser#parse(InputStream, long, long, Set)}, or null if every
+         *     channel was kept.
+         * @param singleChannel True if the guide has at most one channel, including the channels
+         *     which were not kept.
+         * @param channels The channels and their programs, which are not copied.
+         */
+        public Guide(String url, @Nullable String etag, @Nullable String lastModified,
+                long fetched, long horizon, @Nullable Set<String> wantedChannelIds,
+                boolean singleChannel, List<GuideChannel> channels) {
+            mUrl = url;
+            mEtag = etag;
+            mLastModified = lastModified;
+            mFetched = fetched;
+            mHorizon = horizon;
+            mWantedChannelIds = wantedChannelIds == null ? null
+                    : Collections.unmodifiableSet(wantedChannelIds);
+            mSingleChannel = singleChannel;
+            mChannels = Collections.unmodifiableList(channels);
+            mChannelsById = new HashMap<>(channels.size() * 2);
+            mChannelsByNumber = new HashMap<>(channels.size() * 2);
+            mChannelsByName = new HashMap<>(channels.size() * 2);
+            // Where channels share a key, the first one in the guide is used
+            for (int i = channels.size() - 1; i >= 0; i--) {
+                GuideChannel channel = channels.get(i);
+                mChannelsById.put(channel.getId(), channel);
+                if (channel.getDisplayNumber() != null) {
+                    mChannelsByNumber.put(channel.getDisplayNumber(), channel);
+                }
+                if (channel.getDisplayName() != null) {
+                    mChannelsByName.put(channel.getDisplayName().toLowerCase(Locale.US), channel);
+                }
+            }
+        }
+
+        public String getUrl() {
+            return mUrl;
+        }
+
+        @Nullable
+        public String getEtag() {
+            return mEtag;
+        }
+
+        @Nullable
+        public String getLastModified() {
+            return mLastModified;
+        }
+
+        public long getFetched() {
+            return mFetched;
+        }
+
+        public long getHorizon() {
+            return mHorizon;
+        }
+
+        /**
+         * @return True if the guide has every program up to the given time.
+         */
+        public boolean covers(long timeMs) {
+            return mHorizon >= timeMs;
+        }
+
+        @Nullable
+        public Set<String> getWantedChannelIds() {
+            return mWantedChannelIds;
+        }
+
+        public boolean isSingleChannel() {
+            return mSingleChannel;
+        }
+
+        /**
+         * @return True if the guide kept every channel which is wanted now.
+         */
+        public boolean hasChannels(@Nullable Set<String> wantedChannelIds) {
+            return mWantedChannelIds == null || (wantedChannelIds != null
+                    && mWantedChannelIds.containsAll(wantedChannelIds));
+        }
+
+        /**
+         * @return Every channel which was kept, with the channels the guide lists first.
+         */
+        public List<GuideChannel> getChannels() {
+            return mChannels;
+        }
+
+        /**
+         * Finds the guide's channel for a channel of a lineup. The number is matched against the
+         * XMLTV id, which is what the tvg-id of a M3U playlist refers to, and then against the
+         * display number. Failing that the name is matched against the display name. A guide
+         * with a single channel is used for any channel.
+         *
+         * @param number The number of the lineup's channel.
+         * @param name The name of the lineup's channel.
+         * @return The channel, or null if none of the guide's channels match.
+         */
+        @Nullable
+        public GuideChannel findChannel(@Nullable String number, @Nullable String name) {
+            GuideChannel channel = null;
+            if (number != null && !number.isEmpty()) {
+                channel = mChannelsById.get(number);
+                if (channel == null) {
+                    channel = mChannelsByNumber.get(number);
+                }
+            }
+            if (channel == null && name != null && !name.isEmpty()) {
+                channel = mChannelsByName.get(name.toLowerCase(Locale.US));
+            }
+            if (channel != null) {
+                return channel;
+            }
+            // The channel of a single channel guide is kept even if it was not wanted
+            return mSingleChannel && mChannels.size() == 1 ? mChannels.get(0) : null;
+        }
+    }
+
+    /**
+     * A channel of a XMLTV guide and its programs.
+     */
+    public static class GuideChannel {
+        private final String mId;
+        private final String mDisplayNumber;
+        private final String mDisplayName;
+        private final boolean mRepeating;
+        private final List<Program> mPrograms;
+
+        /**
+         * @param id The channel's XMLTV id.
+         * @param displayNumber The display number, or null if the guide does not list the
+         *     channel or it has none.
+         * @param displayName The display name, or null if the guide does not list the channel.
+         * @param repeating True if the channel repeats its programs.
+         * @param programs The programs ordered by start time, which are not copied.
+         */
+        public GuideChannel(String id, @Nullable String displayNumber,
+                @Nullable String displayName, boolean repeating, List<Program> programs) {
+            mId = id;
+            mDisplayNumber = displayNumber;
+            mDisplayName = displayName;
+            mRepeating = repeating;
+            mPrograms = Collections.unmodifiableList(programs);
+        }
+
+        public String getId() {
+            return mId;
+        }
+
+        @Nullable
+        public String getDisplayNumber() {
+            return mDisplayNumber;
+        }
+
+        @Nullable
+        public String getDisplayName() {
+            return mDisplayName;
+        }
+
+        public boolean isRepeating() {
+            return mRepeating;
+        }
+
+        public List<Program> getPrograms() {
+            return mPrograms;
+        }
+    }
+}
@@ -1,12 +1,10 @@
 package com.felkertech.cumulustv.model;
 
 import android.content.ComponentName;
-import android.content.Intent;
 import android.media.tv.TvContract;
 import android.support.annotation.NonNull;
 
 import com.felkertech.cumulustv.plugins.CumulusChannel;
-import com.felkertech.cumulustv.tv.activities.PlaybackQuickSettingsActivity;
 import com.felkertech.settingsmanager.common.CommaArray;
 import com.google.android.media.tv.companionlibrary.model.Channel;
 import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
@@ -82,9 +80,13 @@ public class JsonChannel extends CumulusChannel implements Comparable {
         return new JsonChannel();
     }
 
+    /**
+     * Orders channels by their {@link ChannelNumber}, so "9" comes before "10".
+     */
     @Override
     public int compareTo(Object o) {
-        return getNumber().compareTo(((JsonChannel) o).getNumber());
+        return ChannelNumber.parse(getNumber())
+                .compareTo(ChannelNumber.parse(((JsonChannel) o).getNumber()));
     }
 
     @Override
@@ -0,0 +1,302 @@
+package com.felkertech.cumulustv.model;
+
+import android.content.ComponentName;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>A compact binary copy of the saved channels, written next to the {@link ChannelStore} so the
+ * lineup can be shown on a cold start without parsing any JSON.</p>
+ *
+ * <p>The file starts with a header, followed by a table of string offsets, the string data and
+ * one fixed-size record per channel. Identical strings, such as genres and logos, are only
+ * stored once. The file is memory-mapped when it is opened and a {@link JsonChannel} is only
+ * built the first time it is requested.</p>
+ *
+ * <pre>
+ * header:  int magic, int format, long generation, byte sorted, int strings, int channels,
+ *          int size of the string data
+ * offsets: int[strings], the position of each string relative to the start of the string data
+ * strings: for each string, int length followed by that many bytes of UTF-8
+ * records: for each channel, byte audioOnly followed by int[8] string indexes, -1 for null
+ * </pre>
+ */
+public class LineupSnapshot {
+    private static final String TAG = LineupSnapshot.class.getSimpleName();
+
+    private static final int MAGIC = 0x43545631; // CTV1
+    // Format 2 sorts channels by ChannelNumber rather than as text
+    private static final int FORMAT = 2;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 1 + 4 + 4 + 4;
+
+    private static final int FIELD_EPG_URL = 0;
+    private static final int FIELD_GENRES = 1;
+    private static final int FIELD_LOGO = 2;
+    private static final int FIELD_MEDIA_URL = 3;
+    private static final int FIELD_NAME = 4;
+    private static final int FIELD_NUMBER = 5;
+    private static final int FIELD_PLUGIN_SOURCE = 6;
+    private static final int FIELD_SPLASHSCREEN = 7;
+    private static final int FIELD_COUNT = 8;
+    private static final int RECORD_SIZE = 1 + 4 * FIELD_COUNT;
+
+    private static final String CHARSET = "UTF-8";
+
+    private final ByteBuffer mBuffer;
+    private final long mGeneration;
+    private final boolean mSorted;
+    private final int mStringCount;
+    private final int mChannelCount;
+    private final int mStringsStart;
+    private final int mRecordsStart;
+    private final AtomicReferenceArray<JsonChannel> mChannels;
+
+    private LineupSnapshot(ByteBuffer buffer) throws IOException {
+        mBuffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC ||
+                buffer.getInt(4) != FORMAT) {
+            throw new IOException("Not a lineup snapshot");
+        }
+        mGeneration = buffer.getLong(8);
+        mSorted = buffer.get(16) != 0;
+        mStringCount = buffer.getInt(17);
+        mChannelCount = buffer.getInt(21);
+        mStringsStart = HEADER_SIZE + 4 * mStringCount;
+        mRecordsStart = mStringsStart + buffer.getInt(25);
+        if (mStringCount < 0 || mChannelCount < 0 ||
+                mRecordsStart + (long) mChannelCount * RECORD_SIZE > buffer.limit()) {
+            throw new IOException("Lineup snapshot is truncated");
+        }
+        mChannels = new AtomicReferenceArray<>(mChannelCount);
+    }
+
+    /**
+     * Memory-maps a snapshot which was written by {@link #write(File, long, boolean, List)}.
+     *
+     * @param file The snapshot file.
+     * @return The snapshot, or null if the file does not exist or cannot be read.
+     */
+    @Nullable
+    public static LineupSnapshot open(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel channel = inputStream.getChannel();
+            // The mapping stays valid after the channel is closed.
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new LineupSnapshot(buffer);
+        } catch (IOException | IndexOutOfBoundsException e) {
+            Log.w(TAG, "Unable to open lineup snapshot: " + e.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Writes a snapshot of the given channels. The file is replaced atomically, so a snapshot
+     * which is being read is never half written.
+     *
+     * @param file The snapshot file.
+     * @param generation The {@link ChannelStore#getGeneration()} these channels were read from.
+     * @param sorted True if the channels are sorted by number.
+     * @param channels The channels, in display order.
+     */
+    public static void write(File file, long generation, boolean sorted,
+            List<JsonChannel> channels) throws IOException {
+        List<byte[]> strings = new ArrayList<>();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        int[] records = new int[channels.size() * FIELD_COUNT];
+        for (int i = 0; i < channels.size(); i++) {
+            JsonChannel channel = channels.get(i);
+            ComponentName pluginSource = channel.getPluginSource();
+            int record = i * FIELD_COUNT;
+            records[record + FIELD_EPG_URL] =
+                    addString(channel.getEpgUrl(), strings, stringIndexes);
+            records[record + FIELD_GENRES] =
+                    addString(channel.getGenresString(), strings, stringIndexes);
+            records[record + FIELD_LOGO] = addString(channel.getLogo(), strings, stringIndexes);
+            records[record + FIELD_MEDIA_URL] =
+                    addString(channel.getMediaUrl(), strings, stringIndexes);
+            records[record + FIELD_NAME] = addString(channel.getName(), strings, stringIndexes);
+            records[record + FIELD_NUMBER] =
+                    addString(channel.getNumber(), strings, stringIndexes);
+            records[record + FIELD_PLUGIN_SOURCE] = addString(pluginSource == null ? null :
+                    pluginSource.flattenToString(), strings, stringIndexes);
+            records[record + FIELD_SPLASHSCREEN] =
+                    addString(channel.getSplashscreen(), strings, stringIndexes);
+        }
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(generation);
+            out.writeByte(sorted ? 1 : 0);
+            out.writeInt(strings.size());
+            out.writeInt(channels.size());
+            int stringsSize = 0;
+            for (byte[] string : strings) {
+                stringsSize += 4 + string.length;
+            }
+            out.writeInt(stringsSize);
+            int offset = 0;
+            for (byte[] string : strings) {
+                out.writeInt(offset);
+                offset += 4 + string.length;
+            }
+            for (byte[] string : strings) {
+                out.writeInt(string.length);
+                out.write(string);
+            }
+            for (int i = 0; i < channels.size(); i++) {
+                out.writeByte(channels.get(i).isAudioOnly() ? 1 : 0);
+                for (int field = 0; field < FIELD_COUNT; field++) {
+                    out.writeInt(records[i * FIELD_COUNT + field]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Unable to replace " + file.getPath());
+        }
+    }
+
+    private static int addString(String string, List<byte[]> strings,
+            HashMap<String, Integer> stringIndexes) throws UnsupportedEncodingException {
+        if (string == null) {
+            return -1;
+        }
+        Integer index = stringIndexes.get(string);
+        if (index == null) {
+            index = strings.size();
+            strings.add(string.getBytes(CHARSET));
+            stringIndexes.put(string, index);
+        }
+        return index;
+    }
+
+    /**
+     * @return The {@link ChannelStore#getGeneration()} the snapshot was written for.
+     */
+    public long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * @return True if the channels were sorted by number when the snapshot was written.
+     */
+    public boolean isSorted() {
+        return mSorted;
+    }
+
+    public int size() {
+        return mChannelCount;
+    }
+
+    /**
+     * Reads the media url of a channel without building the whole channel.
+     */
+    public String getMediaUrl(int position) {
+        return getField(position, FIELD_MEDIA_URL);
+    }
+
+    /**
+     * Reads the number of a channel without building the whole channel.
+     */
+    public String getNumber(int position) {
+        return getField(position, FIELD_NUMBER);
+    }
+
+    /**
+     * Builds the channel at the given position the first time it is requested, and returns the
+     * same instance afterwards.
+     */
+    public JsonChannel getChannel(int position) {
+        JsonChannel channel = mChannels.get(position);
+        if (channel == null) {
+            int record = mRecordsStart + position * RECORD_SIZE;
+            channel = new JsonChannel.Builder()
+                    .setAudioOnly(mBuffer.get(record) != 0)
+                    .setEpgUrl(getField(position, FIELD_EPG_URL))
+                    .setGenres(getField(position, FIELD_GENRES))
+                    .setLogo(getField(position, FIELD_LOGO))
+                    .setMediaUrl(getField(position, FIELD_MEDIA_URL))
+                    .setName(getField(position, FIELD_NAME))
+                    .setNumber(getField(position, FIELD_NUMBER))
+                    .setPluginSource(getField(position, FIELD_PLUGIN_SOURCE))
+                    .setSplashscreen(getField(position, FIELD_SPLASHSCREEN))
+                    .build();
+            if (!mChannels.compareAndSet(position, null, channel)) {
+                channel = mChannels.get(position);
+            }
+        }
+        return channel;
+    }
+
+    /**
+     * @return A read-only list which builds each channel the first time it is accessed.
+     */
+    public List<JsonChannel> asList() {
+        return new AbstractList<JsonChannel>() {
+            @Override
+            public JsonChannel get(int index) {
+                return getChannel(index);
+            }
+
+            @Override
+            public int size() {
+                return mChannelCount;
+            }
+        };
+    }
+
+    private String getField(int position, int field) {
+        if (position < 0 || position >= mChannelCount) {
+            throw new IndexOutOfBoundsException("No channel at " + position);
+        }
+        int index = mBuffer.getInt(mRecordsStart + position * RECORD_SIZE + 1 + 4 * field);
+        if (index < 0) {
+            return null;
+        }
+        int start = mStringsStart + mBuffer.getInt(HEADER_SIZE + 4 * index);
+        byte[] bytes = new byte[mBuffer.getInt(start)];
+        // Absolute reads on a duplicate keep this safe to call from several threads.
+        ByteBuffer string = mBuffer.duplicate();
+        string.position(start + 4);
+        string.get(bytes);
+        try {
+            return new String(bytes, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package com.felkertech.cumulustv.model;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.felkertech.cumulustv.fileio.CompressedFeeds;
+import com.felkertech.cumulustv.fileio.M3uParser;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Downloads the playlists of {@link JsonListing}s and keeps their channels in the
+ * {@link ChannelStore}, so they are available as soon as the app starts.</p>
+ *
+ * <p>Playlists are downloaded on a small pool of background threads. A playlist is only
+ * downloaded again once it is older than the time to live, and the server is asked to skip the
+ * download if the playlist has not changed since.</p>
+ */
+public class ListingRefresher {
+    private static final String TAG = ListingRefresher.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** The most playlists which are downloaded at the same time. */
+    private static final int MAX_CONCURRENT_DOWNLOADS = 3;
+    private static final int CONNECT_TIMEOUT_MS = 30000;
+    private static final int READ_TIMEOUT_MS = 28000;
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    private final ChannelStore mChannelStore;
+    private final Map<String, ChannelStore.CachedListing> mListings = new ConcurrentHashMap<>();
+    private final Set<String> mDownloading = new HashSet<>();
+    private final ExecutorService mExecutor;
+
+    /**
+     * Called once a refresh started by {@link #refresh(List, long, boolean, Callback)} is done.
+     */
+    public interface Callback {
+        /**
+         * @param changed The number of playlists whose channels changed.
+         * @param failed The number of playlists which could not be downloaded. Their previous
+         *     channels are kept.
+         */
+        void onRefreshComplete(int changed, int failed);
+    }
+
+    /**
+     * Creates a refresher with the playlists stored the last time the app ran.
+     */
+    public ListingRefresher(ChannelStore channelStore) {
+        mChannelStore = channelStore;
+        try {
+            mListings.putAll(mChannelStore.readCachedListings());
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to read cached listings: " + e.getMessage());
+        }
+        mExecutor = BackgroundThreadFactory.newThreadPool(TAG, MAX_CONCURRENT_DOWNLOADS);
+    }
+
+    /**
+     * Returns the cached channels of a playlist.
+     *
+     * @param url The playlist url.
+     * @return The JSON form of every channel in the playlist, or null if it has not been
+     * downloaded yet.
+     */
+    @Nullable
+    public JSONArray getChannels(String url) {
+        ChannelStore.CachedListing listing = mListings.get(url);
+        return listing == null ? null : listing.getChannels();
+    }
+
+    /**
+     * Downloads every playlist which is older than the time to live. Cached playlists which are
+     * not in the list any more are forgotten.
+     *
+     * @param urls The urls of every {@link JsonListing}.
+     * @param ttlMs How long a downloaded playlist is used before it is downloaded again.
+     * @param force True to check every playlist with the server regardless of its age.
+     * @param callback Called on a background thread once every download has finished, or right
+     *     away if nothing needs to be downloaded.
+     */
+    public void refresh(List<String> urls, long ttlMs, boolean force,
+            @Nullable final Callback callback) {
+        for (String url : new ArrayList<>(mListings.keySet())) {
+            if (!urls.contains(url)) {
+                mListings.remove(url);
+                mChannelStore.deleteCachedListing(url);
+            }
+        }
+
+        final List<String> downloads = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        synchronized (mDownloading) {
+            for (String url : urls) {
+                ChannelStore.CachedListing listing = mListings.get(url);
+                boolean fresh = listing != null && now - listing.getFetched() < ttlMs;
+                if ((force || !fresh) && !mDownloading.contains(url) &&
+                        !downloads.contains(url)) {
+                    downloads.add(url);
+                    mDownloading.add(url);
+                }
+            }
+        }
+        if (downloads.isEmpty()) {
+            if (callback != null) {
+                callback.onRefreshComplete(0, 0);
+            }
+            return;
+        }
+
+        final AtomicInteger remaining = new AtomicInteger(downloads.size());
+        final AtomicInteger changed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        for (final String url : downloads) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (download(url)) {
+                            changed.incrementAndGet();
+                        }
+                    } catch (IOException | JSONException | RuntimeException e) {
+                        Log.w(TAG, "Unable to download " + url + ": " + e.getMessage());
+                        failed.incrementAndGet();
+                    } finally {
+                        synchronized (mDownloading) {
+                            mDownloading.remove(url);
+                        }
+                    }
+                    if (remaining.decrementAndGet() == 0 && callback != null) {
+                        callback.onRefreshComplete(changed.get(), failed.get());
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Downloads a single playlist, unless the server reports that it has not changed.
+     *
+     * @return True if the channels of the playlist changed.
+     */
+    private boolean download(String url) throws IOException, JSONException {
+        ChannelStore.CachedListing cached = mListings.get(url);
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        CompressedFeeds.acceptCompression(connection);
+        if (cached != null && cached.getEtag() != null) {
+            connection.setRequestProperty(HEADER_IF_NONE_MATCH, cached.getEtag());
+        }
+        if (cached != null && cached.getLastModified() != null) {
+            connection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, cached.getLastModified());
+        }
+        try {
+            if (connection instanceof HttpURLConnection) {
+                int responseCode = ((HttpURLConnection) connection).getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    if (DEBUG) {
+                        Log.d(TAG, url + " has not changed");
+                    }
+                    store(new ChannelStore.CachedListing(url, cached.getEtag(),
+                            cached.getLastModified(), System.currentTimeMillis(),
+                            cached.getChannels()));
+                    return false;
+                } else if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    throw new IOException("Server responded with " + responseCode);
+                }
+            }
+            final JSONArray channels = new JSONArray();
+            InputStream inputStream = CompressedFeeds.decompress(connection.getInputStream());
+            try {
+                // Each channel is converted as soon as it is read, so the parsed playlist is
+                // never held in memory as a whole.
+                M3uParser.parse(inputStream, new M3uParser.ChannelVisitor() {
+                    @Override
+                    public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                        try {
+                            channels.put(channel.toJsonChannel().toJson());
+                        } catch (JSONException e) {
+                            throw new IllegalArgumentException(e);
+                        }
+                        return true;
+                    }
+                });
+            } finally {
+                inputStream.close();
+            }
+            store(new ChannelStore.CachedListing(url, connection.getHeaderField(HEADER_ETAG),
+                    connection.getHeaderField(HEADER_LAST_MODIFIED), System.currentTimeMillis(),
+                    channels));
+            return cached == null || !channels.toString().equals(cached.getChannels().toString());
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    private void store(ChannelStore.CachedListing listing) {
+        mListings.put(listing.getUrl(), listing);
+        mChannelStore.putCachedListing(listing);
+    }
+}
@@ -0,0 +1,140 @@
+package com.felkertech.cumulustv.model;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Compares the channels of a playlist with the channels it had when it was last imported, so
+ * only the entries which were added, changed or removed need to be applied.</p>
+ *
+ * <p>Each channel is identified by its media url and summarized by a {@link #hash(JSONObject)}
+ * of its attributes. Only these hashes have to be remembered between imports. If a playlist
+ * lists the same media url more than once, the first entry is used, as in the
+ * {@link ChannelStore}.</p>
+ */
+public class PlaylistDiff {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final List<JsonChannel> mAdded = new ArrayList<>();
+    private final List<JsonChannel> mChanged = new ArrayList<>();
+    private final List<String> mRemoved = new ArrayList<>();
+    private final Map<String, Long> mHashes;
+
+    /**
+     * @param oldHashes The hashes of the previous import, keyed by media url.
+     * @param channels Every channel of the playlist, in order.
+     */
+    public PlaylistDiff(Map<String, Long> oldHashes, List<JsonChannel> channels)
+            throws JSONException {
+        mHashes = new HashMap<>(channels.size() * 2);
+        for (JsonChannel channel : channels) {
+            String mediaUrl = channel.getMediaUrl();
+            if (mHashes.containsKey(mediaUrl)) {
+                continue;
+            }
+            long hash = hash(channel.toJson());
+            mHashes.put(mediaUrl, hash);
+            Long oldHash = oldHashes.get(mediaUrl);
+            if (oldHash == null) {
+                mAdded.add(channel);
+            } else if (oldHash != hash) {
+                mChanged.add(channel);
+            }
+        }
+        for (String mediaUrl : oldHashes.keySet()) {
+            if (!mHashes.containsKey(mediaUrl)) {
+                mRemoved.add(mediaUrl);
+            }
+        }
+    }
+
+    /**
+     * Hashes the attributes of an entry. Keys are read in sorted order, surrounding whitespace
+     * is ignored and empty values count as missing, so entries which only differ in formatting
+     * have the same hash.
+     *
+     * @param entry The JSON form of a channel, including its media url.
+     * @return A 64-bit FNV-1a hash.
+     */
+    public static long hash(JSONObject entry) {
+        List<String> keys = new ArrayList<>(entry.length());
+        Iterator<String> iterator = entry.keys();
+        while (iterator.hasNext()) {
+            keys.add(iterator.next());
+        }
+        Collections.sort(keys);
+        long hash = FNV_OFFSET_BASIS;
+        for (String key : keys) {
+            Object value = entry.opt(key);
+            if (value == null || value == JSONObject.NULL) {
+                continue;
+            }
+            String normalized = value.toString().trim();
+            if (normalized.isEmpty()) {
+                continue;
+            }
+            hash = hash(hash, key);
+            hash = hash(hash, "=");
+            hash = hash(hash, normalized);
+            hash = hash(hash, "\n");
+        }
+        return hash;
+    }
+
+    private static long hash(long hash, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * @return Channels whose media url was not in the previous import.
+     */
+    public List<JsonChannel> getAdded() {
+        return mAdded;
+    }
+
+    /**
+     * @return Channels whose attributes changed since the previous import.
+     */
+    public List<JsonChannel> getChanged() {
+        return mChanged;
+    }
+
+    /**
+     * @return The media urls of channels which are no longer in the playlist.
+     */
+    public List<String> getRemoved() {
+        return mRemoved;
+    }
+
+    /**
+     * @return The hash of every channel in the playlist, to remember for the next import.
+     */
+    public Map<String, Long> getHashes() {
+        return mHashes;
+    }
+
+    /**
+     * @return True if nothing changed since the previous import.
+     */
+    public boolean isEmpty() {
+        return mAdded.isEmpty() && mChanged.isEmpty() && mRemoved.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "PlaylistDiff{added=" + mAdded.size() + ", changed=" + mChanged.size() +
+                ", removed=" + mRemoved.size() + ", total=" + mHashes.size() + "}";
+    }
+}
@@ -0,0 +1,92 @@
+package com.felkertech.cumulustv.model;
+
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>Lays out the programs of a XMLTV guide over the time a sync asks for.</p>
+ *
+ * <p>Programs are shown at their own times while the guide still has programs for that time.
+ * Channels with repeat-programs, and guides whose programs have all ended, are scheduled
+ * sequentially in a loop instead. To make every device play the same program in a given channel
+ * and time, the loop is assumed to have started at the epoch.</p>
+ */
+public final class ProgramSchedule {
+    private ProgramSchedule() {
+    }
+
+    /**
+     * @param programs The programs of one channel, ordered by start time.
+     * @param repeat True if the channel repeats its programs.
+     * @param startMs The start of the time to schedule.
+     * @param endMs The end of the time to schedule.
+     * @return The programs airing between the start and end, which is empty if the guide has
+     *     none for that time.
+     */
+    public static List<Program> getPrograms(List<Program> programs, boolean repeat, long startMs,
+            long endMs) {
+        List<Program> scheduled = new ArrayList<>();
+        if (!repeat && !hasEnded(programs, startMs)) {
+            for (Program program : programs) {
+                if (program.getEndTimeUtcMillis() > startMs
+                        && program.getStartTimeUtcMillis() < endMs) {
+                    scheduled.add(copy(program, program.getStartTimeUtcMillis(),
+                            program.getEndTimeUtcMillis()));
+                }
+            }
+            return scheduled;
+        }
+
+        long totalDurationMs = 0;
+        for (Program program : programs) {
+            totalDurationMs += getDuration(program);
+        }
+        if (totalDurationMs == 0) {
+            return scheduled;
+        }
+        long programStartTimeMs = startMs - startMs % totalDurationMs;
+        int i = 0;
+        final int programCount = programs.size();
+        while (programStartTimeMs < endMs) {
+            Program currentProgram = programs.get(i++ % programCount);
+            long programEndTimeMs = programStartTimeMs + getDuration(currentProgram);
+            if (programEndTimeMs > startMs) {
+                scheduled.add(copy(currentProgram, programStartTimeMs, programEndTimeMs));
+            }
+            programStartTimeMs = programEndTimeMs;
+        }
+        return scheduled;
+    }
+
+    /**
+     * @return True if every program ends at or before the given time.
+     */
+    private static boolean hasEnded(List<Program> programs, long timeMs) {
+        for (Program program : programs) {
+            if (program.getEndTimeUtcMillis() > timeMs) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long getDuration(Program program) {
+        return Math.max(0, program.getEndTimeUtcMillis() - program.getStartTimeUtcMillis());
+    }
+
+    private static Program copy(Program program, long startMs, long endMs) {
+        return new Program.Builder()
+                .setTitle(program.getTitle())
+                .setDescription(program.getDescription())
+                .setContentRatings(program.getContentRatings())
+                .setCanonicalGenres(program.getCanonicalGenres())
+                .setPosterArtUri(program.getPosterArtUri())
+                .setThumbnailUri(program.getThumbnailUri())
+                .setInternalProviderData(program.getInternalProviderData())
+                .setStartTimeUtcMillis(startMs)
+                .setEndTimeUtcMillis(endMs)
+                .build();
+    }
+}
@@ -0,0 +1,302 @@
+package com.felkertech.cumulustv.model;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Checks in the background whether the stream of each channel still plays, and keeps the
+ * result in the {@link ChannelStore}. Large playlists often contain many dead streams, and
+ * tuning to one only fails after a long timeout.</p>
+ *
+ * <p>A stream is checked by requesting it and waiting for the first bytes. HLS playlists must
+ * also start like a playlist, as many servers answer a dead stream with an error page. A stream
+ * is only treated as dead after {@link ChannelStore.StreamHealth#FAILURES_UNTIL_DEAD} checks in a
+ * row fail, so one network error does not hide a channel.</p>
+ *
+ * <p>Streams are checked on a small pool of background threads, with at most
+ * {@link #MAX_PROBES_PER_HOST} requests to the same server at a time. A stream is only checked
+ * again once its last result is older than the time to live.</p>
+ *
+ * <p>Results are kept by {@link ChannelLineup#canonicalMediaUrl(String)}, so channels whose
+ * media urls only differ in case or whitespace share one result.</p>
+ */
+public class StreamProber {
+    private static final String TAG = StreamProber.class.getSimpleName();
+    private static final boolean DEBUG = false;
+
+    /** The most streams which are checked at the same time. */
+    private static final int MAX_CONCURRENT_PROBES = 6;
+    /** The most streams on the same server which are checked at the same time. */
+    private static final int MAX_PROBES_PER_HOST = 2;
+    private static final int CONNECT_TIMEOUT_MS = 8000;
+    private static final int READ_TIMEOUT_MS = 8000;
+    // Enough of a HLS playlist to see its header, even after a byte order mark
+    private static final int PLAYLIST_PEEK_BYTES = 64;
+    private static final String HLS_HEADER = "#EXTM3U";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ChannelStore mChannelStore;
+    private final Map<String, ChannelStore.StreamHealth> mHealth = new ConcurrentHashMap<>();
+    private final Set<String> mProbing = new HashSet<>();
+    private final ExecutorService mExecutor;
+
+    /**
+     * Called once a check started by {@link #probe(List, long, boolean, Callback)} is done.
+     */
+    public interface Callback {
+        /**
+         * @param checked The number of streams which were checked.
+         * @param dead The number of checked streams which are now treated as dead.
+         */
+        void onProbeComplete(int checked, int dead);
+    }
+
+    /**
+     * Creates a prober with the results stored the last time the app ran.
+     */
+    public StreamProber(ChannelStore channelStore) {
+        mChannelStore = channelStore;
+        mHealth.putAll(mChannelStore.readStreamHealth());
+        mExecutor = BackgroundThreadFactory.newThreadPool(TAG, MAX_CONCURRENT_PROBES);
+    }
+
+    /**
+     * @param url The media url of a channel.
+     * @return The result of the last check, or null if the stream has not been checked.
+     */
+    @Nullable
+    public ChannelStore.StreamHealth getHealth(String url) {
+        return url == null ? null : mHealth.get(ChannelLineup.canonicalMediaUrl(url));
+    }
+
+    /**
+     * @return True if the last checks of the stream failed. Streams which have not been checked
+     * are not dead.
+     */
+    public boolean isDead(String url) {
+        ChannelStore.StreamHealth health = getHealth(url);
+        return health != null && health.isDead();
+    }
+
+    /**
+     * @return The canonical media url of every stream which is treated as dead.
+     */
+    public Set<String> getDeadUrls() {
+        Set<String> deadUrls = new HashSet<>();
+        for (ChannelStore.StreamHealth health : mHealth.values()) {
+            if (health.isDead()) {
+                deadUrls.add(health.getUrl());
+            }
+        }
+        return deadUrls;
+    }
+
+    /**
+     * Checks every stream whose last result is older than the time to live. Results for streams
+     * which are not in the list any more are forgotten. Only http and https streams can be
+     * checked; others are left alone.
+     *
+     * @param urls The media url of every channel. Urls are compared in their canonical form.
+     * @param ttlMs How long the result of a check is used before the stream is checked again.
+     * @param force True to check every stream regardless of when it was last checked.
+     * @param callback Called on a background thread once every check has finished, or right
+     *     away if nothing needs to be checked.
+     */
+    public void probe(List<String> urls, long ttlMs, boolean force,
+            @Nullable final Callback callback) {
+        Set<String> lineup = new HashSet<>();
+        for (String url : urls) {
+            if (url != null) {
+                lineup.add(ChannelLineup.canonicalMediaUrl(url));
+            }
+        }
+        for (String url : new ArrayList<>(mHealth.keySet())) {
+            if (!lineup.contains(url)) {
+                mHealth.remove(url);
+                mChannelStore.deleteStreamHealth(url);
+            }
+        }
+
+        // Streams are queued by server, so each server only gets a few requests at a time
+        Map<String, Queue<String>> hosts = new LinkedHashMap<>();
+        int total = 0;
+        long now = System.currentTimeMillis();
+        synchronized (mProbing) {
+            for (String url : lineup) {
+                String host = getHost(url);
+                ChannelStore.StreamHealth health = mHealth.get(url);
+                boolean fresh = health != null && now - health.getChecked() < ttlMs;
+                if (host == null || (fresh && !force) || mProbing.contains(url)) {
+                    continue;
+                }
+                Queue<String> queue = hosts.get(host);
+                if (queue == null) {
+                    queue = new ConcurrentLinkedQueue<>();
+                    hosts.put(host, queue);
+                }
+                queue.add(url);
+                mProbing.add(url);
+                total++;
+            }
+        }
+        if (total == 0) {
+            if (callback != null) {
+                callback.onProbeComplete(0, 0);
+            }
+            return;
+        }
+
+        final int checked = total;
+        final AtomicInteger remaining = new AtomicInteger(total);
+        final AtomicInteger dead = new AtomicInteger();
+        for (final Queue<String> queue : hosts.values()) {
+            int workers = Math.min(MAX_PROBES_PER_HOST, queue.size());
+            for (int i = 0; i < workers; i++) {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        String url;
+                        while ((url = queue.poll()) != null) {
+                            try {
+                                if (probe(url).isDead()) {
+                                    dead.incrementAndGet();
+                                }
+                            } catch (RuntimeException e) {
+                                // The stream is checked again the next time
+                                Log.w(TAG, "Could not check " + url, e);
+                            } finally {
+                                synchronized (mProbing) {
+                                    mProbing.remove(url);
+                                }
+                                if (remaining.decrementAndGet() == 0 && callback != null) {
+                                    callback.onProbeComplete(checked, dead.get());
+                                }
+                            }
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Checks a single stream and stores the result.
+     *
+     * @param url The canonical media url of the stream.
+     */
+    private ChannelStore.StreamHealth probe(String url) {
+        ChannelStore.StreamHealth previous = mHealth.get(url);
+        ChannelStore.StreamHealth health;
+        try {
+            long latencyMs = check(url);
+            health = new ChannelStore.StreamHealth(url, 0, latencyMs,
+                    System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            if (DEBUG) {
+                Log.d(TAG, url + " did not respond: " + e.getMessage());
+            }
+            health = new ChannelStore.StreamHealth(url,
+                    previous == null ? 1 : previous.getFailures() + 1,
+                    previous == null ? 0 : previous.getLatencyMs(), System.currentTimeMillis());
+        }
+        mHealth.put(url, health);
+        mChannelStore.putStreamHealth(health);
+        return health;
+    }
+
+    /**
+     * Requests a stream and reads its first bytes.
+     *
+     * @return How long it took to receive the first bytes, in milliseconds.
+     * @throws IOException If the stream could not be played.
+     */
+    private static long check(String url) throws IOException {
+        long start = System.nanoTime();
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        try {
+            if (connection instanceof HttpURLConnection) {
+                int responseCode = ((HttpURLConnection) connection).getResponseCode();
+                if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                    throw new IOException("Server responded with " + responseCode);
+                }
+            }
+            InputStream inputStream = connection.getInputStream();
+            try {
+                byte[] peek = new byte[PLAYLIST_PEEK_BYTES];
+                int length = inputStream.read(peek);
+                if (length <= 0) {
+                    throw new IOException("The stream is empty");
+                }
+                long latencyMs = (System.nanoTime() - start) / 1000000;
+                if (isHlsPlaylist(url, connection.getContentType())) {
+                    int read;
+                    while (length < peek.length &&
+                            (read = inputStream.read(peek, length, peek.length - length)) > 0) {
+                        length += read;
+                    }
+                    String header = new String(peek, 0, length, UTF_8).replace("\uFEFF", "");
+                    if (!header.trim().startsWith(HLS_HEADER)) {
+                        throw new IOException("The stream is not a HLS playlist");
+                    }
+                }
+                return latencyMs;
+            } finally {
+                inputStream.close();
+            }
+        } finally {
+            if (connection instanceof HttpURLConnection) {
+                ((HttpURLConnection) connection).disconnect();
+            }
+        }
+    }
+
+    private static boolean isHlsPlaylist(String url, @Nullable String contentType) {
+        if (contentType != null && contentType.toLowerCase(Locale.US).contains("mpegurl")) {
+            return true;
+        }
+        String path = Uri.parse(url).getPath();
+        return path != null && path.toLowerCase(Locale.US).endsWith(".m3u8");
+    }
+
+    /**
+     * @return The server of a stream which can be checked, or null if it can not be checked.
+     */
+    @Nullable
+    private static String getHost(@Nullable String url) {
+        if (url == null) {
+            return null;
+        }
+        Uri uri = Uri.parse(url.trim());
+        String scheme = uri.getScheme();
+        if (scheme == null || uri.getHost() == null) {
+            return null;
+        }
+        scheme = scheme.toLowerCase(Locale.US);
+        if (!scheme.equals("http") && !scheme.equals("https")) {
+            return null;
+        }
+        return uri.getHost().toLowerCase(Locale.US);
+    }
+}
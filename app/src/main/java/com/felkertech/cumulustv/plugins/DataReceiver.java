@@ -111,6 +111,15 @@ public class DataReceiver extends BroadcastReceiver
     private void handle(JSONObject jsonObject) {
         Log.d(TAG, "Handle " + jsonObject.toString());
         final ChannelDatabase cdn = ChannelDatabase.getInstance(mContext);
+        cdn.beginBatch();
+        try {
+            parseEntry(cdn, jsonObject);
+        } finally {
+            cdn.commit();
+        }
+    }
+
+    private void parseEntry(final ChannelDatabase cdn, JSONObject jsonObject) {
         ChannelDatabaseFactory.parseType(jsonObject, new ChannelDatabaseFactory.ChannelParser() {
             @Override
             public void ifJsonChannel(JsonChannel entry) {
@@ -126,15 +126,22 @@ public class ListingPlugin extends CumulusTvPlugin {
                             ((TextView) findViewById(R.id.channel_count)).setText("");
                         } else {
                             try {
-                                M3uParser.TvListing listing = M3uParser.parse(inputStream);
-                                if (listing != null) {
-                                    final List<M3uParser.M3uTvChannel> channels =
-                                            listing.channels;
+                                // Only count the channels, without keeping them in memory
+                                final int[] channelCount = new int[1];
+                                boolean isM3u = M3uParser.parse(inputStream,
+                                        new M3uParser.ChannelVisitor() {
+                                    @Override
+                                    public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                                        channelCount[0]++;
+                                        return true;
+                                    }
+                                });
+                                if (isM3u) {
                                     findViewById(R.id.channel_count).post(new Runnable() {
                                         @Override
                                         public void run() {
                                             ((TextView) findViewById(R.id.channel_count)).setText(
-                                                    getString(R.string.x_channels_found, channels.size()));
+                                                    getString(R.string.x_channels_found, channelCount[0]));
                                         }
                                     });
                                 } else {
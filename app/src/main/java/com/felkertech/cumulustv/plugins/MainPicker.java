@@ -28,12 +28,14 @@ import android.widget.Toast;
 import com.crashlytics.android.Crashlytics;
 import com.felkertech.cumulustv.activities.CumulusVideoPlayback;
 import com.felkertech.cumulustv.fileio.AbstractFileParser;
+import com.felkertech.cumulustv.fileio.CompressedFeeds;
 import com.felkertech.cumulustv.fileio.FileParserFactory;
 import com.felkertech.cumulustv.fileio.HttpFileParser;
 import com.felkertech.cumulustv.fileio.LocalFileParser;
 import com.felkertech.cumulustv.fileio.M3uParser;
 import com.felkertech.cumulustv.model.ChannelDatabase;
 import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.PlaylistDiff;
 import com.felkertech.cumulustv.player.CumulusTvPlayer;
 import com.felkertech.cumulustv.utils.AppUtils;
 import com.felkertech.cumulustv.utils.PermissionUtils;
@@ -46,6 +48,9 @@ import org.json.JSONException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 import io.fabric.sdk.android.Fabric;
 
@@ -119,18 +124,23 @@ public class MainPicker extends CumulusTvPlugin {
                 RelativeLayout l = (RelativeLayout) mPickerDialog.getCustomView();
                 ((EditText) l.findViewById(R.id.stream)).setText(uri.toString());
                 loadStream(mPickerDialog, uri.toString());
-            } else if (uri.toString().endsWith("m3u")) {
+            } else if (CompressedFeeds.getUncompressedName(uri.toString()).endsWith("m3u")) {
                 Log.d(TAG, "Import m3u playlist");
                 Toast.makeText(this, R.string.loading_data, Toast.LENGTH_SHORT).show();
                 FileParserFactory.parseGenericFileUri(uri.toString(),
                         new FileParserFactory.FileIdentifier() {
                     @Override
-                    public void onLocalFile(String uri) {
+                    public void onLocalFile(final String uri) {
                         try {
-                            new LocalFileParser(uri, new AbstractFileParser.FileLoader() {
+                            new LocalFileParser(uri, new AbstractFileParser.MappedFileLoader() {
+                                @Override
+                                public void onFileMapped(ByteBuffer buffer) {
+                                    importChannels(uri, buffer);
+                                }
+
                                 @Override
                                 public void onFileLoaded(InputStream inputStream) {
-                                    importChannels(inputStream);
+                                    importChannels(uri, inputStream);
                                 }
                             });
                         } catch (FileNotFoundException e) {
@@ -146,11 +156,11 @@ public class MainPicker extends CumulusTvPlugin {
                     }
 
                     @Override
-                    public void onHttpFile(String uri) {
+                    public void onHttpFile(final String uri) {
                         new HttpFileParser(uri, new AbstractFileParser.FileLoader() {
                             @Override
                             public void onFileLoaded(InputStream inputStream) {
-                                importChannels(inputStream);
+                                importChannels(uri, inputStream);
                             }
                         });
                     }
@@ -181,62 +191,113 @@ public class MainPicker extends CumulusTvPlugin {
         super.onStop();
     }
 
-    private void importChannels(InputStream input) {
+    /**
+     * @param source The uri of the playlist. Importing the same uri again only applies what
+     *     changed in the playlist since; see {@link ChannelDatabase#importChannels(String, List)}.
+     * @param input The playlist.
+     */
+    private void importChannels(final String source, InputStream input) {
         try {
             Log.d(TAG, "Parse channels");
-            final M3uParser.TvListing listings = M3uParser.parse(input);
-            Log.d(TAG, "Import " + listings.channels.size() + " channels");
-            new AlertDialog.Builder(MainPicker.this)
-                    .setTitle(getString(R.string.import_bulk_title, listings.channels.size()))
-                    .setMessage(listings.getChannelList())
-                    .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialogInterface, int i) {
-                            Toast.makeText(MainPicker.this, R.string.import_bulk_wait,
-                                    Toast.LENGTH_SHORT).show();
-                            new Thread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    ChannelDatabase channelDatabase =
-                                            ChannelDatabase.getInstance(MainPicker.this);
-                                    for (M3uParser.M3uTvChannel channel :
-                                            listings.channels) {
-                                        try {
-                                            channelDatabase.add(channel.toJsonChannel());
-                                        } catch (JSONException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                    channelDatabase.save();
-                                    Handler finishedImporting =
-                                            new Handler(Looper.getMainLooper()) {
-                                                @Override
-                                                public void handleMessage(Message msg) {
-                                                    super.handleMessage(msg);
-                                                    Toast.makeText(MainPicker.this,
-                                                            R.string.import_bulk_success,
-                                                            Toast.LENGTH_SHORT).show();
-                                                    saveDatabase();
-                                                    finish();
-                                                }
-                                            };
-                                    finishedImporting.sendEmptyMessage(0);
-                                }
-                            }).start();
-                        }
-                    })
-                    .setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
-                        @Override
-                        public void onClick(DialogInterface dialogInterface, int i) {
-                            finish();
-                        }
-                    })
-                    .show();
+            ImportVisitor visitor = new ImportVisitor();
+            // Splitting the playlist only pays off when the chunks can run side by side
+            if (Runtime.getRuntime().availableProcessors() > 1) {
+                M3uParser.parseParallel(input, visitor);
+            } else {
+                M3uParser.parse(input, visitor);
+            }
+            confirmImport(source, visitor.mChannels, visitor.mChannelList);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Imports a local playlist which was mapped into memory, so it is read without copying it
+     * through a stream.
+     *
+     * @see #importChannels(String, InputStream)
+     */
+    private void importChannels(final String source, ByteBuffer input) {
+        Log.d(TAG, "Parse mapped channels");
+        ImportVisitor visitor = new ImportVisitor();
+        M3uParser.parse(input, visitor);
+        confirmImport(source, visitor.mChannels, visitor.mChannelList);
+    }
+
+    /**
+     * Converts each channel as it is read rather than holding the parsed playlist.
+     */
+    private static class ImportVisitor implements M3uParser.ChannelVisitor {
+        private final List<JsonChannel> mChannels = new ArrayList<>();
+        private final StringBuilder mChannelList = new StringBuilder();
+
+        @Override
+        public boolean onChannel(M3uParser.M3uTvChannel channel) {
+            try {
+                JsonChannel jsonChannel = channel.toJsonChannel();
+                mChannels.add(jsonChannel);
+                mChannelList.append(jsonChannel.getName()).append('\n');
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Skipping invalid channel: " + e.getMessage());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Asks the user whether to import the channels of a playlist, then imports them.
+     */
+    private void confirmImport(final String source, final List<JsonChannel> channels,
+            CharSequence channelList) {
+        Log.d(TAG, "Import " + channels.size() + " channels");
+        new AlertDialog.Builder(MainPicker.this)
+                .setTitle(getString(R.string.import_bulk_title, channels.size()))
+                .setMessage(channelList.toString())
+                .setPositiveButton(R.string.ok, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        Toast.makeText(MainPicker.this, R.string.import_bulk_wait,
+                                Toast.LENGTH_SHORT).show();
+                        new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                ChannelDatabase channelDatabase =
+                                        ChannelDatabase.getInstance(MainPicker.this);
+                                // Only what changed since the last import is written
+                                try {
+                                    PlaylistDiff diff = channelDatabase
+                                            .importChannels(source, channels);
+                                    Log.d(TAG, "Imported " + diff);
+                                } catch (JSONException e) {
+                                    e.printStackTrace();
+                                }
+                                Handler finishedImporting =
+                                        new Handler(Looper.getMainLooper()) {
+                                            @Override
+                                            public void handleMessage(Message msg) {
+                                                super.handleMessage(msg);
+                                                Toast.makeText(MainPicker.this,
+                                                        R.string.import_bulk_success,
+                                                        Toast.LENGTH_SHORT).show();
+                                                saveDatabase();
+                                                finish();
+                                            }
+                                        };
+                                finishedImporting.sendEmptyMessage(0);
+                            }
+                        }).start();
+                    }
+                })
+                .setNegativeButton(R.string.no, new DialogInterface.OnClickListener() {
+                    @Override
+                    public void onClick(DialogInterface dialogInterface, int i) {
+                        finish();
+                    }
+                })
+                .show();
+    }
+
     private String getContentName(ContentResolver resolver, Uri uri){
         Cursor cursor = resolver.query(uri, null, null, null, null);
         cursor.moveToFirst();
@@ -86,7 +86,8 @@ public class CumulusBrowseService extends MediaBrowserServiceCompat {
         ChannelDatabase channelDatabase = ChannelDatabase.getInstance(getApplicationContext());
         if (parentId.equals(MEDIA_ROOT_ID)) {
             try {
-                for (Channel channel : channelDatabase.getChannels()) {
+                for (JsonChannel jsonChannel : channelDatabase.getVisibleChannels()) {
+                    Channel channel = jsonChannel.toChannel();
                     MediaDescriptionCompat descriptionCompat = new MediaDescriptionCompat.Builder()
                             .setMediaId(channel.getInternalProviderData().getVideoUrl())
                             .setTitle(channel.getDisplayName())
@@ -18,7 +18,9 @@ import android.util.Log;
 
 import com.felkertech.cumulustv.fileio.CumulusXmlParser;
 import com.felkertech.cumulustv.model.ChannelDatabase;
+import com.felkertech.cumulustv.model.EpgCache;
 import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.ProgramSchedule;
 import com.felkertech.cumulustv.tv.activities.PlaybackQuickSettingsActivity;
 import com.felkertech.cumulustv.utils.AppUtils;
 import com.felkertech.n.cumulustv.R;
@@ -34,14 +36,12 @@ import junit.framework.Assert;
 
 import org.json.JSONException;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A periodic task that can be run to synchronize data from Google Drive to the system's internal
@@ -54,8 +54,9 @@ public class CumulusJobService extends EpgSyncJobService {
                     "single_ad_samples&ciu_szs=300x250&impl=s&gdfp_req=1&env=vp&output=vast" +
                     "&unviewed_position_start=1&cust_params=deployment%3Ddevsite%26sample_ct" +
                     "%3Dlinear&correlator=";
-    private static HashMap<String, CumulusXmlParser.TvListing> epgData;
     public static final long DEFAULT_IMMEDIATE_EPG_DURATION_MILLIS = 1000 * 60 * 60; // 1 Hour
+    // How far ahead guides must have programs, which covers the periodic sync
+    private static final long EPG_WINDOW_MILLIS = 1000 * 60 * 60 * 48; // 48 Hours
 
     /**
      * This method needs to be overridden so that we can do asynchronous actions beforehand.
@@ -140,58 +141,32 @@ public class CumulusJobService extends EpgSyncJobService {
         JsonChannel jsonChannel = channelDatabase.findChannelByMediaUrl(
                 channel.getInternalProviderData().getVideoUrl());
 
+        EpgCache.GuideChannel guideChannel = null;
         if (jsonChannel != null && jsonChannel.getEpgUrl() != null &&
-                !jsonChannel.getEpgUrl().isEmpty() && epgData.containsKey(jsonChannel.getEpgUrl())) {
-            List<Program> programForGivenTime = new ArrayList<>();
-            CumulusXmlParser.TvListing tvListing = epgData.get(jsonChannel.getEpgUrl());
-            if (tvListing == null) {
-                return programs; // Return empty programs.
+                !jsonChannel.getEpgUrl().isEmpty()) {
+            EpgCache.Guide guide = EpgCache.getInstance(this).get(jsonChannel.getEpgUrl());
+            if (guide != null) {
+                guideChannel = guide.findChannel(jsonChannel.getNumber(), jsonChannel.getName());
             }
-            List<Program> programList = tvListing.getAllPrograms();
-            // If repeat-programs is on, schedule the programs sequentially in a loop. To make
-            // every device play the same program in a given channel and time, we assumes the
-            // loop started from the epoch time.
-            long totalDurationMs = 0;
-            for (Program program : programList) {
-                totalDurationMs += program.getEndTimeUtcMillis() - program.getStartTimeUtcMillis();
-            }
-            long programStartTimeMs = startMs - startMs % totalDurationMs;
-            int i = 0;
-            final int programCount = programList.size();
-            while (programStartTimeMs < endMs) {
-                Program currentProgram = programList.get(i++ % programCount);
-                long programEndTimeMs = currentProgram.getEndTimeUtcMillis();
-                if (programEndTimeMs < startMs) {
-                    programStartTimeMs = programEndTimeMs;
-                    continue;
-                }
-                programForGivenTime.add(new Program.Builder()
-                        .setTitle(currentProgram.getTitle())
-                        .setDescription(currentProgram.getDescription())
-                        .setContentRatings(currentProgram.getContentRatings())
-                        .setCanonicalGenres(currentProgram.getCanonicalGenres())
-                        .setPosterArtUri(currentProgram.getPosterArtUri())
-                        .setThumbnailUri(currentProgram.getThumbnailUri())
-                        .setInternalProviderData(currentProgram.getInternalProviderData())
-                        .setStartTimeUtcMillis(programStartTimeMs)
-                        .setEndTimeUtcMillis(programEndTimeMs)
-                        .build()
-                );
-                programStartTimeMs = programEndTimeMs;
+        }
+
+        if (guideChannel != null) {
+            List<Program> programForGivenTime = ProgramSchedule.getPrograms(
+                    guideChannel.getPrograms(), guideChannel.isRepeating(), startMs, endMs);
+            if (!programForGivenTime.isEmpty()) {
+                return programForGivenTime;
             }
-            return programForGivenTime;
-        } else {
-            programs.add(new Program.Builder()
-                    .setInternalProviderData(channel.getInternalProviderData())
-                    .setTitle(channel.getDisplayName() + " Live")
-                    .setDescription(getString(R.string.currently_streaming))
-                    .setPosterArtUri(channel.getChannelLogo())
-                    .setThumbnailUri(channel.getChannelLogo())
-                    .setCanonicalGenres(jsonChannel != null ? jsonChannel.getGenres() : null)
-                    .setStartTimeUtcMillis(startMs)
-                    .setEndTimeUtcMillis(startMs + 1000 * 60 * 60) // 60 minutes
-                    .build());
         }
+        programs.add(new Program.Builder()
+                .setInternalProviderData(channel.getInternalProviderData())
+                .setTitle(channel.getDisplayName() + " Live")
+                .setDescription(getString(R.string.currently_streaming))
+                .setPosterArtUri(channel.getChannelLogo())
+                .setThumbnailUri(channel.getChannelLogo())
+                .setCanonicalGenres(jsonChannel != null ? jsonChannel.getGenres() : null)
+                .setStartTimeUtcMillis(startMs)
+                .setEndTimeUtcMillis(startMs + 1000 * 60 * 60) // 60 minutes
+                .build());
         return programs;
     }
 
@@ -208,7 +183,6 @@ public class CumulusJobService extends EpgSyncJobService {
         @Override
         public void run() {
             super.run();
-            epgData = new HashMap<>();
             ChannelDatabase cdn;
             try {
                 cdn = ChannelDatabase.getInstance(mContext);
@@ -216,25 +190,32 @@ public class CumulusJobService extends EpgSyncJobService {
                 return; // Stop execution now.
             }
             try {
-                List<JsonChannel> channels = cdn.getJsonChannels();
-                for (JsonChannel jsonChannel : channels) {
+                EpgCache epgCache = EpgCache.getInstance(mContext);
+                // Only the channels of the lineup are read from each guide
+                Map<String, List<JsonChannel>> channelsByEpgUrl = new LinkedHashMap<>();
+                for (JsonChannel jsonChannel : cdn.getJsonChannels()) {
                     if (jsonChannel.getEpgUrl() != null && !jsonChannel.getEpgUrl().isEmpty()) {
-                        List<Program> programForGivenTime = new ArrayList<>();
-                        // Load from the EPG url
-                        URLConnection urlConnection = null;
-                        try {
-                            urlConnection = new URL(jsonChannel.getEpgUrl()).openConnection();
-                            urlConnection.setConnectTimeout(1000 * 5);
-                            urlConnection.setReadTimeout(1000 * 5);
-                            InputStream inputStream = urlConnection.getInputStream();
-                            InputStream epgInputStream =  new BufferedInputStream(inputStream);
-                            CumulusXmlParser.TvListing tvListing = CumulusXmlParser.parse(epgInputStream);
-                            epgData.put(jsonChannel.getEpgUrl(), tvListing);
-                        } catch (IOException | CumulusXmlParser.XmlTvParseException e) {
-                            e.printStackTrace();
+                        List<JsonChannel> channels = channelsByEpgUrl.get(jsonChannel.getEpgUrl());
+                        if (channels == null) {
+                            channels = new ArrayList<>();
+                            channelsByEpgUrl.put(jsonChannel.getEpgUrl(), channels);
                         }
+                        channels.add(jsonChannel);
+                    }
+                }
+                Set<String> epgUrls = channelsByEpgUrl.keySet();
+                for (String epgUrl : epgUrls) {
+                    // Programs are read from the cache while it is refreshed, and the cached
+                    // guide is kept if the download fails
+                    try {
+                        epgCache.refresh(epgUrl, EPG_WINDOW_MILLIS, channelsByEpgUrl.get(epgUrl));
+                    } catch (IOException | CumulusXmlParser.XmlTvParseException e) {
+                        e.printStackTrace();
                     }
                 }
+                epgCache.retainAll(epgUrls);
+                // Check streams while the job is running anyway; results are reused for hours
+                cdn.probeStreams(false, null);
                 mCallback.onComplete();
             } catch (JSONException e) {
                 e.printStackTrace();
@@ -385,21 +385,14 @@ public class CumulusTvTifService extends BaseTvInputService {
             stillTuning = true;
 
             // Update our channel
-            if (ChannelDatabase.getInstance(mContext).getHashMap() == null) {
-                notifyVideoUnavailable(TvInputManager.VIDEO_UNAVAILABLE_REASON_UNKNOWN);
-                Toast.makeText(mContext, "Channel HashMap is null", Toast.LENGTH_SHORT).show();
+            if (channelUri == null) {
+                Toast.makeText(mContext, "channelUri is null", Toast.LENGTH_SHORT).show();
                 return false;
             }
-            for (String mediaUrl : ChannelDatabase.getInstance(mContext).getHashMap().keySet()) {
-                if (channelUri == null) {
-                    Toast.makeText(mContext, "channelUri is null", Toast.LENGTH_SHORT).show();
-                    return false;
-                }
-                if (ChannelDatabase.getInstance(mContext).getHashMap().get(mediaUrl) ==
-                        Long.parseLong(channelUri.getLastPathSegment())) {
-                    jsonChannel = ChannelDatabase.getInstance(mContext)
-                            .findChannelByMediaUrl(mediaUrl);
-                }
+            JsonChannel tunedChannel = ChannelDatabase.getInstance(mContext)
+                    .getChannelFromRowId(Long.parseLong(channelUri.getLastPathSegment()));
+            if (tunedChannel != null) {
+                jsonChannel = tunedChannel;
             }
             notifyVideoAvailable();
             setOverlayViewEnabled(false);
@@ -41,6 +41,8 @@ import com.felkertech.cumulustv.services.CumulusJobService;
 import com.felkertech.cumulustv.utils.ActivityUtils;
 import com.felkertech.cumulustv.utils.DriveSettingsManager;
 import com.felkertech.n.cumulustv.R;
+import com.felkertech.cumulustv.model.ChannelChangeEvent;
+import com.felkertech.cumulustv.model.ChannelChangeLog;
 import com.felkertech.cumulustv.model.ChannelDatabase;
 import com.felkertech.cumulustv.model.JsonChannel;
 import com.felkertech.cumulustv.model.Option;
@@ -89,11 +91,45 @@ public class LeanbackFragment extends BrowseFragment implements GoogleApiClient.
     private BackgroundManager mBackgroundManager;
     private DriveSettingsManager sm;
     public Activity mActivity;
+    // The rows which show saved channels, kept so single changes can be applied to them
+    private ArrayObjectAdapter mChannelRowAdapter;
+    private Map<String, ListRow> mGenreRows = new HashMap<>();
+    private long mAppliedSequence;
+    private final ChannelChangeLog.Listener mChannelChangeListener =
+            new ChannelChangeLog.Listener() {
+        @Override
+        public void onChannelChanged(ChannelChangeEvent event) {
+            if (event.getSequence() <= mAppliedSequence || mChannelRowAdapter == null) {
+                // Already part of the rows
+                return;
+            }
+            mAppliedSequence = event.getSequence();
+            switch (event.getType()) {
+                case ChannelChangeEvent.TYPE_ADDED:
+                    if (isVisible(event.getNewChannel())) {
+                        addChannelToRows(event.getNewChannel());
+                    }
+                    break;
+                case ChannelChangeEvent.TYPE_REMOVED:
+                    removeChannelFromRows(event.getOldChannel());
+                    break;
+                case ChannelChangeEvent.TYPE_UPDATED:
+                    if (isVisible(event.getNewChannel())) {
+                        updateChannelInRows(event.getOldChannel(), event.getNewChannel());
+                    } else {
+                        removeChannelFromRows(event.getOldChannel());
+                    }
+                    break;
+                default:
+                    refreshUI();
+            }
+        }
+    };
     private final GoogleDriveBroadcastReceiver broadcastReceiver =
             new GoogleDriveBroadcastReceiver() {
         @Override
         public void onDownloadCompleted() {
-            refreshUI();
+            // The rows are kept up to date by mChannelChangeListener
             Toast.makeText(mActivity, R.string.toast_sync_data_downloaded, Toast.LENGTH_SHORT).show();
         }
 
@@ -136,6 +172,17 @@ public class LeanbackFragment extends BrowseFragment implements GoogleApiClient.
         LocalBroadcastManager.getInstance(getActivity()).registerReceiver(broadcastReceiver,
                 new IntentFilter(GoogleDriveBroadcastReceiver.ACTION_STATUS_CHANGED));
         Log.d(TAG, "Registered broadcast receiver");
+        if (mChannelRowAdapter != null) {
+            // Catch up with anything that changed while this was stopped
+            ChannelDatabase.getInstance(getActivity()).subscribe(mChannelChangeListener,
+                    mAppliedSequence);
+        }
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        ChannelDatabase.getInstance(getActivity()).unsubscribe(mChannelChangeListener);
     }
 
     @Override
@@ -175,11 +222,13 @@ public class LeanbackFragment extends BrowseFragment implements GoogleApiClient.
             return;
         }
         Map<String, ListRow> genresListRows = new HashMap<>();
+        // Read before the lineup, so later changes are applied on top of it
+        long sequence = cd.getLatestSequence();
         try {
             CardPresenter channelCardPresenter = new CardPresenter();
             ArrayObjectAdapter channelRowAdapter = new ArrayObjectAdapter(channelCardPresenter);
             int index = 0;
-            for(JsonChannel jsonChannel : cd.getJsonChannels()) {
+            for(JsonChannel jsonChannel : cd.getVisibleChannels()) {
                 if (DEBUG) {
                     Log.d(TAG, "Got channels " + jsonChannel.getName());
                 }
@@ -201,6 +250,9 @@ public class LeanbackFragment extends BrowseFragment implements GoogleApiClient.
             }
             HeaderItem header = new HeaderItem(ORDER_ALL_CHANNELS, getString(R.string.my_channels));
             mRowsAdapter.add(new ListRow(header, channelRowAdapter));
+            mChannelRowAdapter = channelRowAdapter;
+            mGenreRows = genresListRows;
+            mAppliedSequence = sequence;
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -264,6 +316,68 @@ public class LeanbackFragment extends BrowseFragment implements GoogleApiClient.
         setAdapter(mRowsAdapter);
     }
 
+    /**
+     * @return False if the channel's stream is dead and dead channels are hidden.
+     */
+    private boolean isVisible(JsonChannel jsonChannel) {
+        ChannelDatabase cd = ChannelDatabase.getInstance(getActivity());
+        return !cd.isHidingDeadStreams() || !cd.isStreamDead(jsonChannel.getMediaUrl());
+    }
+
+    private void addChannelToRows(JsonChannel jsonChannel) {
+        if (mChannelRowAdapter.indexOf(jsonChannel) >= 0) {
+            return;
+        }
+        mChannelRowAdapter.add(jsonChannel);
+        addChannelToGenreRows(jsonChannel);
+    }
+
+    private void removeChannelFromRows(JsonChannel jsonChannel) {
+        mChannelRowAdapter.remove(jsonChannel);
+        removeChannelFromGenreRows(jsonChannel);
+    }
+
+    private void updateChannelInRows(JsonChannel oldChannel, JsonChannel newChannel) {
+        int index = mChannelRowAdapter.indexOf(oldChannel);
+        if (index < 0) {
+            addChannelToRows(newChannel);
+            return;
+        }
+        mChannelRowAdapter.replace(index, newChannel);
+        removeChannelFromGenreRows(oldChannel);
+        addChannelToGenreRows(newChannel);
+    }
+
+    private void addChannelToGenreRows(JsonChannel jsonChannel) {
+        for (String genre : jsonChannel.getGenres()) {
+            ListRow row = mGenreRows.get(genre);
+            if (row == null) {
+                HeaderItem genresHeader =
+                        new HeaderItem(ORDER_GENRE_CATEGORY, Utils.normalizeGenre(genre));
+                row = new ListRow(genresHeader, new ArrayObjectAdapter(new CardPresenter()));
+                // Genre rows come before all other rows
+                mRowsAdapter.add(mGenreRows.size(), row);
+                mGenreRows.put(genre, row);
+            }
+            ((ArrayObjectAdapter) row.getAdapter()).add(jsonChannel);
+        }
+    }
+
+    private void removeChannelFromGenreRows(JsonChannel jsonChannel) {
+        for (String genre : jsonChannel.getGenres()) {
+            ListRow row = mGenreRows.get(genre);
+            if (row == null) {
+                continue;
+            }
+            ArrayObjectAdapter genreAdapter = (ArrayObjectAdapter) row.getAdapter();
+            genreAdapter.remove(jsonChannel);
+            if (genreAdapter.size() == 0) {
+                mRowsAdapter.remove(row);
+                mGenreRows.remove(genre);
+            }
+        }
+    }
+
     private void prepareBackgroundManager() {
         try {
             mBackgroundManager = BackgroundManager.getInstance(getActivity());
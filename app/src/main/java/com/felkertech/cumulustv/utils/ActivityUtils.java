@@ -324,7 +324,7 @@ public class ActivityUtils {
                             try {
                                 DriveId did = DriveId.decodeFromString(sm.getString(R.string.sm_google_drive_id));
                                 sm.writeToGoogleDrive(did,
-                                        sm.getString(ChannelDatabase.KEY));
+                                        ChannelDatabase.getInstance(activity).toString());
                             } catch (Exception e) {
                                 Toast.makeText(activity, R.string.toast_error_driveid_invalid,
                                         Toast.LENGTH_SHORT).show();
@@ -728,13 +728,17 @@ public class ActivityUtils {
             Log.d(TAG, "To create: " + userM3u.getAbsolutePath());
             FileOutputStream out = new FileOutputStream(userM3u);
             Log.d(TAG, "Starting to write out data");
-            out.write(ChannelDatabase.getInstance(activity).toM3u().getBytes());
-            out.flush();
-            out.close();
-            Log.d(TAG, "Data written to " + userM3u.getAbsolutePath());
+            int written;
+            try {
+                // Each channel is written as it is reached, rather than building the file first
+                written = ChannelDatabase.getInstance(activity).writeM3u(out, null);
+            } finally {
+                out.close();
+            }
+            Log.d(TAG, written + " channels written to " + userM3u.getAbsolutePath());
             Toast.makeText(activity, "M3U Playlist written to " +
                     userM3u.getCanonicalPath(), Toast.LENGTH_SHORT).show();
-        } catch (IOException e) {
+        } catch (IOException | JSONException e) {
             e.printStackTrace();
         }
     }
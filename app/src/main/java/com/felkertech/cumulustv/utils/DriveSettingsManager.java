@@ -112,7 +112,18 @@ public class DriveSettingsManager extends SettingsManager {
                             }
 
                             //Step 3, write to SM
-                            setString(resId, contentsAsString);
+                            if (ChannelDatabase.KEY.equals(resId)) {
+                                // Channels live in their own store, not in a preference
+                                try {
+                                    ChannelDatabase.getInstance(mContext)
+                                            .importJson(contentsAsString);
+                                } catch (JSONException e) {
+                                    throw new ChannelDatabase.MalformedChannelDataException(
+                                            e.getMessage());
+                                }
+                            } else {
+                                setString(resId, contentsAsString);
+                            }
 
                             //Step 4, close stream (or not? java.lang.IllegalStateException: Cannot commit contents opened with MODE_READ_ONLY)
                             /*contents.commit(mGoogleApiClient, null).setResultCallback(new ResultCallback<Status>() {
@@ -47,6 +47,7 @@ public class MockChannelDatabase extends ChannelDatabase {
 
     @Override
     public void save() {
-        mJsonChannelsList = null;
+        invalidateLineup();
+        publishPendingEvents();
     }
 }
@@ -1,14 +1,22 @@
 package com.felkertech.cumulustv.test;
 
+import android.media.tv.TvContract;
 import android.os.Build;
 import android.util.Log;
 
+import com.felkertech.cumulustv.fileio.M3uParser;
+import com.felkertech.cumulustv.fileio.M3uWriter;
 import com.felkertech.cumulustv.model.JsonListing;
 import com.felkertech.cumulustv.plugins.CumulusChannel;
 import com.felkertech.n.cumulustv.BuildConfig;
 import com.felkertech.cumulustv.MockChannelDatabase;
+import com.felkertech.cumulustv.model.ChannelChangeEvent;
+import com.felkertech.cumulustv.model.ChannelChangeLog;
 import com.felkertech.cumulustv.model.ChannelDatabase;
+import com.felkertech.cumulustv.model.ChannelLineup;
+import com.felkertech.cumulustv.model.ChannelNumber;
 import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.PlaylistDiff;
 import com.felkertech.settingsmanager.SettingsManager;
 
 import junit.framework.TestCase;
@@ -18,10 +26,15 @@ import org.json.JSONException;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.RuntimeEnvironment;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -116,6 +129,408 @@ public class ChannelDatabaseUnitTest extends TestCase {
         assertEquals(sampleChannel, mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL));
     }
 
+    /**
+     * Tests that lookups by media url and number stop finding a channel once it is deleted.
+     */
+    @Test
+    public void testChannelFindAfterDelete() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        CumulusChannel sampleChannel = new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber(NUMBER)
+                .setMediaUrl(MEDIA_URL)
+                .build();
+        mockChannelDatabase.add(sampleChannel);
+        assertNotNull(mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL));
+
+        mockChannelDatabase.delete(sampleChannel);
+        assertFalse(mockChannelDatabase.channelExists(sampleChannel));
+        assertFalse(mockChannelDatabase.channelNumberExists(NUMBER));
+        assertNull(mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL));
+        assertNull(mockChannelDatabase.getChannelFromRowId(1L));
+    }
+
+    /**
+     * Tests that channels added inside of a batch are readable before and after it is committed.
+     */
+    @Test
+    public void testBatchedInsertion() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.beginBatch();
+        for (int i = 0; i < 3; i++) {
+            mockChannelDatabase.add(new JsonChannel.Builder()
+                    .setName(NAME)
+                    .setNumber(String.valueOf(i))
+                    .setMediaUrl(MEDIA_URL + "?" + i)
+                    .build());
+        }
+        assertTrue(mockChannelDatabase.isInBatch());
+        assertEquals(3, mockChannelDatabase.getJsonChannels().size());
+        mockChannelDatabase.commit();
+
+        assertFalse(mockChannelDatabase.isInBatch());
+        assertEquals(3, mockChannelDatabase.getJsonChannels().size());
+        assertTrue(mockChannelDatabase.channelNumberExists("2"));
+    }
+
+    /**
+     * Tests that a batch open on one thread does not hold back saves made on another.
+     */
+    @Test
+    public void testBatchBelongsToItsThread() throws InterruptedException {
+        final MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        final CountDownLatch opened = new CountDownLatch(1);
+        final CountDownLatch checked = new CountDownLatch(1);
+        final boolean[] inBatch = new boolean[1];
+        Thread importThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mockChannelDatabase.beginBatch();
+                inBatch[0] = mockChannelDatabase.isInBatch();
+                opened.countDown();
+                try {
+                    checked.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException ignored) {
+                }
+                mockChannelDatabase.commit();
+            }
+        });
+        importThread.start();
+        assertTrue(opened.await(5, TimeUnit.SECONDS));
+        assertTrue(inBatch[0]);
+        assertFalse(mockChannelDatabase.isInBatch());
+        checked.countDown();
+        importThread.join();
+    }
+
+    /**
+     * Checks that a lineup which was read before a change is left untouched by it.
+     */
+    @Test
+    public void testLineupSnapshot() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.add(new JsonChannel.Builder()
+                .setName("One")
+                .setNumber("1")
+                .setMediaUrl(MEDIA_URL + "1")
+                .build());
+        ChannelLineup lineup = mockChannelDatabase.getLineup();
+        assertSame(lineup, mockChannelDatabase.getLineup());
+        mockChannelDatabase.add(new JsonChannel.Builder()
+                .setName("Two")
+                .setNumber("2")
+                .setMediaUrl(MEDIA_URL + "2")
+                .build());
+        ChannelLineup newLineup = mockChannelDatabase.getLineup();
+        assertEquals(1, lineup.size());
+        assertFalse(lineup.channelNumberExists("2"));
+        assertEquals(2, newLineup.size());
+        assertTrue(newLineup.getVersion() > lineup.getVersion());
+        assertNotNull(newLineup.findChannelByMediaUrl(MEDIA_URL + "2"));
+    }
+
+    /**
+     * Checks that temporary channels are merged by their media url, so the same stream is never
+     * shown twice.
+     */
+    @Test
+    public void testTemporaryChannelMerge() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.add(new JsonChannel.Builder()
+                .setName("Saved")
+                .setNumber("1")
+                .setMediaUrl("http://example.com/saved.m3u8")
+                .build());
+        JsonChannel temporaryChannel = new JsonChannel.Builder()
+                .setName("Temporary")
+                .setNumber("2")
+                .setMediaUrl("http://example.com/temporary.m3u8")
+                .build();
+        mockChannelDatabase.addTemporaryChannel(temporaryChannel);
+        mockChannelDatabase.addTemporaryChannel(temporaryChannel);
+        mockChannelDatabase.addTemporaryChannel(new JsonChannel.Builder()
+                .setName("Duplicate")
+                .setNumber("3")
+                .setMediaUrl("HTTP://Example.com/saved.m3u8")
+                .build());
+        assertEquals(2, mockChannelDatabase.getJsonChannels().size());
+        assertEquals("Saved", mockChannelDatabase
+                .findChannelByMediaUrl("http://EXAMPLE.com/saved.m3u8").getName());
+        assertEquals("http://example.com/A.m3u8",
+                ChannelLineup.canonicalMediaUrl(" HTTP://Example.COM/A.m3u8 "));
+        assertEquals("http://User@example.com/",
+                ChannelLineup.canonicalMediaUrl("http://User@Example.com/"));
+    }
+
+    /**
+     * Checks that saved channels are keyed by the same media url as the lineup, so a url which
+     * only differs in case updates and deletes the saved channel.
+     */
+    @Test
+    public void testSavedChannelCanonicalKey() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.add(new JsonChannel.Builder()
+                .setName("Saved")
+                .setNumber("1")
+                .setMediaUrl("http://example.com/saved.m3u8")
+                .build());
+        assertTrue(mockChannelDatabase.upsert(new JsonChannel.Builder()
+                .setName("Renamed")
+                .setNumber("1")
+                .setMediaUrl("HTTP://Example.com/saved.m3u8")
+                .build()));
+        assertEquals(1, mockChannelDatabase.getJSONArray().length());
+        assertEquals("Renamed", mockChannelDatabase
+                .findChannelByMediaUrl("http://example.com/saved.m3u8").getName());
+
+        assertTrue(mockChannelDatabase.delete(new JsonChannel.Builder()
+                .setName("Saved")
+                .setNumber("1")
+                .setMediaUrl("http://example.com/saved.m3u8")
+                .build()));
+        assertEquals(0, mockChannelDatabase.getJSONArray().length());
+    }
+
+    /**
+     * Replaces and removes single channels in a large lineup by their media url.
+     */
+    @Test
+    public void testKeyedUpsertAndDelete() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.beginBatch();
+        for (int i = 0; i < 3000; i++) {
+            mockChannelDatabase.add(new JsonChannel.Builder()
+                    .setName(NAME)
+                    .setNumber(String.valueOf(i))
+                    .setMediaUrl(MEDIA_URL + "?" + i)
+                    .build());
+        }
+        mockChannelDatabase.commit();
+
+        assertTrue(mockChannelDatabase.upsert(new JsonChannel.Builder()
+                .setName("Renamed")
+                .setNumber("1500")
+                .setMediaUrl(MEDIA_URL + "?1500")
+                .build()));
+        List<JsonChannel> channels = mockChannelDatabase.getJsonChannels();
+        assertEquals(3000, channels.size());
+        assertEquals("Renamed", channels.get(1500).getName());
+        assertEquals(3000, mockChannelDatabase.getJSONArray().length());
+
+        assertFalse(mockChannelDatabase.upsert(new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber("3000")
+                .setMediaUrl(MEDIA_URL + "?3000")
+                .build()));
+        assertTrue(mockChannelDatabase.delete(mockChannelDatabase.findChannelByMediaUrl(
+                MEDIA_URL + "?10")));
+        assertFalse(mockChannelDatabase.delete(new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber("10")
+                .setMediaUrl(MEDIA_URL + "?10")
+                .build()));
+        channels = mockChannelDatabase.getJsonChannels();
+        assertEquals(3000, channels.size());
+        assertEquals(MEDIA_URL + "?11", channels.get(10).getMediaUrl());
+        assertNull(mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL + "?10"));
+    }
+
+    /**
+     * Imports a playlist twice and checks that only the changes of the second import are applied.
+     */
+    @Test
+    public void testIncrementalImport() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        String source = "http://example.com/playlist.m3u";
+        List<JsonChannel> playlist = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            playlist.add(new JsonChannel.Builder()
+                    .setName(NAME)
+                    .setNumber(String.valueOf(i))
+                    .setMediaUrl(MEDIA_URL + "?" + i)
+                    .build());
+        }
+        PlaylistDiff diff = mockChannelDatabase.importChannels(source, playlist);
+        assertEquals(1000, diff.getAdded().size());
+        assertEquals(1000, mockChannelDatabase.getJsonChannels().size());
+
+        // The same channels with different formatting are unchanged
+        assertTrue(mockChannelDatabase.importChannels(source, playlist).isEmpty());
+        playlist.set(0, new JsonChannel.Builder()
+                .setName(" " + NAME + " ")
+                .setNumber("0")
+                .setMediaUrl(MEDIA_URL + "?0")
+                .build());
+        assertTrue(mockChannelDatabase.importChannels(source, playlist).isEmpty());
+
+        playlist.set(1, new JsonChannel.Builder()
+                .setName("Renamed")
+                .setNumber("1")
+                .setMediaUrl(MEDIA_URL + "?1")
+                .build());
+        playlist.remove(2);
+        playlist.add(new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber("1000")
+                .setMediaUrl(MEDIA_URL + "?1000")
+                .build());
+        diff = mockChannelDatabase.importChannels(source, playlist);
+        assertEquals(1, diff.getAdded().size());
+        assertEquals(1, diff.getChanged().size());
+        assertEquals(1, diff.getRemoved().size());
+        assertEquals("Renamed",
+                mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL + "?1").getName());
+        assertNull(mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL + "?2"));
+        assertEquals(1000, mockChannelDatabase.getJsonChannels().size());
+
+        // After erasing, the next import starts over
+        mockChannelDatabase.eraseData();
+        assertEquals(1000, mockChannelDatabase.importChannels(source, playlist).getAdded().size());
+    }
+
+    /**
+     * Exports the lineup and parts of it as M3U playlists, and reads the subsets back.
+     */
+    @Test
+    public void testM3uExport() throws JSONException, IOException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        mockChannelDatabase.beginBatch();
+        for (int i = 0; i < 100; i++) {
+            mockChannelDatabase.add(new JsonChannel.Builder()
+                    .setName(NAME + " " + i)
+                    .setNumber(String.valueOf(i))
+                    .setGenres(i % 2 == 0 ? TvContract.Programs.Genres.NEWS :
+                            TvContract.Programs.Genres.SPORTS)
+                    .setMediaUrl(MEDIA_URL + "?" + i)
+                    .build());
+        }
+        mockChannelDatabase.commit();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(100, mockChannelDatabase.writeM3u(out, null));
+        assertEquals(mockChannelDatabase.toM3u(), out.toString("UTF-8"));
+
+        out = new ByteArrayOutputStream();
+        assertEquals(50, mockChannelDatabase.writeM3u(out,
+                M3uWriter.withGenre(TvContract.Programs.Genres.NEWS)));
+        M3uParser.TvListing listing =
+                M3uParser.parse(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(50, listing.channels.size());
+        assertEquals("2", listing.channels.get(1).toJsonChannel().getNumber());
+
+        out = new ByteArrayOutputStream();
+        assertEquals(10, mockChannelDatabase.writeM3u(out, "20", "30"));
+        listing = M3uParser.parse(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(NAME + " 20", listing.channels.get(0).toJsonChannel().getName());
+        assertEquals(MEDIA_URL + "?29", listing.channels.get(9).toJsonChannel().getMediaUrl());
+    }
+
+    /**
+     * Checks that channels are ordered by their major and minor numbers as they are added and
+     * removed, and that a range of numbers can be read.
+     */
+    @Test
+    public void testChannelNumberOrder() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        String[] numbers = new String[] {"10", "9", "5.10", "5.2", "A1", "599.5", "600", "500"};
+        for (String number : numbers) {
+            mockChannelDatabase.add(new JsonChannel.Builder()
+                    .setName(NAME)
+                    .setNumber(number)
+                    .setMediaUrl(MEDIA_URL + "?" + number)
+                    .build());
+        }
+        mockChannelDatabase.addTemporaryChannel(new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber("5.3")
+                .setMediaUrl(MEDIA_URL + "?temporary")
+                .build());
+        assertEquals("5.2", mockChannelDatabase.getLineup().getChannelsByNumber().get(0)
+                .getNumber());
+        mockChannelDatabase.delete(mockChannelDatabase.findChannelByMediaUrl(MEDIA_URL + "?5.2"));
+
+        List<JsonChannel> channelsByNumber = mockChannelDatabase.getLineup().getChannelsByNumber();
+        String[] expected = new String[] {"5.3", "5.10", "9", "10", "500", "599.5", "600", "A1"};
+        assertEquals(expected.length, channelsByNumber.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], channelsByNumber.get(i).getNumber());
+        }
+
+        List<JsonChannel> guidePage = mockChannelDatabase.getChannelsInRange("500", "600");
+        assertEquals(2, guidePage.size());
+        assertEquals("500", guidePage.get(0).getNumber());
+        assertEquals("599.5", guidePage.get(1).getNumber());
+        assertEquals(0, mockChannelDatabase.getChannelsInRange("11", "499").size());
+        assertTrue(ChannelNumber.parse("5.2").compareTo(ChannelNumber.parse("5-10")) < 0);
+        assertFalse(ChannelNumber.parse("HD 1").isNumeric());
+    }
+
+    /**
+     * Subscribes to changes, and checks that a late subscriber can catch up from a sequence.
+     */
+    @Test
+    public void testChangeEvents() throws JSONException {
+        MockChannelDatabase mockChannelDatabase =
+                MockChannelDatabase.getMockedInstance(RuntimeEnvironment.application);
+        final List<ChannelChangeEvent> events = new ArrayList<>();
+        ChannelChangeLog.Listener listener = new ChannelChangeLog.Listener() {
+            @Override
+            public void onChannelChanged(ChannelChangeEvent event) {
+                events.add(event);
+            }
+        };
+        long start = mockChannelDatabase.getLatestSequence();
+        mockChannelDatabase.subscribe(listener, start);
+        JsonChannel channel = new JsonChannel.Builder()
+                .setName(NAME)
+                .setNumber(NUMBER)
+                .setMediaUrl(MEDIA_URL)
+                .build();
+        mockChannelDatabase.add(channel);
+        JsonChannel renamedChannel = new JsonChannel.Builder(channel)
+                .setName("Renamed")
+                .build();
+        mockChannelDatabase.update(renamedChannel);
+        mockChannelDatabase.delete(renamedChannel);
+        Robolectric.flushForegroundThreadScheduler();
+
+        assertEquals(3, events.size());
+        assertEquals(ChannelChangeEvent.TYPE_ADDED, events.get(0).getType());
+        assertEquals(NAME, events.get(0).getNewChannel().getName());
+        assertEquals(ChannelChangeEvent.TYPE_UPDATED, events.get(1).getType());
+        assertEquals(NAME, events.get(1).getOldChannel().getName());
+        assertEquals("Renamed", events.get(1).getNewChannel().getName());
+        assertEquals(ChannelChangeEvent.TYPE_REMOVED, events.get(2).getType());
+        assertEquals(start + 3, events.get(2).getSequence());
+        assertEquals(start + 3, mockChannelDatabase.getLatestSequence());
+        mockChannelDatabase.unsubscribe(listener);
+
+        // A late subscriber only receives what it has not seen yet
+        events.clear();
+        mockChannelDatabase.subscribe(listener, start + 1);
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(2, events.size());
+        assertEquals(start + 2, events.get(0).getSequence());
+
+        // Events which are no longer kept are replaced by a reset
+        events.clear();
+        mockChannelDatabase.subscribe(listener, start + 1000);
+        Robolectric.flushForegroundThreadScheduler();
+        assertEquals(1, events.size());
+        assertEquals(ChannelChangeEvent.TYPE_RESET, events.get(0).getType());
+        mockChannelDatabase.unsubscribe(listener);
+    }
+
     /**
      * Adds a JSON Listing and then tries to read data from it shortly after.
      * @throws JSONException
@@ -0,0 +1,183 @@
+package com.felkertech.cumulustv.test;
+
+import android.os.Build;
+
+import com.felkertech.cumulustv.model.ChannelStore;
+import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.JsonListing;
+import com.felkertech.cumulustv.model.StreamProber;
+import com.felkertech.n.cumulustv.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies that the {@link ChannelStore} persists entries row by row.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.M)
+public class ChannelStoreUnitTest extends TestCase {
+    private static JSONObject getChannel(String name, String number) throws JSONException {
+        return new JsonChannel.Builder()
+                .setName(name)
+                .setNumber(number)
+                .setMediaUrl("http://example.com/" + number + ".m3u8")
+                .build()
+                .toJson();
+    }
+
+    @Test
+    public void testMigration() throws JSONException {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        assertFalse(channelStore.isMigrated());
+
+        JSONArray entries = new JSONArray();
+        entries.put(getChannel("One", "1"));
+        entries.put(new JsonListing.Builder().setUrl(JsonListingUnitTest.M3U_URL).build().toJson());
+        channelStore.replaceAll(entries, 42);
+
+        assertTrue(channelStore.isMigrated());
+        assertEquals(42, channelStore.getLastModified());
+        assertEquals(entries.toString(), channelStore.readEntries().toString());
+    }
+
+    @Test
+    public void testReplaceAllSkipsRepeatedKeys() throws JSONException {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        JSONObject one = getChannel("One", "1");
+        JSONArray entries = new JSONArray();
+        entries.put(one);
+        entries.put(getChannel("Two", "2"));
+        entries.put(getChannel("Copy of One", "1"));
+        channelStore.replaceAll(entries, 1);
+
+        // A later update by key should only ever touch one row
+        JSONArray stored = channelStore.readEntries();
+        assertEquals(2, stored.length());
+        assertEquals(one.toString(), stored.getJSONObject(0).toString());
+    }
+
+    @Test
+    public void testRowWrites() throws JSONException {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        JSONObject one = getChannel("One", "1");
+        JSONObject two = getChannel("Two", "2");
+        JSONObject three = getChannel("Three", "3");
+        List<ChannelStore.Write> writes = new ArrayList<>();
+        writes.add(ChannelStore.Write.insert(one));
+        writes.add(ChannelStore.Write.insert(two));
+        writes.add(ChannelStore.Write.insert(three));
+        channelStore.write(writes, 1);
+
+        JSONObject renamedTwo = getChannel("Renamed", "2");
+        writes.clear();
+        writes.add(ChannelStore.Write.update(renamedTwo));
+        writes.add(ChannelStore.Write.delete(one));
+        channelStore.write(writes, 2);
+
+        JSONArray entries = channelStore.readEntries();
+        assertEquals(2, entries.length());
+        assertEquals(renamedTwo.toString(), entries.getJSONObject(0).toString());
+        assertEquals(three.toString(), entries.getJSONObject(1).toString());
+        assertEquals(2, channelStore.getLastModified());
+    }
+
+    @Test
+    public void testRowIds() {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        Map<Long, String> changed = new HashMap<>();
+        changed.put(1L, "http://example.com/1.m3u8");
+        changed.put(2L, "http://example.com/2.m3u8");
+        channelStore.writeRowIds(changed, new ArrayList<Long>());
+
+        changed.clear();
+        changed.put(2L, "http://example.com/two.m3u8");
+        channelStore.writeRowIds(changed, Collections.singletonList(1L));
+
+        Map<Long, String> rowIds = channelStore.readRowIds();
+        assertEquals(1, rowIds.size());
+        assertEquals("http://example.com/two.m3u8", rowIds.get(2L));
+    }
+
+    @Test
+    public void testCachedListings() throws JSONException {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        JSONArray channels = new JSONArray();
+        channels.put(getChannel("One", "1"));
+        channelStore.putCachedListing(new ChannelStore.CachedListing(JsonListingUnitTest.M3U_URL,
+                "\"etag\"", null, 42, channels));
+
+        Map<String, ChannelStore.CachedListing> listings = channelStore.readCachedListings();
+        ChannelStore.CachedListing listing = listings.get(JsonListingUnitTest.M3U_URL);
+        assertNotNull(listing);
+        assertEquals("\"etag\"", listing.getEtag());
+        assertNull(listing.getLastModified());
+        assertEquals(42, listing.getFetched());
+        assertEquals(channels.toString(), listing.getChannels().toString());
+
+        channelStore.deleteCachedListing(JsonListingUnitTest.M3U_URL);
+        assertTrue(channelStore.readCachedListings().isEmpty());
+    }
+
+    @Test
+    public void testStreamHealth() {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        String url = "http://example.com/one.m3u8";
+        channelStore.putStreamHealth(new ChannelStore.StreamHealth(url, 1, 250, 42));
+        ChannelStore.StreamHealth health = channelStore.readStreamHealth().get(url);
+        assertNotNull(health);
+        assertEquals(1, health.getFailures());
+        assertEquals(250, health.getLatencyMs());
+        assertEquals(42, health.getChecked());
+        assertFalse(health.isDead());
+
+        // A second failure in a row replaces the first
+        channelStore.putStreamHealth(new ChannelStore.StreamHealth(url, 2, 250, 84));
+        health = channelStore.readStreamHealth().get(url);
+        assertEquals(1, channelStore.readStreamHealth().size());
+        assertTrue(health.isDead());
+
+        channelStore.deleteStreamHealth(url);
+        assertTrue(channelStore.readStreamHealth().isEmpty());
+    }
+
+    @Test
+    public void testStreamHealthByCanonicalUrl() {
+        ChannelStore channelStore = new ChannelStore(RuntimeEnvironment.application);
+        String url = "http://example.com/One.m3u8";
+        channelStore.putStreamHealth(new ChannelStore.StreamHealth(url, 2, 250,
+                System.currentTimeMillis()));
+        StreamProber streamProber = new StreamProber(channelStore);
+        assertTrue(streamProber.isDead(" HTTP://Example.COM/One.m3u8"));
+        assertFalse(streamProber.isDead("http://example.com/one.m3u8"));
+
+        // A fresh result is kept, and not checked again, for a url which only differs in case
+        final int[] checked = new int[] {-1};
+        streamProber.probe(Arrays.asList("HTTP://EXAMPLE.COM/One.m3u8",
+                "ftp://example.com/two.m3u8"), Long.MAX_VALUE, false,
+                new StreamProber.Callback() {
+                    @Override
+                    public void onProbeComplete(int count, int dead) {
+                        checked[0] = count;
+                    }
+                });
+        assertEquals(0, checked[0]);
+        assertEquals(Collections.singleton(url), streamProber.getDeadUrls());
+        assertNotNull(channelStore.readStreamHealth().get(url));
+    }
+}
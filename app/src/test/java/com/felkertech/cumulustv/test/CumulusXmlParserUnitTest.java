@@ -0,0 +1,153 @@
+package com.felkertech.cumulustv.test;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+
+import com.felkertech.cumulustv.fileio.CumulusXmlParser;
+import com.felkertech.cumulustv.model.ProgramSchedule;
+import com.felkertech.n.cumulustv.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.Channel;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests for reading XMLTV guides.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class CumulusXmlParserUnitTest {
+    // When the programs in xmltv_test1.xml start, 2017-01-01 00:00 UTC
+    private static final long GUIDE_START_MS = 1483228800000L;
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    public InputStream openFile(String fileName) {
+        return this.getClass().getClassLoader().getResourceAsStream(fileName);
+    }
+
+    @Test
+    public void testProgramsByChannel() throws CumulusXmlParser.XmlTvParseException {
+        CumulusXmlParser.TvListing listing =
+                CumulusXmlParser.parse(openFile("xmltv_test1.xml"));
+        List<Channel> channels = listing.getChannels();
+        assertEquals(2, channels.size());
+        // Programs for channels which are not in the guide are still read
+        assertEquals(4, listing.getAllPrograms().size());
+
+        // Ordered by start time rather than by their order in the guide
+        List<Program> news = listing.getPrograms(channels.get(0));
+        assertEquals(2, news.size());
+        assertEquals("Early News", news.get(0).getTitle());
+        assertEquals("The first news of the year.", news.get(0).getDescription());
+        assertEquals("Late News", news.get(1).getTitle());
+        assertEquals(news.get(0).getEndTimeUtcMillis(), news.get(1).getStartTimeUtcMillis());
+
+        List<Program> sports = listing.getPrograms(channels.get(1));
+        assertEquals(1, sports.size());
+        assertEquals("Football", sports.get(0).getTitle());
+    }
+
+    @Test
+    public void testFilteredPrograms() throws CumulusXmlParser.XmlTvParseException {
+        CumulusXmlParser.TvListing listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"),
+                GUIDE_START_MS + HOUR_MS, GUIDE_START_MS + 2 * HOUR_MS, null);
+        assertEquals(2, listing.getChannels().size());
+        // The early news ends as the window starts
+        assertEquals(3, listing.getAllPrograms().size());
+        List<Program> news = listing.getPrograms(listing.getChannels().get(0));
+        assertEquals(1, news.size());
+        assertEquals("Late News", news.get(0).getTitle());
+
+        // Only programs airing in the first half hour
+        listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"), GUIDE_START_MS,
+                GUIDE_START_MS + HOUR_MS / 2, null);
+        assertEquals(2, listing.getChannels().size());
+        assertEquals(3, listing.getAllPrograms().size());
+        assertEquals("Early News", listing.getPrograms(listing.getChannels().get(0)).get(0)
+                .getTitle());
+    }
+
+    @Test
+    public void testWantedChannels() throws CumulusXmlParser.XmlTvParseException {
+        // By XMLTV id
+        CumulusXmlParser.TvListing listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"),
+                GUIDE_START_MS, GUIDE_START_MS + 2 * HOUR_MS,
+                Collections.singleton("news.example.com"));
+        assertEquals(1, listing.getChannels().size());
+        assertEquals(Collections.singletonList("news.example.com"), listing.getChannelIds());
+        assertEquals(2, listing.getAllPrograms().size());
+        assertFalse(listing.hasSingleChannel());
+
+        // By display number, and by display name in lower case
+        listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"), GUIDE_START_MS,
+                GUIDE_START_MS + 2 * HOUR_MS, new HashSet<>(Arrays.asList("2", "news")));
+        assertEquals(2, listing.getChannels().size());
+        assertEquals(3, listing.getAllPrograms().size());
+        assertEquals("Football", listing.getProgramsByChannelId().get("sports.example.com")
+                .get(0).getTitle());
+
+        listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"), GUIDE_START_MS,
+                GUIDE_START_MS + 2 * HOUR_MS, Collections.singleton("weather.example.com"));
+        assertTrue(listing.getChannels().isEmpty());
+        assertTrue(listing.getAllPrograms().isEmpty());
+    }
+
+    /**
+     * A guide with a single channel is read even if its channel is not wanted, as it is shown
+     * on every channel of a lineup.
+     */
+    @Test
+    public void testSingleChannelGuide() throws CumulusXmlParser.XmlTvParseException {
+        String guide = "<tv><channel id=\"only.example.com\"><display-name>Only</display-name>"
+                + "</channel><programme channel=\"only.example.com\""
+                + " start=\"20170101000000 +0000\" stop=\"20170101010000 +0000\">"
+                + "<title>Everything</title></programme></tv>";
+        CumulusXmlParser.TvListing listing = CumulusXmlParser.parse(
+                new ByteArrayInputStream(guide.getBytes()), GUIDE_START_MS,
+                GUIDE_START_MS + 2 * HOUR_MS, Collections.singleton("weather.example.com"));
+        assertTrue(listing.hasSingleChannel());
+        assertEquals(1, listing.getChannels().size());
+        assertEquals("Everything", listing.getAllPrograms().get(0).getTitle());
+    }
+
+    /**
+     * A guide whose programs have all ended is kept in full, and its programs are looped.
+     */
+    @Test
+    public void testPastGuideIsLooped() throws CumulusXmlParser.XmlTvParseException {
+        // On a multiple of the two hours of news, so the schedule starts with the early news
+        long now = System.currentTimeMillis();
+        now -= now % (2 * HOUR_MS);
+        CumulusXmlParser.TvListing listing = CumulusXmlParser.parse(openFile("xmltv_test1.xml"),
+                now, now + 48 * HOUR_MS, null);
+        assertEquals(4, listing.getAllPrograms().size());
+
+        List<Program> news = listing.getPrograms(listing.getChannels().get(0));
+        List<Program> schedule = ProgramSchedule.getPrograms(news, false, now, now + 6 * HOUR_MS);
+        assertEquals(6, schedule.size());
+        // The loop started at the epoch, so the news alternates on the hour
+        assertEquals(now, schedule.get(0).getStartTimeUtcMillis());
+        assertEquals("Early News", schedule.get(0).getTitle());
+        assertEquals("Late News", schedule.get(1).getTitle());
+        for (int i = 1; i < schedule.size(); i++) {
+            assertEquals(schedule.get(i - 1).getEndTimeUtcMillis(),
+                    schedule.get(i).getStartTimeUtcMillis());
+        }
+        assertEquals(now + 6 * HOUR_MS, schedule.get(5).getEndTimeUtcMillis());
+    }
+}
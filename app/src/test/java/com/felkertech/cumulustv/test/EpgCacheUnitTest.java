@@ -0,0 +1,183 @@
+package com.felkertech.cumulustv.test;
+
+import android.media.tv.TvContentRating;
+import android.media.tv.TvContract;
+import android.os.Build;
+
+import com.felkertech.cumulustv.model.EpgCache;
+import com.felkertech.n.cumulustv.BuildConfig;
+import com.google.android.media.tv.companionlibrary.model.InternalProviderData;
+import com.google.android.media.tv.companionlibrary.model.Program;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Writes and reads guides in the {@link EpgCache}.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.M)
+public class EpgCacheUnitTest extends TestCase {
+    private static final String EPG_URL = "http://example.com/guide.xml";
+    private static final long START_MS = 1483228800000L;
+    private static final long HOUR_MS = 1000 * 60 * 60;
+
+    private static File getDirectory() {
+        return new File(RuntimeEnvironment.application.getCacheDir(), "epg-test");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        InternalProviderData providerData = new InternalProviderData();
+        providerData.setVideoUrl("http://example.com/1.m3u8");
+        List<Program> programs = new ArrayList<>();
+        programs.add(new Program.Builder()
+                .setTitle("Early News")
+                .setDescription("The first news of the year")
+                .setCanonicalGenres(new String[] {TvContract.Programs.Genres.NEWS})
+                .setContentRatings(new TvContentRating[] {
+                        TvContentRating.createRating("com.android.tv", "US_TV", "US_TV_PG")})
+                .setInternalProviderData(providerData)
+                .setStartTimeUtcMillis(START_MS)
+                .setEndTimeUtcMillis(START_MS + HOUR_MS)
+                .build());
+        programs.add(new Program.Builder()
+                .setTitle("Late News \u00fc")
+                .setStartTimeUtcMillis(START_MS + HOUR_MS)
+                .setEndTimeUtcMillis(START_MS + 2 * HOUR_MS)
+                .build());
+        List<EpgCache.GuideChannel> channels = new ArrayList<>();
+        channels.add(new EpgCache.GuideChannel("news.example.com", "1", "News", false,
+                programs));
+        channels.add(new EpgCache.GuideChannel("loop.example.com", null, "Loop", true,
+                Collections.<Program>emptyList()));
+        new EpgCache(getDirectory()).put(new EpgCache.Guide(EPG_URL, "\"etag\"", null,
+                START_MS, START_MS + 2 * HOUR_MS, new HashSet<>(Arrays.asList("1", "loop")), false,
+                channels));
+
+        // As if the app had restarted
+        EpgCache.Guide guide = new EpgCache(getDirectory()).get(EPG_URL);
+        assertNotNull(guide);
+        assertEquals("\"etag\"", guide.getEtag());
+        assertNull(guide.getLastModified());
+        assertEquals(START_MS, guide.getFetched());
+        assertTrue(guide.covers(START_MS + 2 * HOUR_MS));
+        assertFalse(guide.covers(START_MS + 3 * HOUR_MS));
+        assertEquals(2, guide.getChannels().size());
+        assertFalse(guide.isSingleChannel());
+        assertTrue(guide.hasChannels(Collections.singleton("loop")));
+        // A lineup which gained a channel needs the guide again
+        assertFalse(guide.hasChannels(new HashSet<>(Arrays.asList("1", "2"))));
+        assertFalse(guide.hasChannels(null));
+
+        EpgCache.GuideChannel news = guide.getChannels().get(0);
+        assertEquals("news.example.com", news.getId());
+        assertEquals("1", news.getDisplayNumber());
+        assertEquals("News", news.getDisplayName());
+        assertFalse(news.isRepeating());
+        assertEquals(2, news.getPrograms().size());
+        EpgCache.GuideChannel loop = guide.getChannels().get(1);
+        assertNull(loop.getDisplayNumber());
+        assertTrue(loop.isRepeating());
+        assertTrue(loop.getPrograms().isEmpty());
+
+        Program early = news.getPrograms().get(0);
+        assertEquals("Early News", early.getTitle());
+        assertEquals("The first news of the year", early.getDescription());
+        assertEquals(START_MS + HOUR_MS, early.getEndTimeUtcMillis());
+        assertEquals(TvContract.Programs.Genres.NEWS, early.getCanonicalGenres()[0]);
+        assertEquals("com.android.tv/US_TV/US_TV_PG",
+                early.getContentRatings()[0].flattenToString());
+        assertEquals("http://example.com/1.m3u8",
+                early.getInternalProviderData().getVideoUrl());
+
+        Program late = news.getPrograms().get(1);
+        assertEquals("Late News \u00fc", late.getTitle());
+        assertNull(late.getDescription());
+        assertEquals(START_MS + HOUR_MS, late.getStartTimeUtcMillis());
+    }
+
+    @Test
+    public void testFindChannel() {
+        List<EpgCache.GuideChannel> channels = new ArrayList<>();
+        EpgCache.GuideChannel news = new EpgCache.GuideChannel("news.example.com",
+                "1", "News", false, Collections.<Program>emptyList());
+        EpgCache.GuideChannel movies = new EpgCache.GuideChannel("movies.example.com",
+                "2", "Movies", true, Collections.<Program>emptyList());
+        channels.add(news);
+        channels.add(movies);
+        EpgCache.Guide guide = new EpgCache.Guide(EPG_URL, null, null, START_MS, START_MS, null,
+                false, channels);
+
+        // The tvg-id of a playlist is the XMLTV id
+        assertSame(movies, guide.findChannel("movies.example.com", "Films"));
+        assertSame(news, guide.findChannel("1", "Movies"));
+        assertSame(movies, guide.findChannel("7", "movies"));
+        assertNull(guide.findChannel("7", "Sports"));
+        // Ids are compared whole, not by their hash code
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        channels.add(new EpgCache.GuideChannel("Aa", null, null, false,
+                Collections.<Program>emptyList()));
+        guide = new EpgCache.Guide(EPG_URL, null, null, START_MS, START_MS, null, false,
+                channels);
+        assertNull(guide.findChannel("BB", null));
+
+        // The only channel of a guide is used for any channel
+        guide = new EpgCache.Guide(EPG_URL, null, null, START_MS, START_MS, null, true,
+                Collections.singletonList(news));
+        assertSame(news, guide.findChannel("7", "Sports"));
+        // But not the only channel which was kept from a larger guide
+        guide = new EpgCache.Guide(EPG_URL, null, null, START_MS, START_MS,
+                Collections.singleton("1"), false, Collections.singletonList(news));
+        assertNull(guide.findChannel("7", "Sports"));
+    }
+
+    @Test
+    public void testCorruptGuide() throws IOException {
+        new EpgCache(getDirectory()).put(new EpgCache.Guide(EPG_URL, null, null, START_MS,
+                START_MS, null, false, Collections.<EpgCache.GuideChannel>emptyList()));
+        File[] files = getDirectory().listFiles();
+        assertEquals(1, files.length);
+        // Make the number of strings negative, which follows the magic, format, url, etag,
+        // last modified, fetched, horizon and single channel flag
+        int offset = 4 + 4 + (4 + EPG_URL.length()) + 4 + 4 + 8 + 8 + 1;
+        RandomAccessFile file = new RandomAccessFile(files[0], "rw");
+        try {
+            file.seek(offset);
+            file.writeInt(Integer.MIN_VALUE);
+        } finally {
+            file.close();
+        }
+
+        assertNull(new EpgCache(getDirectory()).get(EPG_URL));
+        // So it is downloaded again
+        assertFalse(files[0].exists());
+    }
+
+    @Test
+    public void testRetainAll() throws IOException {
+        EpgCache epgCache = new EpgCache(getDirectory());
+        epgCache.put(new EpgCache.Guide(EPG_URL, null, null, START_MS, START_MS, null, false,
+                Collections.<EpgCache.GuideChannel>emptyList()));
+        epgCache.retainAll(Collections.singleton(EPG_URL));
+        assertNotNull(new EpgCache(getDirectory()).get(EPG_URL));
+
+        epgCache.retainAll(Collections.<String>emptyList());
+        assertNull(epgCache.get(EPG_URL));
+        assertNull(new EpgCache(getDirectory()).get(EPG_URL));
+    }
+}
@@ -0,0 +1,101 @@
+package com.felkertech.cumulustv.test;
+
+import android.os.Build;
+
+import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.LineupSnapshot;
+import com.felkertech.n.cumulustv.BuildConfig;
+
+import junit.framework.TestCase;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes and reads {@link LineupSnapshot}s.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = Build.VERSION_CODES.M)
+public class LineupSnapshotUnitTest extends TestCase {
+    private static File getFile() {
+        return new File(RuntimeEnvironment.application.getFilesDir(), "lineup-test.bin");
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        List<JsonChannel> channels = new ArrayList<>();
+        channels.add(new JsonChannel.Builder()
+                .setName("One")
+                .setNumber("1")
+                .setMediaUrl("http://example.com/1.m3u8")
+                .setGenres("NEWS")
+                .setLogo("http://example.com/logo.png")
+                .setAudioOnly(true)
+                .build());
+        channels.add(new JsonChannel.Builder()
+                .setName("Zwei \u00fc")
+                .setNumber("2")
+                .setMediaUrl("http://example.com/2.m3u8")
+                .setGenres("NEWS")
+                .setPluginSource("com.example/.Plugin")
+                .build());
+        LineupSnapshot.write(getFile(), 7, true, channels);
+
+        LineupSnapshot snapshot = LineupSnapshot.open(getFile());
+        assertNotNull(snapshot);
+        assertEquals(7, snapshot.getGeneration());
+        assertTrue(snapshot.isSorted());
+        assertEquals(2, snapshot.size());
+        assertEquals("http://example.com/2.m3u8", snapshot.getMediaUrl(1));
+        assertEquals("1", snapshot.getNumber(0));
+
+        JsonChannel one = snapshot.getChannel(0);
+        assertSame(one, snapshot.getChannel(0));
+        assertTrue(one.isAudioOnly());
+        assertEquals("http://example.com/logo.png", one.getLogo());
+        assertNull(one.getEpgUrl());
+
+        JsonChannel two = snapshot.asList().get(1);
+        assertEquals("Zwei \u00fc", two.getName());
+        assertEquals("NEWS", two.getGenresString());
+        assertEquals(channels.get(1).getPluginSource(), two.getPluginSource());
+        assertFalse(two.isAudioOnly());
+    }
+
+    @Test
+    public void testLargeLineup() throws IOException {
+        List<JsonChannel> channels = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            channels.add(new JsonChannel.Builder()
+                    .setName("Channel " + i)
+                    .setNumber(String.valueOf(i))
+                    .setMediaUrl("http://example.com/" + i + ".m3u8")
+                    .setGenres("MOVIES")
+                    .build());
+        }
+        LineupSnapshot.write(getFile(), 1, false, channels);
+        LineupSnapshot snapshot = LineupSnapshot.open(getFile());
+        assertNotNull(snapshot);
+        assertEquals(10000, snapshot.size());
+        assertEquals("9999", snapshot.getNumber(9999));
+        assertEquals(channels.get(5000), snapshot.getChannel(5000));
+    }
+
+    @Test
+    public void testInvalidFile() throws IOException {
+        FileOutputStream out = new FileOutputStream(getFile());
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertNull(LineupSnapshot.open(getFile()));
+        assertNull(LineupSnapshot.open(new File(getFile().getPath() + ".missing")));
+    }
+}
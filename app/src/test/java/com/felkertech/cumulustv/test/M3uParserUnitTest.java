@@ -3,20 +3,38 @@ package com.felkertech.cumulustv.test;
 import android.os.Build;
 import android.support.annotation.RequiresApi;
 
+import com.felkertech.cumulustv.fileio.AbstractFileParser;
+import com.felkertech.cumulustv.fileio.CompressedFeeds;
+import com.felkertech.cumulustv.fileio.LocalFileParser;
 import com.felkertech.cumulustv.fileio.M3uParser;
 import com.felkertech.n.cumulustv.BuildConfig;
 
 import junit.framework.TestCase;
 
 import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
 import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * Created by Nick on 12/15/2016.
@@ -59,4 +77,249 @@ public class M3uParserUnitTest {
         assertEquals(1, listing.channels.size());
         assertEquals("http://s.xxx.com:8000/live/xxx/xxx/1.ts", listing.channels.get(0).toJsonChannel().getMediaUrl());
     }
+
+    @Test
+    public void testQuotedCommas() throws IOException {
+        String playlist = "#EXTM3U\n" +
+                "#EXTINF:-1 tvg-id=\"7\" tvg-name=\"News, Weather\" group-title=\"A,B\"," +
+                "[COLOR red]News, Weather[/COLOR]\n" +
+                "http://example.com/news.m3u8\n" +
+                "#EXTINF:-1 audio-only=true tvg-logo=http://example.com/radio.png ,Radio\n" +
+                "http://example.com/radio.m3u8\n";
+        M3uParser.TvListing listing =
+                M3uParser.parse(new ByteArrayInputStream(playlist.getBytes()));
+        assertEquals(2, listing.channels.size());
+        assertEquals("News, Weather", listing.channels.get(0).toJsonChannel().getName());
+        assertEquals("7", listing.channels.get(0).toJsonChannel().getNumber());
+        assertEquals("Radio", listing.channels.get(1).toJsonChannel().getName());
+        assertTrue(listing.channels.get(1).toJsonChannel().isAudioOnly());
+        assertEquals("http://example.com/radio.png",
+                listing.channels.get(1).toJsonChannel().getLogo());
+    }
+
+    @Test
+    public void testCompressedPlaylist() throws IOException {
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        InputStream in = openFile("m3u_test4.m3u");
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            plain.write(buffer, 0, read);
+        }
+
+        ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+        OutputStream out = new GZIPOutputStream(gzip);
+        plain.writeTo(out);
+        out.close();
+        ByteArrayOutputStream xz = new ByteArrayOutputStream();
+        out = new XZOutputStream(xz, new LZMA2Options());
+        plain.writeTo(out);
+        out.close();
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        ZipOutputStream zipOut = new ZipOutputStream(zip);
+        zipOut.putNextEntry(new ZipEntry("feeds/"));
+        zipOut.closeEntry();
+        zipOut.putNextEntry(new ZipEntry("feeds/playlist.m3u"));
+        plain.writeTo(zipOut);
+        zipOut.close();
+
+        for (ByteArrayOutputStream feed : new ByteArrayOutputStream[] {plain, gzip, xz, zip}) {
+            M3uParser.TvListing listing = M3uParser.parse(CompressedFeeds.decompress(
+                    new ByteArrayInputStream(feed.toByteArray())));
+            assertEquals(16, listing.channels.size());
+            assertEquals("&tv HD", listing.channels.get(0).toJsonChannel().getName());
+        }
+        assertEquals("playlist.m3u", CompressedFeeds.getUncompressedName("playlist.m3u.gz"));
+    }
+
+    @Test
+    public void testStreaming() throws IOException {
+        final List<String> names = new ArrayList<>();
+        boolean isM3u = M3uParser.parse(openFile("m3u_test1.m3u"), new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                names.add(channel.toJsonChannel().getName());
+                return false; // Stop after the first channel
+            }
+        });
+        assertTrue(isM3u);
+        assertEquals(1, names.size());
+        assertEquals("Canal 2 HD", names.get(0));
+
+        assertFalse(M3uParser.parse(new ByteArrayInputStream("<tv></tv>".getBytes()),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                return true;
+            }
+        }));
+    }
+
+    @Test
+    public void testLargePlaylist() throws IOException {
+        final int[] channels = new int[1];
+        final String[] lastNumber = new String[1];
+        M3uParser.parse(new ByteArrayInputStream(createLargePlaylist(60000)),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                channels[0]++;
+                lastNumber[0] = channel.toJsonChannel().getNumber();
+                return true;
+            }
+        });
+        assertEquals(59400, channels[0]);
+        assertEquals("59998", lastNumber[0]);
+    }
+
+    @Test
+    public void testParallelParse() throws IOException {
+        byte[] playlist = createLargePlaylist(M3uParser.CHUNK_SIZE * 20 + 7);
+        final List<String> sequential = new ArrayList<>();
+        final List<String> parallel = new ArrayList<>();
+        assertTrue(M3uParser.parse(new ByteArrayInputStream(playlist),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                sequential.add(channel.toJsonChannel().toString());
+                return true;
+            }
+        }));
+        assertTrue(M3uParser.parseParallel(new ByteArrayInputStream(playlist),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                parallel.add(channel.toJsonChannel().toString());
+                return true;
+            }
+        }));
+        // Numbers and country groups carry over from one chunk to the next
+        assertEquals(sequential, parallel);
+
+        final int[] visited = new int[1];
+        M3uParser.parseParallel(new ByteArrayInputStream(playlist),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                return ++visited[0] < 10;
+            }
+        });
+        assertEquals(10, visited[0]);
+    }
+
+    @Test
+    public void testMappedPlaylist() throws IOException {
+        List<byte[]> playlists = new ArrayList<>();
+        for (int i = 1; i <= 6; i++) {
+            playlists.add(readFile("m3u_test" + i + ".m3u"));
+        }
+        playlists.add(createLargePlaylist(5000));
+        playlists.add(("#EXTM3U\r\n## Sports ##\r\n" +
+                "#EXTINF:-1 tvg-id=\"7\" group-title=\"A,B\" tvg-name=\"Uni\",[B]Uni[/B] \r\n" +
+                "http://example.com/7.m3u8\r" +
+                "#EXTINF:-1 tvg-logo=\"http://example.com/unclosed.png\r\n" +
+                "rtmp://example.com/live\n" +
+                "#EXTINF:-1 audio-only,Radio\n" +
+                "http://example.com/radio.m3u8").getBytes("UTF-8"));
+        for (byte[] playlist : playlists) {
+            List<String> streamed = new ArrayList<>();
+            boolean isM3u = M3uParser.parse(new ByteArrayInputStream(playlist),
+                    new JsonCollector(streamed));
+            List<String> mapped = new ArrayList<>();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(playlist.length);
+            buffer.put(playlist);
+            buffer.flip();
+            assertEquals(isM3u, M3uParser.parse(buffer, new JsonCollector(mapped)));
+            assertEquals(streamed, mapped);
+            assertEquals(0, buffer.position());
+        }
+
+        // A local file is mapped, unless it is compressed
+        File file = File.createTempFile("playlist", ".m3u");
+        file.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(file);
+        out.write(playlists.get(3));
+        out.close();
+        final List<String> mapped = new ArrayList<>();
+        new LocalFileParser(file.getAbsolutePath(), new AbstractFileParser.MappedFileLoader() {
+            @Override
+            public void onFileMapped(ByteBuffer buffer) {
+                M3uParser.parse(buffer, new JsonCollector(mapped));
+            }
+
+            @Override
+            public void onFileLoaded(InputStream inputStream) {
+                throw new AssertionError("The file should be mapped");
+            }
+        });
+        assertEquals(16, mapped.size());
+
+        OutputStream gzip = new GZIPOutputStream(new FileOutputStream(file));
+        gzip.write(playlists.get(3));
+        gzip.close();
+        final List<String> streamed = new ArrayList<>();
+        new LocalFileParser(file.getAbsolutePath(), new AbstractFileParser.MappedFileLoader() {
+            @Override
+            public void onFileMapped(ByteBuffer buffer) {
+                throw new AssertionError("A compressed file can not be mapped");
+            }
+
+            @Override
+            public void onFileLoaded(InputStream inputStream) {
+                try {
+                    M3uParser.parse(inputStream, new JsonCollector(streamed));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        assertEquals(mapped, streamed);
+    }
+
+    /**
+     * Collects the JSON of each channel.
+     */
+    private static class JsonCollector implements M3uParser.ChannelVisitor {
+        private final List<String> mChannels;
+
+        private JsonCollector(List<String> channels) {
+            mChannels = channels;
+        }
+
+        @Override
+        public boolean onChannel(M3uParser.M3uTvChannel channel) {
+            mChannels.add(channel.toJsonChannel().toString());
+            return true;
+        }
+    }
+
+    private byte[] readFile(String fileName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = openFile(fileName);
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * Creates a playlist with a country group every 1000 channels. Every hundredth channel has
+     * no url, so it is skipped but still counted.
+     */
+    private static byte[] createLargePlaylist(int size) {
+        StringBuilder playlist = new StringBuilder("#EXTM3U\n");
+        for (int i = 0; i < size; i++) {
+            if (i % 1000 == 0) {
+                playlist.append("## Group ").append(i / 1000).append('\n');
+            }
+            playlist.append("#EXTINF:-1 tvg-logo=\"http://example.com/").append(i)
+                    .append(".png\",Channel ").append(i).append('\n');
+            playlist.append(i % 100 == 99 ? "#" : "http://example.com/").append(i)
+                    .append(".m3u8\n");
+        }
+        return playlist.toString().getBytes();
+    }
 }
@@ -0,0 +1,89 @@
+package com.felkertech.cumulustv.test;
+
+import android.os.Build;
+import android.support.annotation.RequiresApi;
+
+import com.felkertech.cumulustv.fileio.XmlTvTime;
+import com.felkertech.n.cumulustv.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests for reading XMLTV times, compared to the SimpleDateFormat which used to read them.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 23, manifest = "src/main/AndroidManifest.xml")
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class XmlTvTimeUnitTest {
+    private static final String[] OFFSETS = {"+0000", "-0500", "+0130", "+0545", "+1400", "-1200"};
+
+    @Test
+    public void testSameAsDateFormat() throws ParseException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        SimpleDateFormat localFormat = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // Any time between 1940 and 2090
+            long time = -1000000000000L + (long) (random.nextDouble() * 4000000000000L);
+            String offset = OFFSETS[random.nextInt(OFFSETS.length)];
+            localFormat.setTimeZone(TimeZone.getTimeZone("GMT" + offset));
+            String value = localFormat.format(new Date(time)) + " " + offset;
+            assertEquals(value, dateFormat.parse(value).getTime(), XmlTvTime.parse(value));
+        }
+    }
+
+    @Test
+    public void testRollOver() throws ParseException {
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        String[] values = {"20170132000000 +0000", "20171301000000 +0000",
+                "20170100000000 +0000", "20170101240000 +0100", "20170101006000 -0100",
+                "20160229120000 +0100", "20170101000000 +0000 (UTC)"};
+        for (String value : values) {
+            assertEquals(value, dateFormat.parse(value).getTime(), XmlTvTime.parse(value));
+        }
+    }
+
+    @Test
+    public void testVariants() throws ParseException {
+        long time = 1488717045000L; // 2017-03-05 12:30:45 UTC
+        assertEquals(time, XmlTvTime.parse("20170305123045 +0000"));
+        assertEquals(time, XmlTvTime.parse("20170305123045"));
+        assertEquals(time, XmlTvTime.parse("20170305133045 +01:00"));
+        assertEquals(time, XmlTvTime.parse("20170305133045 +01"));
+        assertEquals(time, XmlTvTime.parse("20170305073045 EST"));
+        assertEquals(time, XmlTvTime.parse("20170305123045 UTC"));
+        assertEquals(time - 45000, XmlTvTime.parse("201703051230"));
+        assertEquals(time - 45000 - 30 * 60000, XmlTvTime.parse("2017030512 +0000"));
+        assertEquals(1488672000000L, XmlTvTime.parse("20170305"));
+        assertEquals(1483228800000L, XmlTvTime.parse("2017"));
+        // Zones with daylight saving time use the offset of the date
+        assertEquals(1499257845000L, XmlTvTime.parse("20170705133045 Europe/London"));
+        assertEquals(time, XmlTvTime.parse("20170305123045 Europe/London"));
+    }
+
+    @Test
+    public void testInvalid() {
+        String[] values = {"", "201", "2017030", "news", "20170305123045 +1",
+                "20170305123045 Nowhere/Zone"};
+        for (String value : values) {
+            try {
+                XmlTvTime.parse(value);
+                fail(value + " is not a XMLTV time");
+            } catch (ParseException expected) {
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import com.felkertech.cumulustv.fileio.CumulusXmlParser;
+
+import org.kxml2.io.KXmlParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading a XMLTV guide. The parser is the same one <code>Xml.newPullParser()</code>
+ * returns on a device.
+ *
+ * <p>The filtered benchmark only keeps the first hour of programs of ten channels, like a sync
+ * which reads a few hours of a lineup's channels from a longer and larger guide.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CumulusXmlParserBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int programs;
+
+    private byte[] mGuide;
+    private Set<String> mWantedChannelIds;
+
+    @Setup
+    public void setUp() throws CumulusXmlParser.XmlTvParseException {
+        mGuide = Fixtures.createGuide(programs);
+        mWantedChannelIds = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            mWantedChannelIds.add("channel" + i);
+        }
+        // Make sure the guide is valid, as the parser returns null for errors
+        if (parse() == null) {
+            throw new IllegalStateException("The guide could not be parsed");
+        }
+    }
+
+    @Benchmark
+    public CumulusXmlParser.TvListing parse() throws CumulusXmlParser.XmlTvParseException {
+        return CumulusXmlParser.parse(new ByteArrayInputStream(mGuide), new KXmlParser());
+    }
+
+    @Benchmark
+    public CumulusXmlParser.TvListing parseFiltered()
+            throws CumulusXmlParser.XmlTvParseException {
+        return CumulusXmlParser.parse(new ByteArrayInputStream(mGuide), new KXmlParser(),
+                Fixtures.GUIDE_START_MS, Fixtures.GUIDE_START_MS + 2 * Fixtures.PROGRAM_LENGTH_MS,
+                mWantedChannelIds);
+    }
+}
@@ -0,0 +1,123 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+/**
+ * Generates playlists, guides and saved channels of any size. The same size always gives the same
+ * data, so results can be compared between runs.
+ */
+public class Fixtures {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long SEED = 42;
+    /** How long each program in a guide is. */
+    public static final long PROGRAM_LENGTH_MS = 30 * 60 * 1000;
+    /** When the first programs in a guide start. */
+    public static final long GUIDE_START_MS = 1500000000000L;
+    private static final int PROGRAMS_PER_CHANNEL = 10;
+
+    private Fixtures() {
+    }
+
+    /**
+     * @return A M3U playlist like the ones providers serve, split into groups of 1000 channels.
+     */
+    public static byte[] createPlaylist(int channels) {
+        StringBuilder playlist = new StringBuilder(channels * 200);
+        playlist.append("#EXTM3U\n");
+        for (int i = 0; i < channels; i++) {
+            if (i % 1000 == 0) {
+                playlist.append("## Group ").append(i / 1000).append('\n');
+            }
+            playlist.append("#EXTINF:-1 tvg-id=\"channel").append(i)
+                    .append("\" tvg-name=\"Channel ").append(i)
+                    .append("\" tvg-logo=\"http://example.com/logos/").append(i)
+                    .append(".png\" group-title=\"").append(getGenre(i))
+                    .append("\",Channel ").append(i).append(" [HD]\n");
+            playlist.append("http://example.com/streams/").append(i).append(".m3u8\n");
+        }
+        return playlist.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return A XMLTV guide with one channel for every ten programs. Channel ids are "channel"
+     * followed by their index.
+     */
+    public static byte[] createGuide(int programs) {
+        int channels = Math.max(1, programs / PROGRAMS_PER_CHANNEL);
+        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        StringBuilder guide = new StringBuilder(programs * 300);
+        guide.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<tv>\n");
+        for (int i = 0; i < channels; i++) {
+            guide.append("  <channel id=\"channel").append(i).append("\">\n")
+                    .append("    <display-name>Channel ").append(i).append("</display-name>\n")
+                    .append("    <display-number>").append(i + 1).append("</display-number>\n")
+                    .append("    <icon src=\"http://example.com/logos/").append(i)
+                    .append(".png\"/>\n")
+                    .append("  </channel>\n");
+        }
+        for (int i = 0; i < programs; i++) {
+            long start = GUIDE_START_MS + (i / channels) * PROGRAM_LENGTH_MS;
+            guide.append("  <programme channel=\"channel").append(i % channels)
+                    .append("\" start=\"").append(dateFormat.format(new Date(start)))
+                    .append("\" stop=\"")
+                    .append(dateFormat.format(new Date(start + PROGRAM_LENGTH_MS)))
+                    .append("\">\n")
+                    .append("    <title>Program ").append(i).append("</title>\n")
+                    .append("    <desc>The description of program ").append(i)
+                    .append(", which is long enough to be realistic.</desc>\n")
+                    .append("    <category>").append(getGenre(i)).append("</category>\n")
+                    .append("  </programme>\n");
+        }
+        guide.append("</tv>\n");
+        return guide.toString().getBytes(UTF_8);
+    }
+
+    /**
+     * @return Channels as they are saved in the database. Numbers are shuffled and some are
+     * repeated, so they have to be sorted.
+     */
+    public static JSONArray createChannelEntries(int channels) {
+        Random random = new Random(SEED);
+        JSONArray entries = new JSONArray();
+        try {
+            for (int i = 0; i < channels; i++) {
+                int number = random.nextInt(channels) + 1;
+                entries.put(new JSONObject()
+                        .put("number", random.nextBoolean() ? String.valueOf(number) :
+                                number + "-" + random.nextInt(10))
+                        .put("name", "Channel " + i)
+                        .put("logo", "http://example.com/logos/" + i + ".png")
+                        .put("url", "http://example.com/streams/" + i + ".m3u8")
+                        .put("splashscreen", "")
+                        .put("genres", getGenre(i))
+                        .put("audioOnly", false));
+            }
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+        return entries;
+    }
+
+    private static String getGenre(int index) {
+        switch (index % 4) {
+            case 0:
+                return "NEWS";
+            case 1:
+                return "SPORTS";
+            case 2:
+                return "MOVIES";
+            default:
+                return "MUSIC";
+        }
+    }
+}
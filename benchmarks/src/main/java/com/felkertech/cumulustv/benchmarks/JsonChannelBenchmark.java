@@ -0,0 +1,70 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import com.felkertech.cumulustv.model.JsonChannel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures building channels, from saved JSON and from values set one at a time as the parsers
+ * do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonChannelBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int channels;
+
+    private JSONArray mEntries;
+
+    @Setup
+    public void setUp() {
+        mEntries = Fixtures.createChannelEntries(channels);
+    }
+
+    @Benchmark
+    public void fromJson(Blackhole blackhole) throws JSONException {
+        for (int i = 0; i < mEntries.length(); i++) {
+            blackhole.consume(new JsonChannel.Builder(mEntries.getJSONObject(i)).build());
+        }
+    }
+
+    @Benchmark
+    public void fromValues(Blackhole blackhole) {
+        for (int i = 0; i < channels; i++) {
+            blackhole.consume(new JsonChannel.Builder()
+                    .setNumber(String.valueOf(i + 1))
+                    .setName("Channel " + i)
+                    .setLogo("http://example.com/logos/" + i + ".png")
+                    .setMediaUrl("http://example.com/streams/" + i + ".m3u8")
+                    .setGenres("NEWS")
+                    .build());
+        }
+    }
+
+    @Benchmark
+    public void toJson(Blackhole blackhole) throws JSONException {
+        JsonChannel channel = new JsonChannel.Builder(mEntries.getJSONObject(0)).build();
+        for (int i = 0; i < channels; i++) {
+            blackhole.consume(channel.toJson());
+        }
+    }
+}
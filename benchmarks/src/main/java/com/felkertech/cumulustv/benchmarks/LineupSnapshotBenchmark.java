@@ -0,0 +1,94 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import com.felkertech.cumulustv.model.JsonChannel;
+import com.felkertech.cumulustv.model.LineupSnapshot;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Compares the two ways the saved channels are loaded when the app starts: from the
+ * {@link LineupSnapshot} written the last time, or by parsing the JSON of every entry as it is
+ * stored in the database.</p>
+ *
+ * <p>Opening a snapshot only reads what the lineup indexes, so that is measured both on its own
+ * and with every channel built.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LineupSnapshotBenchmark {
+    @Param({"10000"})
+    public int channels;
+
+    private String[] mEntries;
+    private File mSnapshot;
+
+    @Setup
+    public void setUp() throws IOException, JSONException {
+        JSONArray entries = Fixtures.createChannelEntries(channels);
+        mEntries = new String[entries.length()];
+        List<JsonChannel> jsonChannels = new ArrayList<>(entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            mEntries[i] = entries.getJSONObject(i).toString();
+            jsonChannels.add(new JsonChannel.Builder(entries.getJSONObject(i)).build());
+        }
+        mSnapshot = File.createTempFile("lineup", ".snapshot");
+        LineupSnapshot.write(mSnapshot, 1, false, jsonChannels);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mSnapshot.delete();
+    }
+
+    /**
+     * What a lineup reads from a snapshot before any channel is shown.
+     */
+    @Benchmark
+    public void openSnapshot(Blackhole blackhole) {
+        LineupSnapshot snapshot = LineupSnapshot.open(mSnapshot);
+        for (int i = 0; i < snapshot.size(); i++) {
+            blackhole.consume(snapshot.getMediaUrl(i));
+            blackhole.consume(snapshot.getNumber(i));
+        }
+    }
+
+    @Benchmark
+    public void openSnapshotAndBuildChannels(Blackhole blackhole) {
+        LineupSnapshot snapshot = LineupSnapshot.open(mSnapshot);
+        for (int i = 0; i < snapshot.size(); i++) {
+            blackhole.consume(snapshot.getChannel(i));
+        }
+    }
+
+    @Benchmark
+    public void parseJson(Blackhole blackhole) throws JSONException {
+        for (String entry : mEntries) {
+            blackhole.consume(new JsonChannel.Builder(new JSONObject(entry)).build());
+        }
+    }
+}
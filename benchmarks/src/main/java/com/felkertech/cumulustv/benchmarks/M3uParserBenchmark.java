@@ -0,0 +1,70 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import com.felkertech.cumulustv.fileio.M3uParser;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading a M3U playlist, both into a list and while visiting each channel.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class M3uParserBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int channels;
+
+    private byte[] mPlaylist;
+
+    @Setup
+    public void setUp() {
+        mPlaylist = Fixtures.createPlaylist(channels);
+    }
+
+    @Benchmark
+    public M3uParser.TvListing parse() throws IOException {
+        return M3uParser.parse(new ByteArrayInputStream(mPlaylist));
+    }
+
+    @Benchmark
+    public boolean visit(final Blackhole blackhole) throws IOException {
+        return M3uParser.parse(new ByteArrayInputStream(mPlaylist),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                blackhole.consume(channel);
+                return true;
+            }
+        });
+    }
+
+    @Benchmark
+    public boolean parseParallel(final Blackhole blackhole) throws IOException {
+        return M3uParser.parseParallel(new ByteArrayInputStream(mPlaylist),
+                new M3uParser.ChannelVisitor() {
+            @Override
+            public boolean onChannel(M3uParser.M3uTvChannel channel) {
+                blackhole.consume(channel);
+                return true;
+            }
+        });
+    }
+}
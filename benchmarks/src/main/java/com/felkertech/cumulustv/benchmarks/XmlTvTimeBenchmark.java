@@ -0,0 +1,68 @@
+package com.felkertech.cumulustv.benchmarks;
+
+import com.felkertech.cumulustv.fileio.XmlTvTime;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures reading the start and stop times of XMLTV programs, compared to the SimpleDateFormat
+ * which used to read them. Each operation reads a day of half hour programs.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlTvTimeBenchmark {
+    private static final int TIMES = 48;
+
+    private String[] mTimes;
+    private SimpleDateFormat mDateFormat;
+
+    @Setup
+    public void setUp() {
+        mDateFormat = new SimpleDateFormat("yyyyMMddHHmmss Z", Locale.US);
+        SimpleDateFormat localFormat = new SimpleDateFormat("yyyyMMddHHmmss", Locale.US);
+        localFormat.setTimeZone(TimeZone.getTimeZone("GMT+01:00"));
+        mTimes = new String[TIMES];
+        for (int i = 0; i < TIMES; i++) {
+            mTimes[i] = localFormat.format(new Date(Fixtures.GUIDE_START_MS
+                    + i * Fixtures.PROGRAM_LENGTH_MS)) + " +0100";
+        }
+    }
+
+    @Benchmark
+    public long dateFormat() throws ParseException {
+        long sum = 0;
+        for (String time : mTimes) {
+            sum += mDateFormat.parse(time).getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public long xmlTvTime() throws ParseException {
+        long sum = 0;
+        for (String time : mTimes) {
+            sum += XmlTvTime.parse(time);
+        }
+        return sum;
+    }
+}
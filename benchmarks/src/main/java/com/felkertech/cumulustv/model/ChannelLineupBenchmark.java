@@ -0,0 +1,91 @@
+package com.felkertech.cumulustv.model;
+
+import com.felkertech.cumulustv.benchmarks.Fixtures;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Measures the work {@link ChannelDatabase#getJsonChannels()} does when its lineup has to be
+ * built again. The database itself needs a device for its store, so this calls the same
+ * {@link ChannelLineup#build} with the channels held in memory.</p>
+ *
+ * <p>A tenth as many channels as are saved come from a playlist, and some of them play the same
+ * stream as a saved channel.</p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChannelLineupBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int channels;
+
+    private JSONArray mEntries;
+    private List<JsonChannel> mSavedChannels;
+    private List<JsonChannel> mTemporaryChannels;
+    private long mVersion;
+
+    @Setup
+    public void setUp() throws JSONException {
+        mEntries = Fixtures.createChannelEntries(channels);
+        mSavedChannels = parse(mEntries);
+        mTemporaryChannels = new ArrayList<>();
+        for (int i = 0; i < mSavedChannels.size(); i += 10) {
+            JsonChannel.Builder builder = new JsonChannel.Builder(mSavedChannels.get(i))
+                    .setNumber(String.valueOf(channels + i));
+            if (i % 20 != 0) {
+                builder.setMediaUrl("http://example.com/playlist/" + i + ".m3u8");
+            }
+            mTemporaryChannels.add(builder.build());
+        }
+    }
+
+    /**
+     * The first lineup, when the saved entries have not been parsed yet.
+     */
+    @Benchmark
+    public List<JsonChannel> load() throws JSONException {
+        return buildLineup(parse(mEntries), mTemporaryChannels).getChannels();
+    }
+
+    /**
+     * A lineup after a change, when every entry has already been parsed.
+     */
+    @Benchmark
+    public List<JsonChannel> rebuild() {
+        return buildLineup(mSavedChannels, mTemporaryChannels).getChannels();
+    }
+
+    private static List<JsonChannel> parse(JSONArray entries) throws JSONException {
+        List<JsonChannel> channels = new ArrayList<>(entries.length());
+        for (int i = 0; i < entries.length(); i++) {
+            channels.add(new JsonChannel.Builder(entries.getJSONObject(i)).build());
+        }
+        return channels;
+    }
+
+    private ChannelLineup buildLineup(List<JsonChannel> savedChannels,
+            List<JsonChannel> temporaryChannels) {
+        return ChannelLineup.build(++mVersion, savedChannels,
+                new ChannelNumberIndex(savedChannels), temporaryChannels,
+                new ChannelNumberIndex(temporaryChannels));
+    }
+}